@@ -0,0 +1,233 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small benchmark harness in the spirit of JMH. Every benchmark is run for a
+ * number of timed warmup iterations, then for a number of timed measurement
+ * iterations, and the mean time per operation and its spread are reported.
+ * Results can be written to, and compared against, a baseline file with one
+ * "name nanosPerOp" line per benchmark.
+ */
+public class Bench {
+
+    /**
+     * A benchmarked operation. The returned value is consumed so the JIT cannot
+     * remove the work.
+     */
+    public interface Op {
+        long run() throws Exception;
+    }
+
+    static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmups", 3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    static final long ITERATION_NANOS = Long.getLong("bench.iterationMillis", 500) * 1_000_000;
+
+    /** Keeps the values returned by the operations alive. */
+    static volatile long sink;
+
+    /** The results of this run, in order, in nanoseconds per operation. */
+    static final LinkedHashMap<String, Double> results = new LinkedHashMap<String, Double>();
+
+    /** The filter given on the command line, only matching benchmarks run. */
+    static String filter = "";
+
+    /**
+     * Measures an operation and prints its result.
+     *
+     * @param name the name of the benchmark
+     * @param op   the operation to measure
+     *
+     * @throws Exception if the operation fails
+     */
+    static void measure(String name, Op op) throws Exception {
+        measure(name, op, null);
+    }
+
+    /**
+     * Measures an operation and prints its result, running a reset before
+     * every operation that is left out of the time. Meant for slow operations
+     * that need a fresh state, each one is timed on its own.
+     *
+     * @param name  the name of the benchmark
+     * @param op    the operation to measure
+     * @param reset what to run before each operation, or null
+     *
+     * @throws Exception if the operation or the reset fails
+     */
+    static void measure(String name, Op op, Op reset) throws Exception {
+
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(op, reset);
+        }
+
+        double[] scores = new double[ITERATIONS];
+        double mean = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            scores[i] = iteration(op, reset);
+            mean += scores[i] / ITERATIONS;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / ITERATIONS;
+        }
+
+        results.put(name, mean);
+        System.out.printf("%-40s %14.1f ns/op  +- %8.1f  %14.0f ops/s%n", name, mean, Math.sqrt(variance),
+                1e9 / mean);
+    }
+
+    /**
+     * Runs an operation repeatedly for one iteration.
+     *
+     * @param op    the operation
+     * @param reset what to run before each operation, or null
+     *
+     * @return the mean time per operation in nanoseconds
+     */
+    private static double iteration(Op op, Op reset) throws Exception {
+        if (reset != null) {
+            return iterationWithReset(op, reset);
+        }
+        long ops = 0;
+        long value = 0;
+        long start = System.nanoTime();
+        long end = start + ITERATION_NANOS;
+        long now;
+        do {
+            for (int i = 0; i < 16; i++) {
+                value += op.run();
+            }
+            ops += 16;
+            now = System.nanoTime();
+        } while (now < end);
+        sink = value;
+        return (now - start) / (double) ops;
+    }
+
+    /**
+     * Runs an operation repeatedly for one iteration, resetting before each
+     * run and timing the runs only.
+     *
+     * @param op    the operation
+     * @param reset what to run before each operation
+     *
+     * @return the mean time per operation in nanoseconds
+     */
+    private static double iterationWithReset(Op op, Op reset) throws Exception {
+        long ops = 0;
+        long value = 0;
+        long timed = 0;
+        long end = System.nanoTime() + ITERATION_NANOS;
+        do {
+            value += reset.run();
+            long start = System.nanoTime();
+            value += op.run();
+            timed += System.nanoTime() - start;
+            ops++;
+        } while (System.nanoTime() < end);
+        sink = value;
+        return timed / (double) ops;
+    }
+
+    /**
+     * Reads a baseline file.
+     *
+     * @param path the file
+     *
+     * @return the baseline scores by benchmark name
+     */
+    static Map<String, Double> readBaseline(String path) throws IOException {
+        HashMap<String, Double> baseline = new HashMap<String, Double>();
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int split = line.lastIndexOf(' ');
+                baseline.put(line.substring(0, split).trim(), Double.parseDouble(line.substring(split + 1)));
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Runs all benchmarks.
+     *
+     * Usage: java Bench [-baseline file] [-write file] [filter]
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+
+        String baselinePath = null;
+        String writePath = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-baseline")) {
+                baselinePath = args[++i];
+            } else if (args[i].equals("-write")) {
+                writePath = args[++i];
+            } else {
+                filter = args[i];
+            }
+        }
+
+        PacketBench.run();
+        FanoutBench.run();
+        UserListBench.run();
+        VoiceFrameBench.run();
+        RestoreBench.run();
+
+        if (baselinePath != null) {
+            Map<String, Double> baseline = readBaseline(baselinePath);
+            System.out.println();
+            System.out.println("Compared to " + baselinePath + " (ratio < 1 is faster):");
+            for (Map.Entry<String, Double> result : results.entrySet()) {
+                Double before = baseline.get(result.getKey());
+                if (before != null) {
+                    System.out.printf("%-40s %8.2fx%n", result.getKey(), result.getValue() / before);
+                }
+            }
+        }
+
+        if (writePath != null) {
+            try (PrintWriter out = new PrintWriter(writePath)) {
+                out.println("# name nanosPerOp, written by Bench -write on " + System.getProperty("os.name") + ", "
+                        + Runtime.getRuntime().availableProcessors() + " cpus, java "
+                        + System.getProperty("java.version"));
+                for (Map.Entry<String, Double> result : results.entrySet()) {
+                    out.printf("%s %.1f%n", result.getKey(), result.getValue());
+                }
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Builds a list of generated nicknames.
+     *
+     * @param count the number of nicknames
+     *
+     * @return the nicknames
+     */
+    static ArrayList<String> nicknames(int count) {
+        ArrayList<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            names.add("user" + i);
+        }
+        return names;
+    }
+
+}
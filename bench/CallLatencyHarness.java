@@ -0,0 +1,512 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Measures the mouth-to-ear latency of a call. One talker and a number of
+ * muted listeners run the real VoiceChat on synthetic audio devices, each with
+ * its own MediaSocket, through a MediaRelay on loopback. The talker's capture
+ * is silence with a marker burst at a fixed interval, and the first sample of
+ * every burst holds the number of the marker, which survives the path
+ * unchanged because calls send raw PCM. Each listener reaches the relay over
+ * an emulated link that drops and delays the packets coming from the relay,
+ * and its playback emulates the buffer of a sound card line. A
+ * VoiceChat.Probe sees every frame, so each marker is timed at every stage:
+ *
+ * capture  - spoken until read from the capture (frame buffering)
+ * send     - read until sent to the relay
+ * network  - sent until received by the listener (relay and emulated link)
+ * jitter   - received until handed to the playback (the playback queue)
+ * line     - handed to the playback until heard (line buffer)
+ * total    - spoken until heard
+ *
+ * Usage: java CallLatencyHarness [-listeners 3] [-seconds 20] [-markerMs 250]
+ * [-loss 0.0] [-delayMs 0] [-jitterMs 0] [-lineMs 125] [-port 47000]
+ */
+public class CallLatencyHarness {
+
+    static final AudioFormat FORMAT = VoiceChat.FORMAT;
+    static final int BYTES_PER_SECOND = (int) (FORMAT.getFrameRate() * FORMAT.getFrameSize());
+
+    /** Marker samples are MARKER_BASE plus the marker number modulo MARKER_IDS. */
+    static final int MARKER_BASE = 20000;
+    static final int MARKER_IDS = 10000;
+    static final double BURST_SECONDS = 0.02;
+    static final double BURST_AMPLITUDE = 0.25;
+
+    /** The session and call channel id of the call. */
+    static final int SESSION = 1;
+    static final int CHANNEL = 1;
+
+    static final String[] STAGES = { "capture", "send", "network", "jitter", "line", "total" };
+
+    // configuration
+    static int listeners = 3;
+    static int seconds = 20;
+    static int markerMs = 250;
+    static double loss = 0;
+    static int delayMs = 0;
+    static int jitterMs = 0;
+    static int lineMs = 125;
+    static int port = 47000;
+
+    // the time each marker passed each point, 0 if it did not
+    static AtomicLongArray spoken;
+    static AtomicLongArray captured;
+    static AtomicLongArray sent;
+    static AtomicLongArray[] received;
+    static AtomicLongArray[] played;
+    static AtomicLongArray[] heard;
+
+    static final LongAdder relayed = new LongAdder();
+    static final LongAdder dropped = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "-listeners":
+                listeners = Integer.parseInt(value);
+                break;
+            case "-seconds":
+                seconds = Integer.parseInt(value);
+                break;
+            case "-markerMs":
+                markerMs = Integer.parseInt(value);
+                break;
+            case "-loss":
+                loss = Double.parseDouble(value);
+                break;
+            case "-delayMs":
+                delayMs = Integer.parseInt(value);
+                break;
+            case "-jitterMs":
+                jitterMs = Integer.parseInt(value);
+                break;
+            case "-lineMs":
+                lineMs = Integer.parseInt(value);
+                break;
+            case "-port":
+                port = Integer.parseInt(value);
+                break;
+            default:
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+
+        int markers = seconds * 1000 / markerMs + 1;
+        spoken = new AtomicLongArray(markers);
+        captured = new AtomicLongArray(markers);
+        sent = new AtomicLongArray(markers);
+        received = new AtomicLongArray[listeners];
+        played = new AtomicLongArray[listeners];
+        heard = new AtomicLongArray[listeners];
+
+        // one call channel of one session on a relay, like the server runs it
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        MediaRelay relay = new MediaRelay(CHANNEL + 1);
+        relay.start(new DatagramSocket(port, loopback));
+        InetSocketAddress relayAddress = new InetSocketAddress(loopback, port);
+
+        ArrayList<VoiceChat> calls = new ArrayList<VoiceChat>();
+        ArrayList<MediaSocket> sockets = new ArrayList<MediaSocket>();
+        ArrayList<Link> links = new ArrayList<Link>();
+        for (int l = 0; l < listeners; l++) {
+            received[l] = new AtomicLongArray(markers);
+            played[l] = new AtomicLongArray(markers);
+            heard[l] = new AtomicLongArray(markers);
+            Link link = new Link(loopback, relayAddress);
+            link.start();
+            links.add(link);
+            MediaSocket media = new MediaSocket(link.address()).start();
+            sockets.add(media);
+            LinePlayback line = new LinePlayback(heard[l]);
+            SyntheticAudioDevice device = new SyntheticAudioDevice(
+                    format -> new SyntheticAudioDevice.ToneCapture(format, 0, 0, true), format -> line);
+            VoiceChat call = new VoiceChat(device, media, new ListenerProbe(l));
+            // listeners stay muted, only the talker sends
+            call.setMuted(true);
+            relay.join(CHANNEL, SESSION, l + 2, loopback);
+            call.join(SESSION, CHANNEL, l + 2);
+            calls.add(call);
+        }
+
+        MarkerCapture capture = new MarkerCapture(markers);
+        SyntheticAudioDevice talkerDevice = new SyntheticAudioDevice(format -> capture,
+                format -> new SyntheticAudioDevice.NullPlayback(format, true));
+        MediaSocket talkerMedia = new MediaSocket(relayAddress).start();
+        sockets.add(talkerMedia);
+        VoiceChat talker = new VoiceChat(talkerDevice, talkerMedia, new TalkerProbe());
+        relay.join(CHANNEL, SESSION, 1, loopback);
+        talker.join(SESSION, CHANNEL, 1);
+        calls.add(talker);
+
+        System.out.println("[*] " + listeners + " listeners, " + seconds + "s, marker every " + markerMs
+                + "ms, loss " + loss + ", delay " + delayMs + "ms, jitter " + jitterMs + "ms, line " + lineMs + "ms");
+        Thread.sleep(seconds * 1000L);
+
+        // stop speaking and let the last markers arrive
+        capture.stop();
+        Thread.sleep(delayMs + jitterMs + lineMs + 500L);
+        for (VoiceChat call : calls) {
+            call.leave();
+        }
+        for (MediaSocket media : sockets) {
+            media.close();
+        }
+        for (Link link : links) {
+            link.close();
+        }
+        relay.close();
+
+        report(Math.min(markers, capture.markers()));
+
+    }
+
+    /**
+     * Prints the latency distribution of every stage in milliseconds and the
+     * markers lost on the way.
+     *
+     * @param markers the number of markers spoken
+     */
+    static void report(int markers) {
+
+        Histogram[] stages = new Histogram[STAGES.length];
+        for (int s = 0; s < stages.length; s++) {
+            stages[s] = new Histogram();
+        }
+        long lost = 0;
+
+        for (int m = 0; m < markers; m++) {
+            if (captured.get(m) == 0 || sent.get(m) == 0) {
+                continue;
+            }
+            stages[0].record(captured.get(m) - spoken.get(m));
+            stages[1].record(sent.get(m) - captured.get(m));
+            for (int l = 0; l < listeners; l++) {
+                if (heard[l].get(m) == 0) {
+                    lost++;
+                    continue;
+                }
+                stages[2].record(received[l].get(m) - sent.get(m));
+                stages[3].record(played[l].get(m) - received[l].get(m));
+                stages[4].record(heard[l].get(m) - played[l].get(m));
+                stages[5].record(heard[l].get(m) - spoken.get(m));
+            }
+        }
+
+        System.out.println("[*] markers spoken " + markers + ", lost " + lost + " of " + (long) markers * listeners
+                + ", packets delivered " + relayed.sum() + ", dropped " + dropped.sum());
+        for (int s = 0; s < stages.length; s++) {
+            System.out.printf("%-8s ms %s%n", STAGES[s], stages[s].summary(1000000));
+        }
+
+    }
+
+    /**
+     * Finds the marker at the start of a burst in a frame.
+     *
+     * @param frame  the frame
+     * @param offset the offset of the audio in the frame
+     * @param length the length of the audio
+     *
+     * @return the offset of the marker sample, or -1 if there is none
+     */
+    static int findMarker(byte[] frame, int offset, int length) {
+        for (int at = offset; at + 1 < offset + length; at += 2) {
+            int value = (frame[at] << 8) | (frame[at + 1] & 0xff);
+            if (value >= MARKER_BASE && value < MARKER_BASE + MARKER_IDS) {
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The number of the marker at an offset, for a marker found in a frame.
+     *
+     * @param frame the frame
+     * @param at    the offset of the marker sample
+     * @param count the number of markers
+     *
+     * @return the marker number, or -1 if it is out of range
+     */
+    static int markerAt(byte[] frame, int at, int count) {
+        int value = (frame[at] << 8) | (frame[at + 1] & 0xff);
+        int marker = value - MARKER_BASE;
+        return marker < count ? marker : -1;
+    }
+
+    /**
+     * Records a time for the marker in a frame, if it has one.
+     */
+    static void stamp(AtomicLongArray times, byte[] frame, int offset, int length, long nanos) {
+        int at = findMarker(frame, offset, length);
+        if (at >= 0) {
+            int marker = markerAt(frame, at, times.length());
+            if (marker >= 0) {
+                times.compareAndSet(marker, 0, nanos);
+            }
+        }
+    }
+
+    /**
+     * Times the frames of the talker.
+     */
+    static class TalkerProbe implements VoiceChat.Probe {
+
+        public void captured(byte[] frame, int offset, int length, long nanos) {
+            stamp(captured, frame, offset, length, nanos);
+        }
+
+        public void sent(byte[] frame, int offset, int length, long nanos) {
+            stamp(sent, frame, offset, length, nanos);
+        }
+
+        public void received(byte[] frame, int offset, int length, long nanos) {
+        }
+
+        public void played(byte[] frame, int offset, int length, long nanos) {
+        }
+    }
+
+    /**
+     * Times the frames arriving at one listener.
+     */
+    static class ListenerProbe implements VoiceChat.Probe {
+
+        private final int listener;
+
+        ListenerProbe(int listener) {
+            this.listener = listener;
+        }
+
+        public void captured(byte[] frame, int offset, int length, long nanos) {
+        }
+
+        public void sent(byte[] frame, int offset, int length, long nanos) {
+        }
+
+        public void received(byte[] frame, int offset, int length, long nanos) {
+            stamp(received[listener], frame, offset, length, nanos);
+        }
+
+        public void played(byte[] frame, int offset, int length, long nanos) {
+            stamp(played[listener], frame, offset, length, nanos);
+        }
+    }
+
+    /**
+     * A capture of silence with a numbered burst every markerMs, paced in real
+     * time. A sample is spoken at the time the capture clock reaches it, and
+     * a read returns once the clock has reached the last sample of the read.
+     */
+    static class MarkerCapture implements AudioCapture {
+
+        private final int count;
+        private final long samplesPerMarker = (long) FORMAT.getSampleRate() * markerMs / 1000;
+        private final long burstSamples = (long) (FORMAT.getSampleRate() * BURST_SECONDS);
+        private final double nanosPerSample = 1e9 / FORMAT.getSampleRate();
+        private long start = -1;
+        private long sample;
+        private volatile int next;
+        private volatile boolean stopped;
+
+        MarkerCapture(int count) {
+            this.count = count;
+        }
+
+        /**
+         * The number of markers spoken so far.
+         */
+        int markers() {
+            return next;
+        }
+
+        public AudioFormat getFormat() {
+            return FORMAT;
+        }
+
+        public void start() {
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (stopped) {
+                return -1;
+            }
+            if (start < 0) {
+                start = System.nanoTime();
+            }
+            int samples = len / 2;
+            for (int i = 0; i < samples; i++, sample++) {
+                long phase = sample % samplesPerMarker;
+                double value = 0;
+                if (phase == 0 && next < count) {
+                    int marker = next++;
+                    spoken.set(marker, start + (long) (sample * nanosPerSample));
+                    int id = MARKER_BASE + marker % MARKER_IDS;
+                    b[off + 2 * i] = (byte) (id >> 8);
+                    b[off + 2 * i + 1] = (byte) id;
+                    continue;
+                } else if (phase < burstSamples) {
+                    value = BURST_AMPLITUDE * Math.sin(2 * Math.PI * 1000 * phase / FORMAT.getSampleRate());
+                }
+                SyntheticAudioDevice.writeSample(FORMAT, b, off + 2 * i, value);
+            }
+            // the data is ready once its last sample has been spoken
+            long due = start + (long) (sample * nanosPerSample);
+            for (long now = System.nanoTime(); due - now > 0; now = System.nanoTime()) {
+                LockSupport.parkNanos(due - now);
+            }
+            return stopped ? -1 : samples * 2;
+        }
+
+        public void stop() {
+            stopped = true;
+        }
+
+        public void close() {
+            stopped = true;
+        }
+    }
+
+    /**
+     * A playback that emulates a sound card line: written data queues behind
+     * what is still playing, plays at the sample rate, and a write blocks while
+     * more than lineMs is queued. The time a marker is heard is the time the
+     * line clock reaches its sample.
+     */
+    static class LinePlayback implements AudioPlayback {
+
+        private final AtomicLongArray heard;
+        private final double nanosPerByte = 1e9 / BYTES_PER_SECOND;
+        private long playedUntil;
+
+        LinePlayback(AtomicLongArray heard) {
+            this.heard = heard;
+        }
+
+        public AudioFormat getFormat() {
+            return FORMAT;
+        }
+
+        public void start() {
+        }
+
+        public int write(byte[] b, int off, int len) {
+            long now = System.nanoTime();
+            // an empty line starts playing as soon as data arrives
+            long begin = playedUntil - now > 0 ? playedUntil : now;
+            int at = findMarker(b, off, len);
+            if (at >= 0) {
+                int marker = markerAt(b, at, heard.length());
+                if (marker >= 0) {
+                    heard.compareAndSet(marker, 0, begin + (long) ((at - off) * nanosPerByte));
+                }
+            }
+            playedUntil = begin + (long) (len * nanosPerByte);
+            // block while more than the line buffer is queued
+            long due = playedUntil - lineMs * 1000000L;
+            for (now = System.nanoTime(); due - now > 0; now = System.nanoTime()) {
+                LockSupport.parkNanos(due - now);
+            }
+            return len;
+        }
+
+        public void drain() {
+        }
+
+        public void stop() {
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * An emulated link between a listener and the relay. Packets from the
+     * listener go straight to the relay, packets from the relay are dropped
+     * with probability loss or passed on after the delay plus a uniformly
+     * random jitter, so they can arrive reordered.
+     */
+    static class Link implements Runnable {
+
+        private final DatagramSocket socket;
+        private final SocketAddress relay;
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        private volatile SocketAddress client;
+
+        Link(InetAddress address, SocketAddress relay) throws Exception {
+            this.socket = new DatagramSocket(0, address);
+            this.relay = relay;
+        }
+
+        SocketAddress address() {
+            return socket.getLocalSocketAddress();
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "link");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run() {
+            byte[] buffer = new byte[MediaSocket.MAX_DATAGRAM];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    if (!packet.getSocketAddress().equals(relay)) {
+                        client = packet.getSocketAddress();
+                        packet.setSocketAddress(relay);
+                        socket.send(packet);
+                        continue;
+                    }
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    if (client == null || random.nextDouble() < loss) {
+                        dropped.increment();
+                        continue;
+                    }
+                    DatagramPacket copy = new DatagramPacket(packet.getData().clone(), packet.getLength(), client);
+                    long delay = delayMs * 1000L + (jitterMs > 0 ? random.nextLong(jitterMs * 1000L) : 0);
+                    Runnable send = () -> {
+                        try {
+                            socket.send(copy);
+                            relayed.increment();
+                        } catch (Exception e) {
+                            // the link is closing
+                        }
+                    };
+                    if (delay == 0) {
+                        send.run();
+                    } else {
+                        timer.schedule(send, delay, TimeUnit.MICROSECONDS);
+                    }
+                }
+            } catch (Exception e) {
+                // the socket was closed
+            }
+        }
+
+        void close() {
+            timer.shutdownNow();
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * broadcastSet fan-out of a chat message to 10, 100 and 1000 recipients whose
+ * connections write into in-memory sinks. Every recipient has a writer
+ * thread, so with fewer than MIN_CPUS_1000 cpus the 1000 recipient case
+ * measures the scheduler rather than the fan-out, and is left out.
+ */
+public class FanoutBench {
+
+    /** The cpus needed to run the 1000 recipient case. */
+    static final int MIN_CPUS_1000 = 4;
+
+    static void run() throws Exception {
+
+        EventLog log = new EventLog(1024, null, 0, 0);
+        ServerCore server = new ServerCore(log);
+
+        // one real connection for the manager doing the fan-out
+        ServerSocket ss = new ServerSocket(0);
+        Socket client = new Socket("localhost", ss.getLocalPort());
+        new ObjectOutputStream(client.getOutputStream()).flush();
+        ClientManager manager = new ClientManager(ss.accept(), server);
+
+        // recipients write into sinks that discard everything
+        ArrayList<Integer> all = new ArrayList<Integer>();
+        for (String nickname : Bench.nicknames(1000)) {
+            PacketWriter writer = new PacketWriter(OutputStream.nullOutputStream()).start("sink-" + nickname);
+            AddressWrapper connection = new AddressWrapper(writer, InetAddress.getLoopbackAddress());
+            int id = server.ids.id(nickname);
+            server.ids.connect(id, connection);
+            server.userList.put(nickname, connection);
+            all.add(id);
+        }
+
+        Packet packet = new Packet("message", null, 7, "hello everyone, how is it going?", false);
+        packet.user = all.get(0);
+
+        for (int size : new int[] { 10, 100, 1000 }) {
+            if (size == 1000 && Runtime.getRuntime().availableProcessors() < MIN_CPUS_1000) {
+                System.out.println("fanout.broadcastSet.1000 skipped, it needs " + MIN_CPUS_1000 + " cpus");
+                continue;
+            }
+            int[] users = new int[size];
+            for (int i = 0; i < size; i++) {
+                users[i] = all.get(i);
+            }
+            Bench.measure("fanout.broadcastSet." + size, () -> {
+                manager.broadcastSet(packet, users);
+                return users.length;
+            });
+            // let the writers catch up before the next size
+            Thread.sleep(200);
+        }
+
+        client.close();
+        ss.close();
+    }
+
+}
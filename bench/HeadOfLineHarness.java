@@ -0,0 +1,168 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long chat messages wait behind a voice note on one connection.
+ * A sender queues a large voice note on a PacketWriter and then a chat
+ * message at a fixed interval, over loopback to a reader that reads through a
+ * PacketInputStream at the rate of an emulated link. Each message carries the
+ * time it was queued, and the reader records its delivery latency. The run is
+ * done twice: with the voice note written whole, as one object stream did
+ * before, and in chunks behind the chat messages.
+ *
+ * The writer and the reader are the ones both sides of a client connection
+ * use, so the result holds for uploads and downloads alike.
+ *
+ * Usage: java HeadOfLineHarness [-voiceNoteBytes 4000000] [-linkKbps 16000]
+ * [-messages 40] [-intervalMs 50] [-port 47100]
+ */
+public class HeadOfLineHarness {
+
+    static int voiceNoteBytes = 4_000_000;
+    static int linkKbps = 16_000;
+    static int messages = 40;
+    static int intervalMs = 50;
+    static int port = 47100;
+
+    /** The socket buffers on both ends, small so the link and not the kernel holds the backlog. */
+    static final int SOCKET_BUFFER = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "-voiceNoteBytes":
+                    voiceNoteBytes = value;
+                    break;
+                case "-linkKbps":
+                    linkKbps = value;
+                    break;
+                case "-messages":
+                    messages = value;
+                    break;
+                case "-intervalMs":
+                    intervalMs = value;
+                    break;
+                case "-port":
+                    port = value;
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        System.out.printf("voice note %d bytes over a %d kbit/s link, %d messages every %d ms%n", voiceNoteBytes,
+                linkKbps, messages, intervalMs);
+
+        run("one stream", Integer.MAX_VALUE);
+        run("prioritised, " + PacketWriter.CHUNK_BYTES + " byte chunks", PacketWriter.CHUNK_BYTES);
+    }
+
+    /**
+     * Sends a voice note and the messages behind it and prints the delivery
+     * latency of the messages and of the voice note.
+     *
+     * @param label      the name of the run
+     * @param chunkBytes the chunk size of the writer
+     */
+    static void run(String label, int chunkBytes) throws Exception {
+
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReceiveBufferSize(SOCKET_BUFFER);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+            Socket sender = new Socket();
+            sender.setSendBufferSize(SOCKET_BUFFER);
+            sender.setTcpNoDelay(true);
+            sender.connect(server.getLocalSocketAddress());
+            Socket receiver = server.accept();
+
+            PacketWriter writer = new PacketWriter(sender.getOutputStream(), PacketWriter.FLUSH_BYTES,
+                    PacketWriter.FLUSH_LINGER_MICROS, chunkBytes).start("harness-writer");
+            PacketInputStream in = new PacketInputStream(new LinkStream(receiver.getInputStream(), linkKbps), null);
+
+            Histogram latency = new Histogram();
+            long start = System.nanoTime();
+            writer.send(new Packet("voicenote", null, 1, new byte[voiceNoteBytes], false));
+            Thread chat = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        writer.send(new Packet("message", null, 1, Long.toString(System.nanoTime()), false));
+                        Thread.sleep(intervalMs);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }, "harness-chat");
+            chat.start();
+
+            long noteNanos = -1;
+            int received = 0;
+            while (received < messages || noteNanos < 0) {
+                Packet packet = in.readPacket();
+                long now = System.nanoTime();
+                if (packet.voiceNote != null) {
+                    noteNanos = now - start;
+                } else {
+                    latency.record(now - Long.parseLong(packet.messageData));
+                    received++;
+                }
+            }
+
+            System.out.println();
+            System.out.println(label);
+            System.out.printf("  message delivery ms: p50 %.1f  p99 %.1f  p100 %.1f%n", latency.percentile(50) / 1e6,
+                    latency.percentile(99) / 1e6, latency.percentile(100) / 1e6);
+            System.out.printf("  voice note delivered after %.1f ms%n", noteNanos / 1e6);
+
+            writer.close();
+            sender.close();
+            receiver.close();
+        }
+
+    }
+
+    /**
+     * Reads no faster than an emulated link of a given rate.
+     */
+    static class LinkStream extends FilterInputStream {
+
+        static final long BURST_NANOS = 10_000_000;
+
+        private final double nanosPerByte;
+        private long next = System.nanoTime();
+
+        LinkStream(InputStream in, int kbps) {
+            super(in);
+            this.nanosPerByte = 8e6 / kbps;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, Math.min(len, 4096));
+            if (n > 0) {
+                // a read that overslept leaves credit for the next ones, up to a burst of 10 ms
+                next = Math.max(next, System.nanoTime() - BURST_NANOS) + (long) (n * nanosPerByte);
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            return n;
+        }
+    }
+
+}
@@ -0,0 +1,522 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A headless load generator that speaks the real client protocol. It connects
+ * a number of simulated users to a server, groups them into group sessions and
+ * lets each of them pick actions from a weighted scenario mix with exponential
+ * think times in between. Messages and voice notes carry their send time, so
+ * the receiving users can record the delivery latency. Throughput is printed
+ * while running, and the latency percentiles at the end.
+ *
+ * Usage: java LoadGenerator [-host localhost] [-port 2560] [-users 1000]
+ * [-groupSize 10] [-seconds 60] [-thinkMillis 500] [-rampMillis 2]
+ * [-voiceNoteBytes 16000] [-threads 8]
+ * [-mix message=70,voicenote=5,call=5,calllist=5,getUserList=5,session=5,invite=5]
+ */
+public class LoadGenerator {
+
+    /** Prefix of the messages sent by the generator, followed by the send time. */
+    static final String STAMP = "lg:";
+
+    // configuration
+    static String host = "localhost";
+    static int port = 2560;
+    static int users = 1000;
+    static int groupSize = 10;
+    static int seconds = 60;
+    static int thinkMillis = 500;
+    static int rampMillis = 2;
+    static int voiceNoteBytes = 16000;
+    static int threads = 8;
+    static final LinkedHashMap<String, Integer> mix = new LinkedHashMap<String, Integer>();
+
+    // results
+    static final Histogram messageLatency = new Histogram();
+    static final Histogram voiceNoteLatency = new Histogram();
+    static final LinkedHashMap<String, LongAdder> sent = new LinkedHashMap<String, LongAdder>();
+    static final LongAdder delivered = new LongAdder();
+    static final LongAdder errors = new LongAdder();
+
+    static ScheduledExecutorService scheduler;
+    static final CopyOnWriteArrayList<SimUser> online = new CopyOnWriteArrayList<SimUser>();
+    static volatile boolean running = true;
+
+    /**
+     * One simulated user with its connection and the sessions it is part of.
+     */
+    static class SimUser {
+
+        final String nickname;
+
+        /** The id the server gave the user at register. */
+        volatile int id;
+
+        Socket socket;
+        PacketWriter out;
+        PacketInputStream in;
+
+        final CopyOnWriteArrayList<Integer> groupSessions = new CopyOnWriteArrayList<Integer>();
+        final CopyOnWriteArrayList<Integer> privateSessions = new CopyOnWriteArrayList<Integer>();
+
+        /** Completed by the reader thread when the reply to "session" arrives. */
+        volatile CompletableFuture<Integer> pendingSession;
+
+        /** The session and channel this user is in a call on, or -1. */
+        int callSession = -1;
+        int callChannel;
+
+        SimUser(String nickname) {
+            this.nickname = nickname;
+        }
+
+        /**
+         * Connects and registers the user.
+         *
+         * @return true if the server accepted the nickname
+         */
+        boolean connect() throws Exception {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new PacketWriter(socket.getOutputStream()).start("writer-" + nickname);
+            in = new PacketInputStream(socket.getInputStream(), null);
+
+            send(new Packet("register", nickname, null));
+            while (true) {
+                Packet reply = in.readPacket();
+                if (reply.type.equals("success")) {
+                    id = reply.user;
+                    break;
+                }
+                if (reply.type.equals("error")) {
+                    return false;
+                }
+            }
+
+            Thread reader = new Thread(this::listen, "reader-" + nickname);
+            reader.setDaemon(true);
+            reader.start();
+            return true;
+        }
+
+        /**
+         * Queues a packet on a writer like the real client's, which sends
+         * voice notes in chunks behind the other packets.
+         *
+         * @param packet the packet to send
+         *
+         * @throws IOException if the connection is closed
+         */
+        void send(Packet packet) throws IOException {
+            if (out.isClosed()) {
+                throw new IOException("connection closed");
+            }
+            out.send(packet);
+        }
+
+        /**
+         * Reads packets from the server until the connection closes.
+         */
+        void listen() {
+            try {
+                while (true) {
+                    Packet packet = in.readPacket();
+                    long now = System.nanoTime();
+
+                    switch (packet.type) {
+                        case "session":
+                            CompletableFuture<Integer> pending = pendingSession;
+                            if (pending != null) {
+                                pending.complete(packet.sessionId);
+                            }
+                            break;
+                        case "notify":
+                            groupSessions.addIfAbsent(Integer.parseInt(packet.stringData));
+                            break;
+                        case "notifyPrivate":
+                            privateSessions.addIfAbsent(Integer.parseInt(packet.stringData));
+                            break;
+                        case "disconnectSession":
+                            groupSessions.remove(packet.sessionId);
+                            privateSessions.remove(packet.sessionId);
+                            break;
+                        case "message":
+                            if (packet.messageData != null && packet.messageData.startsWith(STAMP)
+                                    && packet.user != id) {
+                                int end = packet.messageData.indexOf(' ');
+                                long stamp = Long.parseLong(packet.messageData.substring(STAMP.length(), end));
+                                messageLatency.record(now - stamp);
+                                delivered.increment();
+                            }
+                            break;
+                        case "voicenote":
+                            if (packet.voiceNote != null && packet.voiceNote.length >= 8) {
+                                voiceNoteLatency.record(now - ByteBuffer.wrap(packet.voiceNote).getLong());
+                                delivered.increment();
+                            }
+                            break;
+                        case "error":
+                            errors.increment();
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (Exception e) {
+                // connection closed
+            }
+        }
+
+        /**
+         * Performs one action of the scenario mix.
+         *
+         * @param action the name of the action
+         */
+        void act(String action) throws IOException {
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Integer session = pickSession(random);
+
+            switch (action) {
+                case "message":
+                    if (session == null) {
+                        return;
+                    }
+                    send(new Packet("message", nickname, session, STAMP + System.nanoTime() + " load test message",
+                            privateSessions.contains(session)));
+                    break;
+                case "voicenote":
+                    if (session == null) {
+                        return;
+                    }
+                    byte[] note = new byte[Math.max(8, voiceNoteBytes)];
+                    ByteBuffer.wrap(note).putLong(System.nanoTime());
+                    send(new Packet("voicenote", nickname, session, note, privateSessions.contains(session)));
+                    break;
+                case "call":
+                    if (callSession >= 0) {
+                        send(new Packet("call", callSession, true, privateSessions.contains(callSession), 0,
+                                new ArrayList<InetAddress>(), callChannel));
+                        callSession = -1;
+                    } else if (session != null) {
+                        callSession = session;
+                        callChannel = random.nextInt(4);
+                        send(new Packet("call", session, false, privateSessions.contains(session), 0,
+                                new ArrayList<InetAddress>(), callChannel));
+                    } else {
+                        return;
+                    }
+                    break;
+                case "calllist":
+                    if (session == null) {
+                        return;
+                    }
+                    send(new Packet("calllist", privateSessions.contains(session), session, null));
+                    break;
+                case "getUserList":
+                    send(new Packet("getUserList", null, null));
+                    break;
+                case "session":
+                    // private session with a random online user
+                    SimUser other = online.get(random.nextInt(online.size()));
+                    if (other == this) {
+                        return;
+                    }
+                    createSession("", created -> {
+                        try {
+                            send(invite(true, created, other));
+                        } catch (IOException e) {
+                            errors.increment();
+                        }
+                    });
+                    break;
+                case "invite":
+                    if (groupSessions.isEmpty()) {
+                        return;
+                    }
+                    SimUser invitee = online.get(random.nextInt(online.size()));
+                    send(invite(false, groupSessions.get(random.nextInt(groupSessions.size())), invitee));
+                    break;
+                default:
+                    return;
+            }
+
+            sent.get(action).increment();
+        }
+
+        /**
+         * Creates a session and calls back with its id once the server replies.
+         *
+         * @param kind    "Group" for a group session, anything else is private
+         * @param created called with the new session id
+         */
+        void createSession(String kind, java.util.function.IntConsumer created) throws IOException {
+            CompletableFuture<Integer> pending = new CompletableFuture<Integer>();
+            pendingSession = pending;
+            pending.orTimeout(10, TimeUnit.SECONDS).whenComplete((id, error) -> {
+                if (error != null) {
+                    errors.increment();
+                } else {
+                    created.accept(id);
+                }
+            });
+            send(new Packet("session", kind, new ArrayList<String>()));
+        }
+
+        /**
+         * Builds an invite, which names the invitee by its user id.
+         *
+         * @param isPrivate whether the session is private
+         * @param session   the session id
+         * @param invitee   the user to invite
+         *
+         * @return the packet
+         */
+        static Packet invite(boolean isPrivate, int session, SimUser invitee) {
+            Packet packet = new Packet("invite", isPrivate, session, null);
+            packet.user = invitee.id;
+            return packet;
+        }
+
+        /**
+         * Picks one of the sessions this user is in.
+         *
+         * @param random the random source
+         *
+         * @return a session id, or null if the user is in none
+         */
+        Integer pickSession(ThreadLocalRandom random) {
+            int groups = groupSessions.size();
+            int privates = privateSessions.size();
+            if (groups + privates == 0) {
+                return null;
+            }
+            int pick = random.nextInt(groups + privates);
+            try {
+                return pick < groups ? groupSessions.get(pick) : privateSessions.get(pick - groups);
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Schedules the next action after an exponentially distributed think
+         * time.
+         */
+        void scheduleNext() {
+            if (!running) {
+                return;
+            }
+            long think = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * thinkMillis * 1000);
+            scheduler.schedule(() -> {
+                try {
+                    act(pickAction());
+                } catch (IOException e) {
+                    errors.increment();
+                    return;
+                }
+                scheduleNext();
+            }, think, TimeUnit.MICROSECONDS);
+        }
+
+        /**
+         * Disconnects the user.
+         */
+        void disconnect() {
+            try {
+                send(new Packet("disconnect", null, null));
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Picks an action from the scenario mix.
+     *
+     * @return the name of the action
+     */
+    static String pickAction() {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        return "message";
+    }
+
+    /**
+     * Parses the command line.
+     *
+     * @param args the command line arguments
+     */
+    static void configure(String[] args) {
+
+        String mixSpec = "message=70,voicenote=5,call=5,calllist=5,getUserList=5,session=5,invite=5";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-host":
+                    host = value;
+                    break;
+                case "-port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "-users":
+                    users = Integer.parseInt(value);
+                    break;
+                case "-groupSize":
+                    groupSize = Integer.parseInt(value);
+                    break;
+                case "-seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "-thinkMillis":
+                    thinkMillis = Integer.parseInt(value);
+                    break;
+                case "-rampMillis":
+                    rampMillis = Integer.parseInt(value);
+                    break;
+                case "-voiceNoteBytes":
+                    voiceNoteBytes = Integer.parseInt(value);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "-mix":
+                    mixSpec = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        for (String entry : mixSpec.split(",")) {
+            String[] parts = entry.split("=");
+            mix.put(parts[0], Integer.parseInt(parts[1]));
+            sent.put(parts[0], new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        configure(args);
+        scheduler = Executors.newScheduledThreadPool(threads);
+        String run = Long.toString(System.currentTimeMillis() % 100000, 36);
+
+        System.out.println("[+] Connecting " + users + " users to " + host + ":" + port + " mix=" + mix);
+
+        // connect and register everybody
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            SimUser user = new SimUser("lg" + run + "_" + i);
+            if (user.connect()) {
+                online.add(user);
+            } else {
+                errors.increment();
+            }
+            if (rampMillis > 0) {
+                Thread.sleep(rampMillis);
+            }
+        }
+        System.out.printf("[+] %d users registered in %.1f s%n", online.size(),
+                (System.nanoTime() - connectStart) / 1e9);
+
+        // form the group sessions, the first user of each group creates it
+        for (int g = 0; g < online.size(); g += groupSize) {
+            SimUser leader = online.get(g);
+            ArrayList<SimUser> members = new ArrayList<SimUser>(online.subList(g + 1,
+                    Math.min(online.size(), g + groupSize)));
+            leader.createSession("Group", id -> {
+                for (SimUser member : members) {
+                    try {
+                        leader.send(SimUser.invite(false, id, member));
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+            });
+        }
+        Thread.sleep(1000);
+
+        // run the scenario
+        System.out.println("[+] Running for " + seconds + " s");
+        messageLatency.reset();
+        voiceNoteLatency.reset();
+        for (SimUser user : online) {
+            user.scheduleNext();
+        }
+
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for (int s = 5; s <= seconds; s += 5) {
+            Thread.sleep(5000);
+            long totalSent = totalSent();
+            long totalDelivered = delivered.sum();
+            System.out.printf("[%3ds] sent %8.0f/s  delivered %9.0f/s  msg p99 %6.2f ms  errors %d%n", s,
+                    (totalSent - lastSent) / 5.0, (totalDelivered - lastDelivered) / 5.0,
+                    messageLatency.percentile(99) / 1e6, errors.sum());
+            lastSent = totalSent;
+            lastDelivered = totalDelivered;
+        }
+        running = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        Thread.sleep(500);
+
+        // report
+        System.out.println();
+        System.out.println("Sent per action: " + Arrays.toString(sent.entrySet().toArray()));
+        System.out.printf("Throughput: %.0f actions/s, %.0f deliveries/s, %d errors%n", totalSent() / elapsed,
+                delivered.sum() / elapsed, errors.sum());
+        System.out.printf("Message delivery ms:    p50 %.2f  p99 %.2f  p999 %.2f  (n=%d)%n",
+                messageLatency.percentile(50) / 1e6, messageLatency.percentile(99) / 1e6,
+                messageLatency.percentile(99.9) / 1e6, messageLatency.count());
+        System.out.printf("Voice note delivery ms: p50 %.2f  p99 %.2f  p999 %.2f  (n=%d)%n",
+                voiceNoteLatency.percentile(50) / 1e6, voiceNoteLatency.percentile(99) / 1e6,
+                voiceNoteLatency.percentile(99.9) / 1e6, voiceNoteLatency.count());
+
+        for (SimUser user : online) {
+            user.disconnect();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Total number of actions sent.
+     *
+     * @return the action count
+     */
+    static long totalSent() {
+        long total = 0;
+        for (LongAdder count : sent.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+}
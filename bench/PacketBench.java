@@ -0,0 +1,97 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/**
+ * Serialization and deserialization of every packet type, the way a
+ * connection writes them: the handle table is reset before each packet, so
+ * every packet carries its class descriptors.
+ */
+public class PacketBench {
+
+    static void run() throws Exception {
+
+        ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+        for (int i = 0; i < 4; i++) {
+            addresses.add(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }));
+        }
+        int[][] calls = new int[4][];
+        for (int i = 0; i < 4; i++) {
+            calls[i] = ids(i * 2);
+        }
+        Packet userList = new Packet("userList", null, null);
+        userList.users = ids(100);
+        userList.named = userList.users;
+        userList.names = Bench.nicknames(100).toArray(new String[0]);
+        Packet sessionUsers = new Packet("sessionUsers", "7", null);
+        sessionUsers.users = ids(20);
+        Packet invite = new Packet("invite", false, 7, null);
+        invite.user = 42;
+        Packet message = new Packet("message", null, 7, "hello everyone, how is it going?", false);
+        message.user = 42;
+        Packet voiceNote = new Packet("voicenote", null, 7, new byte[16 * 1024], false);
+        voiceNote.user = 42;
+
+        bench("register", new Packet("register", "user42", null));
+        bench("userList100", userList);
+        bench("sessionUsers20", sessionUsers);
+        bench("invite", invite);
+        bench("message", message);
+        bench("voicenote16k", voiceNote);
+        bench("call", new Packet("call", 7, false, false, 2561, addresses, 1));
+        bench("calllist", new Packet("calllist", 7, false, calls));
+
+    }
+
+    /**
+     * The user ids 1 to count.
+     *
+     * @param count the number of users
+     *
+     * @return the ids
+     */
+    static int[] ids(int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * Measures writing and reading one packet.
+     *
+     * @param name   the name of the packet
+     * @param packet the packet
+     */
+    static void bench(String name, Packet packet) throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        Bench.measure("packet.write." + name, () -> {
+            bytes.reset();
+            out.reset();
+            out.writeObject(packet);
+            out.flush();
+            return bytes.size();
+        });
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        ObjectOutputStream frameOut = new ObjectOutputStream(frame);
+        frameOut.writeObject(packet);
+        frameOut.flush();
+        byte[] data = frame.toByteArray();
+
+        Bench.measure("packet.read." + name, () -> {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            Packet read = (Packet) in.readObject();
+            return read.type.length();
+        });
+
+    }
+
+}
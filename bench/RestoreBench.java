@@ -0,0 +1,106 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Restoring 10000 and 100000 sessions of five members each from a snapshot
+ * on disk: loading the snapshot alone, and the whole restore of a server,
+ * which also records the memberships and reserves the call channels. One in
+ * ten sessions is a group session, the first of them get the call channels
+ * there are. Every run restores into an empty server, though the user ids are
+ * only new to the first run.
+ */
+public class RestoreBench {
+
+    static void run() throws Exception {
+
+        for (int size : new int[] { 10000, 100000 }) {
+
+            File dir = Files.createTempDirectory("restore-bench").toFile();
+            snapshot(dir, size);
+
+            SessionStore[] store = new SessionStore[1];
+            Bench.measure("restore.load." + size, () -> {
+                int count = store[0].load().size();
+                store[0].close();
+                return count;
+            }, () -> {
+                clean(dir);
+                store[0] = new SessionStore(dir, new UserIds());
+                return 0;
+            });
+
+            ServerCore server = new ServerCore(new EventLog(1024, null, 0, 0), dir);
+            Bench.measure("restore.restore." + size, () -> {
+                server.restore();
+                server.store.close();
+                return server.sessions.size();
+            }, () -> {
+                for (Map.Entry<Integer, SessionRecord> entry : server.sessions.entrySet()) {
+                    server.leftAll(entry.getKey(), entry.getValue());
+                    if (entry.getValue().hasChannels()) {
+                        server.callChannels.release(entry.getValue().channel);
+                    }
+                }
+                server.sessions.clear();
+                server.resume.clear();
+                clean(dir);
+                return 0;
+            });
+
+            clean(dir);
+            new File(dir, "sessions.snap").delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Writes a snapshot of generated sessions, the way the server does.
+     *
+     * @param dir  the state directory
+     * @param size the number of sessions
+     */
+    private static void snapshot(File dir, int size) throws Exception {
+
+        UserIds ids = new UserIds();
+        ArrayList<String> nicknames = Bench.nicknames(size);
+        SessionStore store = new SessionStore(dir, ids);
+        int channels = ServerCore.CALL_CHANNEL_IDS / ServerCore.CALL_CHANNELS;
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(chunk);
+        for (int i = 0; i < size; i++) {
+            boolean group = i % 10 == 0;
+            int channel = group && i / 10 < channels ? 1 + i / 10 * ServerCore.CALL_CHANNELS : -1;
+            SessionRecord session = new SessionRecord(channel, group);
+            // every user is in five sessions
+            for (int j = 0; j < 5; j++) {
+                session.add(ids.id(nicknames.get((i + j * 7919) % size)));
+            }
+            session.version = session.size();
+            store.write(out, i, session);
+        }
+
+        ArrayList<ByteArrayOutputStream> chunks = new ArrayList<ByteArrayOutputStream>();
+        chunks.add(chunk);
+        store.writeSnapshot(0, size, chunks);
+    }
+
+    /**
+     * Deletes the log segments a load opened, so the next one starts from the
+     * snapshot alone.
+     *
+     * @param dir the state directory
+     */
+    private static void clean(File dir) {
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("sessions.log.")) {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * A soak test of the heap a connection keeps for the packets it sent. A number
+ * of connections write a mix of chat messages, user lists and voice notes into
+ * sinks that discard the bytes, and the retained heap per connection is sampled
+ * after a full GC. A PacketOutputStream resets its handle table on its budget,
+ * so the heap stays flat however many packets are sent; a plain
+ * ObjectOutputStream that is never reset, as the client used, keeps every
+ * packet and is stopped once it has taken half the heap.
+ *
+ * Exits with status 1 if the bounded stream's heap per connection peaks higher
+ * in the second half of the run than in the first.
+ *
+ * Usage: java StreamSoak [-packets 5000000] [-connections 100] [-samples 10]
+ * [-voiceNoteBytes 16000] [-voiceNoteEvery 100]
+ */
+public class StreamSoak {
+
+    static int packets = 5_000_000;
+    static int connections = 100;
+    static int samples = 10;
+    static int voiceNoteBytes = 16000;
+    static int voiceNoteEvery = 100;
+
+    /** Growth of the peak over the second half of a run, in bytes per connection, still counted as flat. */
+    static final long FLAT_BYTES = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "-packets":
+                    packets = value;
+                    break;
+                case "-connections":
+                    connections = value;
+                    break;
+                case "-samples":
+                    samples = value;
+                    break;
+                case "-voiceNoteBytes":
+                    voiceNoteBytes = value;
+                    break;
+                case "-voiceNoteEvery":
+                    voiceNoteEvery = value;
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        System.out.printf("packets=%d connections=%d voiceNoteBytes=%d every %d packets, reset budget %d bytes or %d packets%n",
+                packets, connections, voiceNoteBytes, voiceNoteEvery, PacketOutputStream.RESET_BYTES,
+                PacketOutputStream.RESET_PACKETS);
+
+        long bounded = run("PacketOutputStream", true);
+        run("ObjectOutputStream", false);
+
+        if (bounded > FLAT_BYTES) {
+            System.out.printf("FAIL: heap per connection peaked %d bytes higher in the second half%n", bounded);
+            System.exit(1);
+        }
+        System.out.printf("OK: heap per connection stayed flat, peaking %d bytes higher in the second half%n", bounded);
+    }
+
+    /**
+     * Sends the packets round robin over fresh connections and prints the
+     * retained heap per connection at each sample.
+     *
+     * @param label   the name of the run
+     * @param bounded whether to write through a PacketOutputStream
+     *
+     * @return how much higher the heap per connection peaked in the second
+     *         half of the run than in the first, in bytes
+     */
+    static long run(String label, boolean bounded) throws IOException {
+
+        ArrayList<Object> streams = new ArrayList<Object>();
+        long base = retainedHeap();
+        for (int i = 0; i < connections; i++) {
+            OutputStream sink = OutputStream.nullOutputStream();
+            streams.add(bounded ? new PacketOutputStream(sink) : new ObjectOutputStream(sink));
+        }
+
+        System.out.println();
+        System.out.println(label);
+        System.out.printf("%12s %18s%n", "packets", "heap/connection");
+
+        long limit = Runtime.getRuntime().maxMemory() / 2;
+        long firstPeak = 0;
+        long secondPeak = 0;
+        int every = Math.max(1, packets / samples);
+        for (int sent = 1; sent <= packets; sent++) {
+            // every connection gets the same mix
+            Object stream = streams.get(sent % connections);
+            Packet packet = packet(sent / connections + 1);
+            if (bounded) {
+                ((PacketOutputStream) stream).writeObject(packet);
+            } else {
+                ((ObjectOutputStream) stream).writeObject(packet);
+            }
+
+            if (sent % every == 0) {
+                long heap = retainedHeap() - base;
+                long perConnection = heap / connections;
+                System.out.printf("%12d %18d%n", sent, perConnection);
+                if (sent <= packets / 2) {
+                    firstPeak = Math.max(firstPeak, perConnection);
+                } else {
+                    secondPeak = Math.max(secondPeak, perConnection);
+                }
+                if (heap > limit) {
+                    System.out.println("stopped, the streams hold half the heap");
+                    break;
+                }
+            }
+        }
+        streams.clear();
+        return secondPeak - firstPeak;
+    }
+
+    /**
+     * Builds the packet a connection sends as the given one, a fresh object
+     * every time as the server and client build them.
+     *
+     * @param sent the number of the packet on its connection
+     *
+     * @return the packet
+     */
+    static Packet packet(int sent) {
+        if (sent % voiceNoteEvery == 0) {
+            Packet packet = new Packet("voicenote", null, 7, new byte[voiceNoteBytes], false);
+            packet.user = sent % 1000 + 1;
+            return packet;
+        }
+        if (sent % 50 == 0) {
+            Packet packet = new Packet("presence", null, null);
+            packet.users = new int[] { sent % 1000 + 1 };
+            packet.left = new int[0];
+            packet.version = sent;
+            return packet;
+        }
+        Packet packet = new Packet("message", null, 7, "message " + sent + ", how is it going?", false);
+        packet.user = sent % 1000 + 1;
+        return packet;
+    }
+
+    /**
+     * The heap still in use after a full collection.
+     *
+     * @return the bytes in use
+     */
+    static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+}
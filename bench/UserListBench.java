@@ -0,0 +1,59 @@
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sending the userList snapshot that a user gets on register, built by the
+ * presence feed and written by a PacketWriter into a sink, for 100, 1000 and
+ * 10000 connected users, against serializing the presence delta that every
+ * other user gets instead.
+ */
+public class UserListBench {
+
+    static void run() throws Exception {
+
+        for (int size : new int[] { 100, 1000, 10000 }) {
+
+            ConcurrentHashMap<String, AddressWrapper> userList = new ConcurrentHashMap<String, AddressWrapper>();
+            for (String nickname : Bench.nicknames(size)) {
+                userList.put(nickname, new AddressWrapper(null, InetAddress.getLoopbackAddress()));
+            }
+            PresenceFeed feed = new PresenceFeed(userList, new ConcurrentHashMap<String, Integer>(), new UserIds());
+
+            // a new connection has not sent the names yet, so each snapshot starts from a reset stream
+            PacketWriter writer = new PacketWriter(OutputStream.nullOutputStream()).start("sink-" + size);
+            Bench.measure("userList.snapshotWrite." + size, () -> {
+                writer.reset();
+                feed.sendSnapshot(writer);
+                while (writer.queuedBytes() > 0) {
+                    Thread.yield();
+                }
+                return userList.size();
+            });
+            writer.close();
+        }
+
+        // a debounced login burst of 10 users
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        int[] joined = PacketBench.ids(10);
+        String[] names = Bench.nicknames(10).toArray(new String[0]);
+        Bench.measure("presence.deltaWrite.10", () -> {
+            Packet packet = new Packet("presence", null, null);
+            packet.users = joined;
+            packet.named = joined;
+            packet.names = names;
+            packet.left = new int[0];
+            packet.version = 1;
+            bytes.reset();
+            out.reset();
+            out.writeObject(packet);
+            out.flush();
+            return bytes.size();
+        });
+
+    }
+
+}
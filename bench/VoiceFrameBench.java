@@ -0,0 +1,93 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/**
+ * The VoiceChat send and receive loops over loopback UDP: one captured frame
+ * sent to every other member of the call, one frame routed by the MediaRelay,
+ * and one frame received.
+ */
+public class VoiceFrameBench {
+
+    /** Same frame size as VoiceChat. */
+    static final int PACKET_SIZE = 1000;
+
+    static void run() throws Exception {
+
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setReceiveBufferSize(4 << 20);
+        DatagramSocket sender = new DatagramSocket();
+        int port = receiver.getLocalPort();
+
+        // drain the receiver so the send loop never stalls
+        Thread drain = new Thread(() -> {
+            byte[] buffer = new byte[PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    receiver.receive(packet);
+                }
+            } catch (Exception e) {
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+
+        byte[] voiceBuffer = new byte[PACKET_SIZE];
+
+        for (int members : new int[] { 1, 3 }) {
+            ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+            for (int i = 0; i < members; i++) {
+                addresses.add(InetAddress.getLoopbackAddress());
+            }
+            Bench.measure("voice.sendFrame." + members, () -> {
+                for (int i = 0; i < addresses.size(); i++) {
+                    DatagramPacket packet = new DatagramPacket(voiceBuffer, voiceBuffer.length, addresses.get(i),
+                            port);
+                    sender.send(packet);
+                }
+                return addresses.size();
+            });
+        }
+
+        // one frame routed by the media relay to the other members of a channel
+        MediaRelay relay = new MediaRelay(2);
+        relay.start(new DatagramSocket(0, InetAddress.getLoopbackAddress()));
+        byte[] datagram = new byte[MediaSocket.HEADER + PACKET_SIZE];
+        DatagramPacket routed = new DatagramPacket(datagram, datagram.length);
+        for (int ssrc = 0; ssrc <= 3; ssrc++) {
+            relay.join(1, 7, ssrc, InetAddress.getLoopbackAddress());
+            // announce each member, all on the drained receiver
+            MediaSocket.writeHeader(datagram, 0, 7, 1, ssrc);
+            routed.setData(datagram, 0, MediaSocket.HEADER);
+            routed.setSocketAddress(receiver.getLocalSocketAddress());
+            relay.route(routed);
+        }
+        MediaSocket.writeHeader(datagram, 0, 7, 1, 0);
+        Bench.measure("voice.relayFrame.3", () -> {
+            routed.setData(datagram, 0, datagram.length);
+            routed.setSocketAddress(receiver.getLocalSocketAddress());
+            return relay.route(routed);
+        });
+        relay.close();
+        receiver.close();
+
+        // ping-pong one frame to measure a send and a receive
+        DatagramSocket a = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket b = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        byte[] receiveBuffer = new byte[PACKET_SIZE];
+        DatagramPacket out = new DatagramPacket(voiceBuffer, voiceBuffer.length, InetAddress.getLoopbackAddress(),
+                b.getLocalPort());
+        DatagramPacket in = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        Bench.measure("voice.sendReceiveFrame", () -> {
+            a.send(out);
+            b.receive(in);
+            return in.getLength();
+        });
+        a.close();
+        b.close();
+        sender.close();
+    }
+
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares writing chat packets straight to an ObjectOutputStream (the old
+ * broadcastSet path) against queueing them on a PacketWriter. Several threads
+ * fan a burst of messages out to one loopback connection, and the bench reports
+ * packets per second and socket writes (send syscalls) per message.
+ *
+ * Usage: java WriteCoalescingBench [messages] [producers]
+ */
+public class WriteCoalescingBench {
+
+    public static void main(String[] args) throws Exception {
+
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        System.out.println("messages=" + messages + " producers=" + producers);
+
+        // warm up both paths before measuring
+        run("warmup", messages / 10, producers, -1, 0);
+        run("warmup", messages / 10, producers, PacketWriter.FLUSH_BYTES, PacketWriter.FLUSH_LINGER_MICROS);
+
+        run("direct writeObject", messages, producers, -1, 0);
+        run("writer linger=0", messages, producers, PacketWriter.FLUSH_BYTES, 0);
+        run("writer linger=" + PacketWriter.FLUSH_LINGER_MICROS + "us", messages, producers,
+                PacketWriter.FLUSH_BYTES, PacketWriter.FLUSH_LINGER_MICROS);
+    }
+
+    /**
+     * Sends the messages over a fresh loopback connection and prints the result.
+     *
+     * @param label        the name of the run
+     * @param messages     the number of packets to send
+     * @param producers    the number of threads sending concurrently
+     * @param flushBytes   the writer batch limit, or -1 to write directly
+     * @param lingerMicros the writer linger deadline
+     */
+    static void run(String label, int messages, int producers, int flushBytes, long lingerMicros)
+            throws Exception {
+
+        try (ServerSocket ss = new ServerSocket(0)) {
+
+            Socket sender = new Socket("localhost", ss.getLocalPort());
+            sender.setTcpNoDelay(true);
+            Socket receiver = ss.accept();
+
+            // drain the receiving side as fast as possible
+            Thread drain = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    InputStream in = receiver.getInputStream();
+                    while (in.read(buffer) != -1) {
+                    }
+                } catch (IOException e) {
+                }
+            });
+            drain.start();
+
+            CountingStream counted = new CountingStream(sender.getOutputStream());
+            PacketWriter writer = null;
+            ObjectOutputStream direct = null;
+            if (flushBytes < 0) {
+                direct = new ObjectOutputStream(counted);
+                direct.flush();
+            } else {
+                writer = new PacketWriter(counted, flushBytes, lingerMicros).start("bench-writer");
+            }
+
+            Packet packet = new Packet("message", "bench", 0, "hello everyone in the group", false);
+            CountDownLatch done = new CountDownLatch(producers);
+            long writesBefore = counted.writes;
+            long start = System.nanoTime();
+
+            for (int p = 0; p < producers; p++) {
+                final ObjectOutputStream out = direct;
+                final PacketWriter w = writer;
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < messages / producers; i++) {
+                            if (out != null) {
+                                synchronized (out) {
+                                    out.reset();
+                                    out.writeObject(packet);
+                                }
+                            } else {
+                                w.reset();
+                                w.send(packet);
+                            }
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }).start();
+            }
+
+            done.await();
+            if (writer != null) {
+                writer.close();
+                while (!sender.isClosed() && counted.open) {
+                    Thread.sleep(1);
+                }
+            } else {
+                direct.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            drain.join();
+            receiver.close();
+
+            int sent = (messages / producers) * producers;
+            if (!label.equals("warmup")) {
+                System.out.printf("%-22s %12.0f packets/s %8.3f writes/message%n", label,
+                        sent / (elapsed / 1e9), (counted.writes - writesBefore) / (double) sent);
+            }
+        }
+
+    }
+
+    /**
+     * Counts the write calls reaching the socket, each of which is a send
+     * syscall.
+     */
+    static class CountingStream extends OutputStream {
+
+        private final OutputStream out;
+        volatile long writes;
+        volatile boolean open = true;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            open = false;
+        }
+    }
+
+}
@@ -1,23 +1,22 @@
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 
 /**
- * This class represents a wrapper object for an ObjectOutputStream
+ * This class represents a wrapper object for a PacketWriter
  * and an InetAddress object.
  */
 public class AddressWrapper {
 
-    public ObjectOutputStream out;
+    public PacketWriter out;
     public InetAddress address;
 
     /**
-     * Constructs a new AddressWrapper object with the specified ObjectOutputStream
+     * Constructs a new AddressWrapper object with the specified PacketWriter
      * and InetAddress.
      *
-     * @param out     the ObjectOutputStream to be wrapped
+     * @param out     the PacketWriter to be wrapped
      * @param address the InetAddress to be wrapped
      */
-    public AddressWrapper(ObjectOutputStream out, InetAddress address) {
+    public AddressWrapper(PacketWriter out, InetAddress address) {
         this.out = out;
         this.address = address;
     }
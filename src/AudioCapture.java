@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * An AudioCapture is an open audio source, such as a microphone line or a
+ * synthetic tone generator, that PCM data can be read from.
+ */
+public interface AudioCapture {
+
+    /**
+     * The format of the captured data.
+     *
+     * @return the audio format
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Starts capturing.
+     */
+    void start();
+
+    /**
+     * Reads captured data, blocking until some is available.
+     *
+     * @param b   the buffer to read into
+     * @param off the offset in the buffer
+     * @param len the maximum number of bytes to read
+     *
+     * @return the number of bytes read, or -1 once the capture is stopped
+     */
+    int read(byte[] b, int off, int len);
+
+    /**
+     * Stops capturing, pending and later reads return -1.
+     */
+    void stop();
+
+    /**
+     * Releases the capture.
+     */
+    void close();
+
+    /**
+     * The capture as an AudioInputStream of unknown length, for writing it to
+     * a file.
+     *
+     * @return the audio stream
+     */
+    default AudioInputStream stream() {
+        InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return AudioCapture.this.read(b, off, len);
+            }
+        };
+        return new AudioInputStream(in, getFormat(), AudioSystem.NOT_SPECIFIED);
+    }
+
+}
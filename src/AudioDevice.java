@@ -0,0 +1,61 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * An AudioDevice opens the captures and playbacks used by calls and voice
+ * notes. Besides the Java Sound implementation there are synthetic devices, so
+ * the audio path can run on machines without a sound card.
+ */
+public interface AudioDevice {
+
+    /**
+     * Opens a capture in the given format.
+     *
+     * @param format the audio format
+     *
+     * @return the open capture, not yet started
+     *
+     * @throws Exception if no capture is available in this format
+     */
+    AudioCapture openCapture(AudioFormat format) throws Exception;
+
+    /**
+     * Opens a playback in the given format.
+     *
+     * @param format the audio format
+     *
+     * @return the open playback, not yet started
+     *
+     * @throws Exception if no playback is available in this format
+     */
+    AudioPlayback openPlayback(AudioFormat format) throws Exception;
+
+    /**
+     * Plays a whole audio stream, such as a voice note, in the background.
+     *
+     * @param in the audio to play
+     *
+     * @throws Exception if the audio cannot be played
+     */
+    default void play(AudioInputStream in) throws Exception {
+        AudioPlayback playback = openPlayback(in.getFormat());
+        Thread player = new Thread(() -> {
+            try {
+                playback.start();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    playback.write(buffer, 0, n);
+                }
+                playback.drain();
+            } catch (Exception e) {
+                System.out.println("[!] Could not play audio: " + e);
+            } finally {
+                playback.close();
+            }
+        });
+        player.setDaemon(true);
+        player.start();
+    }
+
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.util.function.Function;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * The AudioDevices class holds the audio device used by the client. By default
+ * it is the sound card, the tschat.audioIn and tschat.audioOut system
+ * properties select synthetic sources and sinks instead:
+ *
+ * tschat.audioIn: javasound, tone[:hz], silence or file:path
+ * tschat.audioOut: javasound, null or record
+ * tschat.audioPaced: false to run synthetic audio as fast as possible
+ */
+public class AudioDevices {
+
+    private static volatile AudioDevice device;
+
+    /**
+     * The audio device in use, created from the system properties on first use.
+     *
+     * @return the audio device
+     */
+    public static AudioDevice get() {
+        if (device == null) {
+            device = create(System.getProperty("tschat.audioIn", "javasound"),
+                    System.getProperty("tschat.audioOut", "javasound"),
+                    !"false".equals(System.getProperty("tschat.audioPaced")));
+        }
+        return device;
+    }
+
+    /**
+     * Replaces the audio device in use.
+     *
+     * @param audioDevice the new audio device
+     */
+    public static void set(AudioDevice audioDevice) {
+        device = audioDevice;
+    }
+
+    /**
+     * Creates an audio device from a source and a sink description.
+     *
+     * @param in    the source: javasound, tone[:hz], silence or file:path
+     * @param out   the sink: javasound, null or record
+     * @param paced whether synthetic audio is paced in real time
+     *
+     * @return the audio device
+     */
+    static AudioDevice create(String in, String out, boolean paced) {
+
+        JavaSoundDevice sound = new JavaSoundDevice();
+        if (in.equals("javasound") && out.equals("javasound")) {
+            return sound;
+        }
+
+        Function<AudioFormat, AudioCapture> captures;
+        if (in.equals("javasound")) {
+            captures = format -> {
+                try {
+                    return sound.openCapture(format);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } else if (in.startsWith("tone")) {
+            double frequency = in.contains(":") ? Double.parseDouble(in.substring(in.indexOf(':') + 1)) : 440;
+            captures = format -> new SyntheticAudioDevice.ToneCapture(format, frequency, 0.5, paced);
+        } else if (in.equals("silence")) {
+            captures = format -> new SyntheticAudioDevice.ToneCapture(format, 0, 0, paced);
+        } else if (in.startsWith("file:")) {
+            File file = new File(in.substring(5));
+            captures = format -> new SyntheticAudioDevice.FileCapture(format, file, paced);
+        } else {
+            throw new IllegalArgumentException("Unknown audio source " + in);
+        }
+
+        Function<AudioFormat, AudioPlayback> playbacks;
+        if (out.equals("javasound")) {
+            playbacks = format -> {
+                try {
+                    return sound.openPlayback(format);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } else if (out.equals("null")) {
+            playbacks = format -> new SyntheticAudioDevice.NullPlayback(format, paced);
+        } else if (out.equals("record")) {
+            playbacks = format -> new SyntheticAudioDevice.RecordingPlayback(format, paced, 16 << 20);
+        } else {
+            throw new IllegalArgumentException("Unknown audio sink " + out);
+        }
+
+        return new SyntheticAudioDevice(captures, playbacks);
+    }
+
+}
@@ -0,0 +1,47 @@
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * An AudioPlayback is an open audio sink, such as a speaker line or a
+ * recording buffer, that PCM data can be written to.
+ */
+public interface AudioPlayback {
+
+    /**
+     * The format of the data written.
+     *
+     * @return the audio format
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Starts playback.
+     */
+    void start();
+
+    /**
+     * Writes data to be played, blocking while the sink is full.
+     *
+     * @param b   the data
+     * @param off the offset in the data
+     * @param len the number of bytes to write
+     *
+     * @return the number of bytes written
+     */
+    int write(byte[] b, int off, int len);
+
+    /**
+     * Blocks until all data written has been played.
+     */
+    void drain();
+
+    /**
+     * Stops playback.
+     */
+    void stop();
+
+    /**
+     * Releases the playback.
+     */
+    void close();
+
+}
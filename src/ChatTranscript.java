@@ -0,0 +1,394 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+
+/**
+ * The ChatTranscript class is the list model behind the conversation view of a
+ * session window. Every line is appended to a history file, which is kept
+ * across windows of the same session, and only a window of lines is kept in a
+ * fixed-size ring. A new window starts with the last page of the history, and
+ * the window follows the newest line
+ * until the user scrolls to its top, then older lines are paged in from the
+ * history file and the newest are dropped, and scrolling back to the bottom
+ * pages them in again. Because it is shown in a JList only the visible rows
+ * are rendered, so memory and the cost of an append stay the same however
+ * long the session runs. Used on the EDT only.
+ */
+public class ChatTranscript extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of lines kept in memory per session. */
+    static final int LINES = Integer.getInteger("tschat.transcriptLines", 1000);
+
+    /** Directory of the history files, empty keeps no history. */
+    static final String HISTORY_DIR = System.getProperty("tschat.historyDir", "history");
+
+    /** The bytes read from the history file for one page, more if a line is longer. */
+    static final int PAGE_BYTES = 64 * 1024;
+
+    /** The most bytes read from the history file for one line. */
+    static final int MAX_READ_BYTES = 64 << 20;
+
+    private final String[] lines;
+
+    /** The history file offset of each line in the ring. */
+    private final long[] offsets;
+    private int start;
+    private int size;
+
+    private final int page;
+    private RandomAccessFile history;
+    private long historyEnd;
+
+    /** The offset just after the last line in the ring. */
+    private long end;
+
+    /** Whether the ring ends with the newest line, new lines are only shown then. */
+    private boolean following = true;
+
+    /** The list showing this model, null until shown. */
+    private JList<String> list;
+    private boolean paging;
+
+    /**
+     * Creates a new ChatTranscript for a session, carrying on its history
+     * file.
+     *
+     * @param username  the user whose window it is
+     * @param sessionId the session
+     */
+    public ChatTranscript(String username, int sessionId) {
+        this(LINES, HISTORY_DIR.isEmpty() ? null
+                : new File(HISTORY_DIR, username + "_" + sessionId + ".txt"));
+    }
+
+    /**
+     * Creates a new ChatTranscript.
+     *
+     * @param capacity the number of lines kept in memory
+     * @param file     the history file, appended to, or null to keep no history
+     */
+    public ChatTranscript(int capacity, File file) {
+        this.lines = new String[capacity];
+        this.offsets = new long[capacity];
+        this.page = Math.max(1, capacity / 4);
+
+        if (file != null) {
+            try {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+                history = new RandomAccessFile(file, "rw");
+                historyEnd = history.length();
+                end = historyEnd;
+                // a line cut short by a crash is ended, so paging sees it as a line
+                byte[] last = historyEnd > 0 ? read(historyEnd - 1, 1) : null;
+                if (last != null && last[0] != '\n') {
+                    writeHistory("\n");
+                    end = historyEnd;
+                }
+            } catch (IOException e) {
+                System.out.println("[!] Could not open chat history " + file + ": " + e.getMessage());
+                history = null;
+                historyEnd = 0;
+                end = 0;
+            }
+            pageOlder();
+        }
+    }
+
+    /**
+     * Shows this transcript in a scroll pane, in place of a text area, and
+     * pages lines in as the user scrolls to either end.
+     *
+     * @param pane  the scroll pane
+     * @param style the text area whose colours and font are used
+     */
+    public void show(JScrollPane pane, JTextArea style) {
+
+        list = new JList<String>(this);
+        list.setBackground(style.getBackground());
+        list.setForeground(style.getForeground());
+        list.setFont(style.getFont());
+        list.setFixedCellHeight(style.getFontMetrics(style.getFont()).getHeight());
+        list.setFocusable(false);
+        pane.setViewportView(list);
+
+        JScrollBar bar = pane.getVerticalScrollBar();
+        bar.addAdjustmentListener(e -> {
+            if (paging) {
+                return;
+            }
+            paging = true;
+            try {
+                int row = list.getFixedCellHeight();
+                if (bar.getValue() == bar.getMinimum()) {
+                    // keep the line that was at the top in place
+                    int added = pageOlder();
+                    if (added > 0) {
+                        pane.validate();
+                        bar.setValue(added * row);
+                    }
+                } else if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+                    int removed = pageNewer();
+                    if (removed > 0) {
+                        pane.validate();
+                        bar.setValue(bar.getValue() - removed * row);
+                    }
+                }
+            } finally {
+                paging = false;
+            }
+        });
+    }
+
+    /**
+     * Appends text to the transcript, one row per line.
+     *
+     * @param text the text, lines end with a newline
+     */
+    public void append(String text) {
+
+        boolean atBottom = list == null || list.getLastVisibleIndex() >= size - 1;
+        int before = size;
+        boolean dropped = false;
+
+        StringBuilder written = new StringBuilder();
+        long offset = historyEnd;
+        for (String line : text.split("\n")) {
+            line = line.replace("\t", "    ");
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            written.append(line).append('\n');
+
+            if (following) {
+                if (size < lines.length) {
+                    lines[(start + size) % lines.length] = line;
+                    offsets[(start + size) % lines.length] = offset;
+                    size++;
+                } else {
+                    // drop the oldest line, it stays in the history file
+                    lines[start] = line;
+                    offsets[start] = offset;
+                    start = (start + 1) % lines.length;
+                    dropped = true;
+                }
+            }
+            offset += bytes.length + 1;
+        }
+
+        writeHistory(written.toString());
+        if (following) {
+            end = historyEnd;
+        }
+
+        // one change event per append
+        if (size > before) {
+            fireIntervalAdded(this, before, size - 1);
+        }
+        if (dropped) {
+            fireContentsChanged(this, 0, size - 1);
+        }
+
+        if (list != null && following && atBottom && size > 0) {
+            list.ensureIndexIsVisible(size - 1);
+        }
+    }
+
+    /**
+     * Pages in the lines before the first line in memory, dropping as many of
+     * the newest lines if the ring is full.
+     *
+     * @return the number of lines added at the top
+     */
+    int pageOlder() {
+
+        long first = size > 0 ? offsets[start] : end;
+        if (history == null || first == 0) {
+            return 0;
+        }
+
+        // read back from the first line, the first line of the chunk may be
+        // partial, and further back while not even one line is whole
+        ArrayList<String> older = new ArrayList<String>();
+        ArrayList<Long> olderOffsets = new ArrayList<Long>();
+        int length = (int) Math.min(PAGE_BYTES, first);
+        while (true) {
+            byte[] chunk = read(first - length, length);
+            if (chunk == null) {
+                return 0;
+            }
+            int lineEnd = length - 1;
+            for (int i = lineEnd - 1; i >= -1 && older.size() < page; i--) {
+                if (i == -1 ? first - length == 0 : chunk[i] == '\n') {
+                    older.add(new String(chunk, i + 1, lineEnd - i - 1, StandardCharsets.UTF_8));
+                    olderOffsets.add(first - length + i + 1);
+                    lineEnd = i;
+                }
+            }
+            if (!older.isEmpty() || length >= Math.min(first, MAX_READ_BYTES)) {
+                break;
+            }
+            length = (int) Math.min(2L * length, Math.min(first, MAX_READ_BYTES));
+        }
+        int added = older.size();
+        if (added == 0) {
+            return 0;
+        }
+
+        // drop the newest lines to make room
+        int before = size;
+        int drop = Math.max(0, size + added - lines.length);
+        if (drop > 0) {
+            size -= drop;
+            end = offsets[(start + size) % lines.length];
+            following = false;
+        }
+
+        // older holds the lines newest first
+        for (int i = 0; i < added; i++) {
+            start = (start - 1 + lines.length) % lines.length;
+            lines[start] = older.get(i);
+            offsets[start] = olderOffsets.get(i);
+        }
+        size += added;
+
+        if (size > before) {
+            fireIntervalAdded(this, before, size - 1);
+        }
+        fireContentsChanged(this, 0, size - 1);
+        return added;
+    }
+
+    /**
+     * Pages in the lines after the last line in memory, dropping as many of
+     * the oldest lines.
+     *
+     * @return the number of lines removed from the top
+     */
+    int pageNewer() {
+
+        if (following || history == null) {
+            return 0;
+        }
+
+        // only whole lines, the chunk may end in the middle of one, so read on
+        // while not even one line is whole
+        int length = (int) Math.min(PAGE_BYTES, historyEnd - end);
+        byte[] chunk;
+        while (true) {
+            chunk = read(end, length);
+            if (chunk == null) {
+                return 0;
+            }
+            if (indexOfNewline(chunk) >= 0 || length >= Math.min(historyEnd - end, MAX_READ_BYTES)) {
+                break;
+            }
+            length = (int) Math.min(2L * length, Math.min(historyEnd - end, MAX_READ_BYTES));
+        }
+        int removed = 0;
+        int lineStart = 0;
+        int added = 0;
+        for (int i = 0; i < length && added < page; i++) {
+            if (chunk[i] == '\n') {
+                String line = new String(chunk, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                if (size < lines.length) {
+                    size++;
+                } else {
+                    start = (start + 1) % lines.length;
+                    removed++;
+                }
+                lines[(start + size - 1) % lines.length] = line;
+                offsets[(start + size - 1) % lines.length] = end + lineStart;
+                lineStart = i + 1;
+                added++;
+            }
+        }
+        end += lineStart;
+        following = end == historyEnd;
+
+        if (added > 0) {
+            fireContentsChanged(this, 0, size - 1);
+        }
+        return removed;
+    }
+
+    /**
+     * Closes the history file.
+     */
+    public void close() {
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                System.out.println("[!] Could not close chat history: " + e.getMessage());
+            }
+            history = null;
+        }
+    }
+
+    /**
+     * Writes lines at the end of the history file.
+     *
+     * @param text the lines
+     */
+    private void writeHistory(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (history != null) {
+            try {
+                history.seek(historyEnd);
+                history.write(bytes);
+            } catch (IOException e) {
+                System.out.println("[!] Could not write chat history: " + e.getMessage());
+                close();
+                following = true;
+            }
+        }
+        historyEnd += bytes.length;
+    }
+
+    /**
+     * Reads from the history file.
+     *
+     * @param offset where to read
+     * @param length how many bytes
+     *
+     * @return the bytes, or null if they cannot be read
+     */
+    private byte[] read(long offset, int length) {
+        try {
+            byte[] bytes = new byte[length];
+            history.seek(offset);
+            history.readFully(bytes);
+            return bytes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int indexOfNewline(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(start + index) % lines.length];
+    }
+
+}
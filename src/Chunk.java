@@ -0,0 +1,47 @@
+import java.io.Serializable;
+
+/**
+ * The Chunk class is a part of a voice note that is sent in chunks, so the
+ * packets behind it need not wait for all of it, see PacketWriter. The
+ * chunks of one voice note are sent in order, on a stream of their own, and
+ * the first one carries the packet the voice note belongs to. A chunk only
+ * describes its part: the bytes follow it on the wire as raw data, written
+ * straight from the voice note and read straight into it, see
+ * PacketOutputStream.
+ */
+public class Chunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The stream of the voice note, numbered by the writer. */
+    int stream;
+
+    /** The length of the whole voice note, on the first chunk only. */
+    int length;
+
+    /** The packet of the voice note without the voice note, on the first chunk only. */
+    Packet packet;
+
+    /** The bytes of the voice note that follow the chunk. */
+    int size;
+
+    // the voice note and where the part starts, on the writer only
+    transient byte[] data;
+    transient int offset;
+
+    /**
+     * Creates a chunk of a voice note.
+     *
+     * @param stream the stream of the voice note
+     * @param note   the voice note
+     * @param offset where the part starts
+     * @param size   the bytes in the part
+     */
+    Chunk(int stream, byte[] note, int offset, int size) {
+        this.stream = stream;
+        this.data = note;
+        this.offset = offset;
+        this.size = size;
+    }
+
+}
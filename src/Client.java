@@ -6,16 +6,19 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.event.SwingPropertyChangeSupport;
 
 /**
@@ -25,12 +28,11 @@ import javax.swing.event.SwingPropertyChangeSupport;
  * perform background
  * tasks, respectively.
  * 
- * This class maintains a Socket instance to connect to the server and an
- * ObjectInputStream and
- * ObjectOutputStream instances to communicate with the server. It also
+ * This class maintains a Socket instance to connect to the server, an
+ * PacketInputStream to read from the server and a ClientRpc that writes to it
+ * and matches replies to requests. It also
  * maintains HashMaps to store
- * private and group session frames, a sessionId to uniquely identify the
- * session, an invitee to
+ * private and group session frames, an invitee to
  * store the user to invite to a private session, a username to store the
  * client's username, a
  * userList to store the list of currently online users, a clientFrame to store
@@ -42,57 +44,94 @@ import javax.swing.event.SwingPropertyChangeSupport;
 public class Client extends javax.swing.JFrame {
 
 	Socket socket;
-	ObjectInputStream in;
-	ObjectOutputStream out;
+	PacketInputStream in;
+	ClientRpc out;
 	HashMap<Integer, PrivateSession> privateFrames = new HashMap<Integer, PrivateSession>();
 	HashMap<Integer, GroupSession> groupFrames = new HashMap<Integer, GroupSession>();
-	volatile Integer sessionId = -1;
 	String invitee;
 	String username;
-	ArrayList<String> userList;
+	ArrayList<String> userList = new ArrayList<String>();
+
+	// the names of the user ids the server sends
+	UserNames names = new UserNames();
+
+	// online users, kept up to date by presence deltas on the EDT
+	DefaultListModel<String> onlineModel = new DefaultListModel<String>();
+	HashSet<String> online = new HashSet<String>();
+
+	// the version of the last presence update, -1 while waiting for a snapshot
+	long presenceVersion = -1;
 	Client clientFrame;
 
 	// voice note variables
 	Integer vnCount = 0;
 	ArrayList<String> vnReceived = new ArrayList<String>();
 
+	// call variables, all calls share one UDP socket to the server's relay
+	MediaSocket media;
+	HashMap<Integer, VoiceChat> calls = new HashMap<Integer, VoiceChat>();
+
+	// UI updates from the listener thread, the frame maps are only used on the EDT
+	UiUpdateQueue ui = new UiUpdateQueue();
+
+	// sends heartbeats and notices a silent server
+	ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "heartbeat");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	/**
 	 * Creates new form Client
 	 * 
 	 * @param socket   the Socket instance to connect to the server
-	 * @param in       the ObjectInputStream instance to read data from the server
-	 * @param out      the ObjectOutputStream instance to write data to the server
+	 * @param in       the PacketInputStream instance to read data from the server
+	 * @param writer   the PacketWriter instance to write data to the server
 	 * @param username the username of the client
 	 * 
 	 * @throws Exception if an error occurs while initializing the frame or
 	 *                   listening to the server
 	 */
-	public Client(Socket socket, ObjectInputStream in, ObjectOutputStream out, String username)
+	public Client(Socket socket, PacketInputStream in, PacketWriter writer, String username)
 			throws Exception {
 		this.socket = socket;
 		this.in = in;
-		this.out = out;
+		this.out = new ClientRpc(writer);
 		this.username = username;
 		this.clientFrame = this;
 		initComponents();
 		scaleImage(jLabel1, "/images/tschat-logo.png");
+		jList1.setModel(onlineModel);
+		media = new MediaSocket(socket.getRemoteSocketAddress()).start();
+
+		// the server sent the user list after registering, the listener reads it
 		listenTCP();
 
-		// request userList
-		Packet packet = new Packet("getUserList", null, null);
-		out.writeObject(packet);
+		// close a connection the server has gone silent on, the listener then tears it down
+		long period = Math.min(1000, ClientRpc.HEARTBEAT_MILLIS);
+		heartbeat.scheduleWithFixedDelay(() -> {
+			try {
+				if (!out.keepAlive()) {
+					System.out.println("[!] No heartbeat from the server, closing the connection");
+					socket.close();
+				}
+			} catch (IOException e) {
+				// the listener notices the lost connection
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
 
 		addWindowListener(new java.awt.event.WindowAdapter() {
 			public void windowClosing(java.awt.event.WindowEvent e) {
 				// send disconnect packet
 				Packet packet = new Packet("disconnect", null, null);
 				try {
-					out.writeObject(packet);
+					out.send(packet);
 				} catch (IOException err) {
 					err.printStackTrace();
 				}
 
-				// dispose window and exit program
+				// let the writer send it, then dispose window and exit program
+				out.close(1000);
 				clientFrame.dispose();
 				System.exit(0);
 
@@ -478,20 +517,12 @@ public class Client extends javax.swing.JFrame {
 	 */
 	private void jLabel8MouseClicked(java.awt.event.MouseEvent evt) {// GEN-FIRST:event_jLabel8MouseClicked
 
-		// create session with only current user
+		// create session with only current user, the server opens its frame with a notify
 		Packet packet = new Packet("session", "Group", new ArrayList<>());
-		try {
-			out.writeObject(packet);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// wait to receive the sessionID
-		while (sessionId == -1) {
-		}
-
-		// reset the session Id
-		sessionId = -1;
+		out.call(packet).exceptionally(e -> {
+			System.out.println("[!] Could not create a group session: " + e);
+			return null;
+		});
 
 	}// GEN-LAST:event_jLabel8MouseClicked
 
@@ -506,30 +537,20 @@ public class Client extends javax.swing.JFrame {
 
 	private void jLabel7MouseClicked(java.awt.event.MouseEvent evt) {// GEN-FIRST:event_jLabel7MouseClicked
 
-		// create session with only current user
+		// create session with only current user, then invite the selected user once
+		// the server replies with its id
+		String selected = invitee;
 		Packet packet = new Packet("session", "", new ArrayList<>());
-
-		try {
-			out.writeObject(packet);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// wait to receive a valid sessionID
-		while (sessionId == -1) {
-		}
-
-		// invite selected user
-		packet = new Packet("invite", true, sessionId, invitee);
-
-		try {
-			out.writeObject(packet);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// reset sessionId
-		sessionId = -1;
+		out.call(packet)
+				.thenCompose(session -> {
+					Packet invite = new Packet("invite", true, session.sessionId, null);
+					invite.user = names.id(selected);
+					return out.call(invite);
+				})
+				.exceptionally(e -> {
+					System.out.println("[!] Could not start a private session with " + selected + ": " + e);
+					return null;
+				});
 
 	}// GEN-LAST:event_jLabel7MouseClicked
 
@@ -607,226 +628,350 @@ public class Client extends javax.swing.JFrame {
 	public void listenTCP() {
 
 		new Thread(() -> {
-			while (socket.isConnected()) {
-				try {
+			while (true) {
 
-					// get packet
-					Packet packet = (Packet) in.readObject();
+				// get packet, a failed read means the connection is gone
+				Packet packet;
+				try {
+					packet = in.readPacket();
+				} catch (Exception e) {
+					break;
+				}
 
-					// variables for direct client communication
-					InetAddress address;
-					int port;
+				// learn the names it carries, then replies to requests go to their callers
+				names.learn(packet);
+				if (out.complete(packet)) {
+					continue;
+				}
 
+				try {
 					// determine type and react accordingly
-					switch (packet.type) {
-
-						// get sessionid from server
-						case "session":
-							sessionId = packet.sessionId;
-							break;
-
-						case "notify":
-
-							// create a frame
-							GroupSession groupFrame = new GroupSession(userList,
-									Integer.parseInt(packet.stringData),
-									out, username, vnReceived);
-							java.awt.EventQueue.invokeLater(new Runnable() {
-								public void run() {
-									groupFrame.setVisible(true);
-								}
-							});
-
-							// add to hashmap
-							groupFrames.put(Integer.parseInt(packet.stringData),
-									groupFrame);
-							break;
-
-						case "notifyPrivate":
-
-							String notMe = "";
-							for (int i = 0; i < packet.listData.size(); i++) {
-								if (username.equals(packet.listData.get(i))) {
-									continue;
-								}
-								notMe = packet.listData.get(i);
-							}
-
-							// create a frame
-							PrivateSession privateFrame = new PrivateSession(
-									Integer.parseInt(packet.stringData),
-									username, out, notMe, vnReceived);
-							java.awt.EventQueue.invokeLater(new Runnable() {
-								public void run() {
-									privateFrame.setVisible(true);
-								}
-							});
-
-							// add to hashmap
-							privateFrames.put(Integer.parseInt(packet.stringData),
-									privateFrame);
-							break;
-
-						case "message":
-							System.out.println(
-									"Received message from "
-											+ packet.from
-											+ ": "
-											+ packet.messageData
-											+ " SESSION ID =" + packet.to);
-
-							String date = new java.util.Date().toString();
-							date = date.substring(11, 16);
-
-							if (packet.isPrivate) {
-								privateFrames.get(packet.to).jTextArea1
-										.append(date + " " + packet.from + ": "
-												+ packet.messageData
-												+ "\n");
-							} else {
-								groupFrames.get(packet.to).jTextArea1
-										.append(date + " " + packet.from + ": "
-												+ packet.messageData
-												+ "\n");
-							}
-							break;
-
-						// call operations
-						case "call":
-
-							if (packet.isLeave) {
-								VoiceChat.leave();
-							} else {
-								VoiceChat.join(packet.port, packet.userAddresses);
-							}
-
-							break;
-
-						// receive voice note
-						case "voicenote":
-							System.out.println("VOICE NOTE RECEIVED");
-
-							date = new java.util.Date().toString();
-							date = date.substring(11, 16);
-
-							String vnFileName = "voicenote" + packet.from + "_" + vnCount + ".wav";
-
-							// print voice note name in chat
-							if (packet.isPrivate) {
-								privateFrames.get(packet.to).jTextArea1
-										.append(date + " " + packet.from + " sent a voice note : " + vnFileName + "\n");
-							} else {
-								groupFrames.get(packet.to).jTextArea1
-										.append(date + " " + packet.from + " sent a voice note : " + vnFileName + "\n");
-							}
-
-							// save voice note to fs
-							FileOutputStream newFile = new FileOutputStream("voicenotes_receive/" + vnFileName);
-							newFile.write(packet.voiceNote);
-
-							vnReceived.add(vnFileName);
-
-							vnCount++;
-							break;
-
-						// received updated userlist
-						case "userList":
-							System.out.println(
-									"[+] Received an updated user list");
-
-							userList = packet.listData;
-
-							String[] userList = Arrays.copyOf(
-									packet.listData.toArray(),
-									packet.listData.size(), String[].class);
-							jList1.setListData(userList);
-
-							break;
-
-						// receive updated list of users in session
-						case "sessionUsers":
-
-							System.out.println(
-									"just received some users: " + packet.listData);
-
-							int sesId = Integer.parseInt(packet.stringData);
-							String[] listToset = Arrays.copyOf(packet.listData.toArray(),
-									packet.listData.size(), String[].class);
-							groupFrames.get(sesId).jList2.setListData(listToset);
-
-							break;
-
-						// receive list of users in the call
-						case "calllist":
-							System.out.println("Received call List " + packet.callList);
-							// print out to the textarea
-							if (packet.isPrivate) {
-								privateFrames.get(packet.sessionId).jTextArea1
-										.append("Users in call sessions: \n \t 0 - " + packet.callList.get(0)
-												+ "\n\t 1 - " + packet.callList.get(1) + "\n\t 2 - "
-												+ packet.callList.get(2) + "\n\t 3 - " + packet.callList.get(3) + "\n");
-							} else {
-								groupFrames.get(packet.sessionId).jTextArea1
-										.append("Users in call sessions: \n \t 0 - " + packet.callList.get(0)
-												+ "\n\t 1 - " + packet.callList.get(1) + "\n\t 2 - "
-												+ packet.callList.get(2) + "\n\t 3 - " + packet.callList.get(3) + "\n");
-							}
-
-							break;
-
-						case "disconnectSession":
-
-							int curSesId = packet.sessionId;
-
-							if (packet.isPrivate) {
-
-								// send message to indicate disconnection
-								packet = new Packet("message", username, curSesId,
-										" [!] This user has disconnected",
-										true);
-
-								out.writeObject(packet);
+					DISPATCHER.dispatch(this, packet);
+				} catch (Exception e) {
+					System.out.println("[!] Handling a " + packet.type + " packet from the server failed: " + e);
+				}
+			}
 
-								// close frame
-								privateFrames.get(curSesId).setVisible(false);
+			connectionLost();
+		}).start();
 
-								// remove from privateframes
-								privateFrames.remove(curSesId);
-							} else {
+	}
 
-								// send message to indicate disconnection
-								packet = new Packet("message", username, curSesId,
-										" [!] This user has disconnected",
-										false);
+	/**
+	 * Tears down the client side of a lost connection. Pending requests fail,
+	 * calls are left and the user is told.
+	 */
+	void connectionLost() {
+
+		System.out.println("[!] Lost the connection to the server");
+		heartbeat.shutdown();
+		out.close(0);
+		out.failAll(new IOException("Lost the connection to the server"));
+		for (VoiceChat call : calls.values()) {
+			call.leave();
+		}
+		calls.clear();
+		media.close();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
 
-								out.writeObject(packet);
+		ui.post(() -> JOptionPane.showMessageDialog(clientFrame, "Lost the connection to the server", "Error",
+				JOptionPane.ERROR_MESSAGE));
 
-								// close frame
-								groupFrames.get(curSesId).setVisible(false);
+	}
 
-								// remove from groupframes
-								groupFrames.remove(curSesId);
-							}
-							break;
+	/** The handlers of the packets the server sends. */
+	static final PacketDispatcher<Client> DISPATCHER = new PacketDispatcher<Client>(Client::unknown)
+			.register(PacketType.NOTIFY, Client::notifyGroup)
+			.register(PacketType.NOTIFY_PRIVATE, Client::notifyPrivate)
+			.register(PacketType.MESSAGE, Client::message)
+			.register(PacketType.CALL, Client::call)
+			.register(PacketType.VOICENOTE, Client::voiceNote)
+			.register(PacketType.USER_LIST, Client::userList)
+			.register(PacketType.PRESENCE, Client::presence)
+			.register(PacketType.SESSION_USERS, Client::sessionUsers)
+			.register(PacketType.MEMBERS, Client::sessionUsers)
+			.register(PacketType.CALLLIST, Client::callList)
+			.register(PacketType.DISCONNECT_SESSION, Client::disconnectSession)
+			.register(PacketType.ERROR, Client::error)
+			.register(PacketType.HEARTBEAT, Client::heartbeat);
+
+	// open a group session frame
+	void notifyGroup(Packet packet) {
+
+		int sesId = Integer.parseInt(packet.stringData);
+		ui.post(() -> {
+			try {
+				// create a frame
+				GroupSession groupFrame = new GroupSession(userList, sesId,
+						out, username, vnReceived, names);
+				groupFrame.setVisible(true);
+
+				// add to hashmap
+				groupFrames.put(sesId, groupFrame);
+			} catch (Exception e) {
+				System.out.println("[!] Could not open group session " + sesId);
+			}
+		});
 
-						// handle any errors
-						case "error":
-							System.out.println("[!] Server Error: "
-									+ packet.stringData);
-							break;
-						default:
-							System.out.println(
-									"[!] Client received an invalid/unknown packet from server "
-											+ packet.type);
+	}
 
-					}
-				} catch (Exception e) {
-					// e.printStackTrace();
-					// System.out.println("[!] Error reading TCP packet from server");
+	// open a private session frame
+	void notifyPrivate(Packet packet) {
+
+		String notMe = "";
+		for (String member : names.names(packet.users)) {
+			if (username.equals(member)) {
+				continue;
+			}
+			notMe = member;
+		}
+
+		int sesId = Integer.parseInt(packet.stringData);
+		String invitee = notMe;
+		ui.post(() -> {
+			// create a frame
+			PrivateSession privateFrame = new PrivateSession(sesId,
+					username, out, invitee, vnReceived);
+			privateFrame.setVisible(true);
+
+			// add to hashmap
+			privateFrames.put(sesId, privateFrame);
+		});
+
+	}
+
+	// receive a message
+	void message(Packet packet) {
+
+		String from = names.name(packet.user);
+		System.out.println(
+				"Received message from "
+						+ from
+						+ ": "
+						+ packet.messageData
+						+ " SESSION ID =" + packet.to);
+
+		String date = new java.util.Date().toString();
+		date = date.substring(11, 16);
+
+		ui.append(transcript(packet.isPrivate, packet.to),
+				date + " " + from + ": "
+						+ packet.messageData
+						+ "\n");
+
+	}
+
+	// call operations
+	void call(Packet packet) throws Exception {
+
+		// the server names the call by its channel id
+		if (packet.isLeave) {
+			VoiceChat call = calls.remove(packet.port);
+			if (call != null) {
+				call.leave();
+			}
+		} else {
+			VoiceChat call = new VoiceChat(media);
+			call.join(packet.sessionId, packet.port, packet.ssrc);
+			calls.put(packet.port, call);
+		}
+
+	}
+
+	// receive voice note
+	void voiceNote(Packet packet) throws Exception {
+
+		System.out.println("VOICE NOTE RECEIVED");
+
+		String date = new java.util.Date().toString();
+		date = date.substring(11, 16);
+
+		String from = names.name(packet.user);
+		String vnFileName = "voicenote" + from + "_" + vnCount + ".wav";
+
+		// print voice note name in chat
+		ui.append(transcript(packet.isPrivate, packet.to),
+				date + " " + from + " sent a voice note : " + vnFileName + "\n");
+
+		// save voice note to fs
+		FileOutputStream newFile = new FileOutputStream("voicenotes_receive/" + vnFileName);
+		newFile.write(packet.voiceNote);
+
+		ui.post(() -> vnReceived.add(vnFileName));
+
+		vnCount++;
+
+	}
+
+	// received a snapshot of the userlist
+	void userList(Packet packet) {
+
+		System.out.println(
+				"[+] Received an updated user list");
+
+		presenceVersion = packet.version;
+		ArrayList<String> users = names.names(packet.users);
+		ui.post(() -> {
+			online.clear();
+			online.addAll(users);
+			userList.clear();
+			userList.addAll(users);
+			onlineModel.clear();
+			onlineModel.addAll(users);
+		});
+
+	}
+
+	// users joined or left
+	void presence(Packet packet) throws Exception {
+
+		// deltas older than the snapshot are already in it
+		if (presenceVersion < 0 || packet.version <= presenceVersion) {
+			return;
+		}
+
+		// a delta was missed, start again from a snapshot
+		if (packet.version != presenceVersion + 1) {
+			presenceVersion = -1;
+			out.send(new Packet("getUserList", null, null));
+			return;
+		}
+		presenceVersion = packet.version;
+
+		ArrayList<String> added = names.names(packet.users);
+		ArrayList<String> removed = names.names(packet.left);
+		ui.post(() -> {
+			ArrayList<String> joined = new ArrayList<String>();
+			for (String user : added) {
+				if (online.add(user)) {
+					joined.add(user);
 				}
 			}
-		}).start();
+			userList.addAll(joined);
+			onlineModel.addAll(joined);
+			for (String user : removed) {
+				if (online.remove(user)) {
+					userList.remove(user);
+					onlineModel.removeElement(user);
+				}
+			}
+		});
+
+	}
+
+	// receive the list of users in session, or a change to it
+	void sessionUsers(Packet packet) {
+
+		int sesId = Integer.parseInt(packet.stringData);
+		ui.post(() -> {
+			GroupSession frame = groupFrames.get(sesId);
+
+			// a change was missed, ask for the full list
+			if (frame != null && !frame.applyMembers(packet)) {
+				try {
+					out.send(new Packet("sessionUsers", packet.stringData, null));
+				} catch (IOException e) {
+					// the listener notices the lost connection
+				}
+			}
+		});
+
+	}
+
+	// receive list of users in the call
+	void callList(Packet packet) {
+
+		ArrayList<ArrayList<String>> callList = new ArrayList<ArrayList<String>>();
+		for (int[] channel : packet.calls) {
+			callList.add(names.names(channel));
+		}
+
+		System.out.println("Received call List " + callList);
+		// print out to the textarea
+		ui.append(transcript(packet.isPrivate, packet.sessionId),
+				"Users in call sessions: \n \t 0 - " + callList.get(0)
+						+ "\n\t 1 - " + callList.get(1) + "\n\t 2 - "
+						+ callList.get(2) + "\n\t 3 - " + callList.get(3) + "\n");
+
+	}
+
+	// close a session frame
+	void disconnectSession(Packet packet) throws Exception {
+
+		int curSesId = packet.sessionId;
+
+		if (packet.isPrivate) {
+
+			// send message to indicate disconnection
+			packet = new Packet("message", username, curSesId,
+					" [!] This user has disconnected",
+					true);
+
+			out.send(packet);
+
+			// close frame and remove from privateframes
+			ui.post(() -> {
+				PrivateSession frame = privateFrames.remove(curSesId);
+				frame.setVisible(false);
+				frame.transcript.close();
+			});
+		} else {
+
+			// send message to indicate disconnection
+			packet = new Packet("message", username, curSesId,
+					" [!] This user has disconnected",
+					false);
+
+			out.send(packet);
+
+			// close frame and remove from groupframes
+			ui.post(() -> {
+				GroupSession frame = groupFrames.remove(curSesId);
+				frame.setVisible(false);
+				frame.transcript.close();
+			});
+		}
+
+	}
+
+	/**
+	 * Finds the chat transcript of a session, used on the EDT.
+	 * 
+	 * @param isPrivate whether the session is private
+	 * @param sesId     the session id
+	 * 
+	 * @return looks up the transcript, or null if the session has no frame
+	 */
+	Supplier<ChatTranscript> transcript(boolean isPrivate, int sesId) {
+		return () -> {
+			if (isPrivate) {
+				PrivateSession frame = privateFrames.get(sesId);
+				return frame == null ? null : frame.transcript;
+			}
+			GroupSession frame = groupFrames.get(sesId);
+			return frame == null ? null : frame.transcript;
+		};
+	}
+
+	// the server is alive, reading the packet was enough
+	void heartbeat(Packet packet) {
+	}
+
+	// handle any errors
+	void error(Packet packet) {
+		System.out.println("[!] Server Error: "
+				+ packet.stringData);
+	}
 
+	// unknown packet
+	void unknown(Packet packet) {
+		System.out.println(
+				"[!] Client received an invalid/unknown packet from server "
+						+ packet.type);
 	}
 
 	/**
@@ -1,13 +1,8 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-
-import javax.swing.JList;
-import javax.swing.JTextArea;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 
 /**
  * The ClientManager class manages the client-side connections and interactions
@@ -19,49 +14,94 @@ public class ClientManager implements Runnable {
     /** The socket used for communication with the client. */
     Socket socket;
 
-    /** A HashMap that maps usernames to AddressWrapper objects. */
-    HashMap<String, AddressWrapper> userList;
+    /** The server this client is connected to. */
+    ServerCore server;
+
+    /** A map from usernames to AddressWrapper objects. */
+    ConcurrentHashMap<String, AddressWrapper> userList;
 
-    /** A HashMap that maps session IDs to PortWrapper objects. */
-    HashMap<Integer, PortWrapper> sessions;
+    /** A map from session IDs to their records. */
+    ConcurrentHashMap<Integer, SessionRecord> sessions;
 
     /** The client's nickname. */
     String nickname;
 
-    /** The text area used to display log messages. */
-    JTextArea log;
+    /** The id of the client's nickname, UserIds.NONE until it registers. */
+    int userId;
+
+    /** The server event log. */
+    EventLog log;
+
+    /** The server metrics. */
+    ServerMetrics metrics;
+
+    /** The byte counters of this connection. */
+    ServerMetrics.Connection connection;
+
+    /** The writer that queues and coalesces packets sent to the client. */
+    PacketWriter out;
+
+    /** The input stream used to receive packets from the client, within its memory budget. */
+    PacketInputStream in;
+
+    /** The memory budget of the packets read from the client and not yet handled. */
+    MemoryBudget memory;
+
+    /** Identifies the call audio of this client to the media relay. */
+    final int ssrc;
+
+    /** How often an idle connection is sent a heartbeat, in milliseconds. */
+    static final long HEARTBEAT_MILLIS = Long.getLong("tschat.heartbeatMillis", 10000);
+
+    /** How long a client may send nothing before it is considered dead, in milliseconds. */
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("tschat.idleTimeoutMillis", 30000);
 
-    /** The list used to display log messages. */
-    JList logList;
+    /** The most bytes of payloads read from one client and not yet handled. */
+    static final long CONNECTION_BUDGET_BYTES = Long.getLong("tschat.connectionBudgetBytes", 32L << 20);
 
-    /** The output stream used to send objects to the client. */
-    ObjectOutputStream out;
+    /** Sent on a connection that has been idle for a heartbeat interval. */
+    static final Packet HEARTBEAT = new Packet("heartbeat", null, null);
 
-    /** The input stream used to receive objects from the client. */
-    ObjectInputStream in;
+    /** The entry of this client in the user list, null until it registers. */
+    private AddressWrapper registered;
+
+    /** When the last packet was read from the client. */
+    private volatile long lastRead = System.nanoTime();
+
+    /** Checks the connection every heartbeat interval. */
+    private final TimingWheel.Timer liveness = new TimingWheel.Timer() {
+        @Override
+        protected void expired() {
+            checkLiveness();
+        }
+    };
+
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
      * Constructs a new ClientManager object with the specified parameters.
      * 
-     * @param s        the socket used for communication with the client
-     * @param userList a HashMap that maps usernames to AddressWrapper objects
-     * @param sessions a HashMap that maps session IDs to PortWrapper objects
-     * @param log      the text area used to display log messages
-     * @param logList  the list used to display log messages
+     * @param s      the socket used for communication with the client
+     * @param server the server holding the user and session registries
      * 
      * @throws Exception if there is an error creating the input or output stream
      */
-    public ClientManager(Socket s, HashMap<String, AddressWrapper> userList, HashMap<Integer, PortWrapper> sessions,
-            JTextArea log, JList logList) throws Exception {
+    public ClientManager(Socket s, ServerCore server) throws Exception {
         this.socket = s;
-        this.userList = userList;
-        this.sessions = sessions;
-        this.log = log;
-        this.logList = logList;
+        this.server = server;
+        this.userList = server.userList;
+        this.sessions = server.sessions;
+        this.log = server.log;
+        this.metrics = server.metrics;
+        this.ssrc = server.nextSsrc();
 
         // create input and output streams
-        this.out = new ObjectOutputStream(socket.getOutputStream());
-        this.in = new ObjectInputStream(socket.getInputStream());
+        this.out = new PacketWriter(socket.getOutputStream()).onOverflow(this::slowConsumer)
+                .start("writer-" + socket.getRemoteSocketAddress());
+        ServerMetrics.CountingInputStream counted = new ServerMetrics.CountingInputStream(socket.getInputStream());
+        this.memory = new MemoryBudget(server.memory, CONNECTION_BUDGET_BYTES);
+        this.in = new PacketInputStream(counted, memory);
+        this.connection = metrics.open(socket.getRemoteSocketAddress().toString(), counted, out);
 
     }
 
@@ -72,315 +112,575 @@ public class ClientManager implements Runnable {
      */
     public void broadcast(Packet packet) {
 
-        String nicknames[] = userList.keySet().toArray(new String[userList.size()]);
-
         // send packet to all connected users
-        for (int i = 0; i < userList.size(); i++) {
-            try {
-                userList.get(nicknames[i]).out.writeObject(packet);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
+        for (AddressWrapper user : userList.values()) {
+            user.out.send(packet);
         }
 
     }
 
     /**
-     * Sends the specified packet to the specified set of users.
+     * Sends the specified packet to the specified set of users. The packet is
+     * only queued on each recipient's writer, so a burst of messages to a group
+     * is coalesced into a few writes per recipient, and users on other nodes
+     * of the cluster get it through their node.
      * 
      * @param packet the packet to send
-     * @param users  the set of users to send the packet to
-     * 
-     * @throws Exception if there is an error sending the packet
+     * @param users  the ids of the users to send the packet to
      */
-    public void broadcastSet(Packet packet, ArrayList<String> users) throws Exception {
+    public void broadcastSet(Packet packet, int[] users) {
 
-        for (int i = 0; i < users.size(); i++) {
-            userList.get(users.get(i)).out.reset();
-            userList.get(users.get(i)).out.writeObject(packet);
-        }
+        long start = System.nanoTime();
+
+        server.deliver(packet, users);
+
+        metrics.fanout(users.length, System.nanoTime() - start);
+
+    }
 
+    /**
+     * Sends the reply to a request, stamped with the id of the request so the
+     * client can match it.
+     *
+     * @param packet    the reply
+     * @param requestId the id of the request, 0 if the client does not wait for
+     *                  the reply
+     */
+    private void reply(Packet packet, int requestId) {
+        packet.requestId = requestId;
+        out.send(packet);
+    }
+
+    /**
+     * Runs the part of a request that works on a session on the shard of the
+     * session, after the earlier requests for it, so it needs no lock. A
+     * failure is replied to like one on the read thread. The task takes over
+     * the memory budget held for the packet and releases it when done.
+     *
+     * @param sessionId the session
+     * @param task      the work, given the id of the request to reply to
+     */
+    private void onSession(int sessionId, IntConsumer task) {
+        int request = requestId;
+        long bytes = held;
+        held = 0;
+        server.shards.execute(sessionId, () -> {
+            try {
+                task.accept(request);
+            } catch (RuntimeException e) {
+                System.out.println("[!] Handling a request of " + nickname + " on session " + sessionId
+                        + " failed: " + e);
+                if (request != 0) {
+                    reply(new Packet("error", "Request failed: " + e, null), request);
+                }
+            } finally {
+                memory.release(bytes);
+            }
+        });
     }
 
+    /** The handlers of the requests a client can send. */
+    static final PacketDispatcher<ClientManager> DISPATCHER = new PacketDispatcher<ClientManager>(
+            ClientManager::invalid)
+            .register(PacketType.ECHO, ClientManager::echo)
+            .register(PacketType.MESSAGE, ClientManager::message)
+            .register(PacketType.VOICENOTE, ClientManager::voiceNote)
+            .register(PacketType.CALL, ClientManager::call)
+            .register(PacketType.SESSION, ClientManager::session)
+            .register(PacketType.INVITE, ClientManager::invite)
+            .register(PacketType.REGISTER, ClientManager::register)
+            .register(PacketType.GET_USER_LIST, ClientManager::getUserList)
+            .register(PacketType.CALLLIST, ClientManager::callList)
+            .register(PacketType.DISCONNECT, ClientManager::disconnect)
+            .register(PacketType.DISCONNECT_SESSION, ClientManager::disconnectSession)
+            .register(PacketType.SESSION_USERS, ClientManager::sessionUsers)
+            .register(PacketType.HEARTBEAT, ClientManager::heartbeat);
+
+    /** The id of the request being handled, echoed in its reply. */
+    private int requestId;
+
+    /** The bytes of the memory budget held for the packet being handled. */
+    private long held;
+
+    /** Cleared when the client disconnects. */
+    private boolean running = true;
+
     /**
      * The main run method of the ClientManager. Waits for requests from the client
-     * and handles them accordingly.
+     * and dispatches them to their handlers, until the client disconnects or
+     * the connection is lost, and then tears the connection down.
      */
     @Override
     public void run() {
 
+        server.wheel.schedule(liveness, HEARTBEAT_MILLIS);
+
         // wait for requests from client
-        while (socket.isConnected()) {
+        while (running) {
+
+            // a failed read means the connection is gone or the stream is corrupt
+            Packet packet;
+            try {
+                packet = in.readPacket();
+            } catch (PacketInputStream.Rejected e) {
+                // the rest of the packet is still on the wire, so the connection cannot go on
+                log.log(EventLog.PACKET_REJECTED, nickname, e.getMessage(), -1, 0, 0);
+                metrics.packetRejected();
+                out.send(new Packet("error", "Packet rejected: " + e.getMessage(), null));
+                closed.set(true);
+                break;
+            } catch (Exception e) {
+                if (!closed.get()) {
+                    log.log(EventLog.CONNECTION_LOST, nickname);
+                }
+                break;
+            }
+            lastRead = System.nanoTime();
+            requestId = packet.requestId;
+            held = in.takeReserved();
+
+            // a client names itself before anything else, there is no user to act for until then
+            if (registered == null && !allowedUnregistered(PacketType.kind(packet))) {
+                memory.release(held);
+                held = 0;
+                reply(new Packet("error", "Register before sending " + packet.type, null), requestId);
+                continue;
+            }
 
             try {
-                Packet packet = (Packet) in.readObject();
+                long start = System.nanoTime();
+                DISPATCHER.dispatch(this, packet);
+                metrics.packetHandled(PacketType.kind(packet), System.nanoTime() - start);
 
-                switch (packet.type) {
+            } catch (Exception e) {
+                System.out.println("[!] Handling a " + packet.type + " packet from " + nickname + " failed: " + e);
 
-                    // TODO: implement all requests
+                // do not leave a waiting request to time out
+                if (requestId != 0) {
+                    reply(new Packet("error", "Request failed: " + e, null), requestId);
+                }
+            } finally {
+                memory.release(held);
+                held = 0;
+            }
 
-                    // test request
-                    case "echo":
-                        log.append(" - " + nickname + " said: " + packet.stringData + "\n");
-                        break;
+        }
 
-                    // send a message
-                    case "message":
+        teardown();
 
-                        log.append(
-                                " - " + packet.from + " sent message to session " + packet.to + " : "
-                                        + packet.messageData + "\n");
+    }
 
-                        // send message to session
-                        if (sessions.containsKey(packet.to)) {
-                            broadcastSet(packet, sessions.get(packet.to).users);
-                        } else {
-                            packet = new Packet("error", "There exists no such session", null);
-                            out.writeObject(packet);
-                        }
+    /**
+     * Whether a client may send a packet of a kind before it registers.
+     *
+     * @param kind the packet kind
+     *
+     * @return true for register, echo and heartbeat
+     */
+    private static boolean allowedUnregistered(int kind) {
+        return kind == PacketType.REGISTER || kind == PacketType.ECHO || kind == PacketType.HEARTBEAT;
+    }
 
-                        break;
-
-                    // send a voice note
-                    case "voicenote":
+    /**
+     * Called by the timing wheel every heartbeat interval. Closes the socket of
+     * a client that has sent nothing for the idle timeout, which ends the read
+     * loop, and sends a heartbeat to a client that has been sent nothing for a
+     * heartbeat interval.
+     */
+    void checkLiveness() {
 
-                        log.append(" - " + packet.from + " sent a voice note to session " + packet.to + "\n");
-
-                        ArrayList<String> sendUsers = (ArrayList<String>) (sessions.get(packet.to).users)
-                                .clone();
-
-                        sendUsers.remove(packet.from);
+        if (closed.get()) {
+            return;
+        }
 
-                        // broadcast the voice note to all in session
-                        broadcastSet(packet, sendUsers);
+        long now = System.nanoTime();
+        long idle = TimeUnit.NANOSECONDS.toMillis(now - lastRead);
+        if (idle >= IDLE_TIMEOUT_MILLIS) {
+            log.log(EventLog.IDLE_TIMEOUT, nickname, null, -1, 0, idle);
+            closed.set(true);
+            try {
+                socket.close();
+            } catch (Exception e) {
+                // already closed
+            }
+            return;
+        }
 
-                        break;
+        if (TimeUnit.NANOSECONDS.toMillis(now - out.lastSend()) >= HEARTBEAT_MILLIS) {
+            out.send(HEARTBEAT);
+        }
+        server.wheel.schedule(liveness, Math.min(HEARTBEAT_MILLIS, IDLE_TIMEOUT_MILLIS - idle));
 
-                    // join or leave call session
-                    case "call":
+    }
 
-                        // port extraction
-                        int port = sessions.get(packet.sessionId).ports.get(packet.channel);
-                        int sesId = packet.sessionId;
+    /**
+     * Called by the writer when the client reads slower than it is sent to
+     * and its queue overflows. Closes the socket, which ends the read loop.
+     */
+    private void slowConsumer() {
 
-                        if (packet.isLeave) {
-                            log.append(" - " + nickname + " has left the call [channel " + packet.channel
-                                    + "] of session " + packet.sessionId + "\n");
+        if (closed.compareAndSet(false, true)) {
+            log.log(EventLog.SLOW_CONSUMER, nickname, null, -1, 0, out.queuedBytes());
+            metrics.slowConsumer();
+            try {
+                socket.close();
+            } catch (Exception e) {
+                // already closed
+            }
+        }
+
+    }
 
-                            // update call list
-                            sessions.get(packet.sessionId).callList.get(packet.channel).remove(nickname);
+    /**
+     * Removes the client from the user list, its sessions and their calls, and
+     * closes the connection. Called once the read loop ends, for a clean
+     * disconnect as well as for a lost or idle connection.
+     */
+    private void teardown() {
 
-                            // leave call on port with same packet
-                            out.writeObject(packet);
+        closed.set(true);
+        server.wheel.cancel(liveness);
 
-                            // output event on text area
-                            packet = new Packet("message", nickname, packet.sessionId,
-                                    "[ ! ] " + nickname + " has left the call [channel " + packet.channel
-                                            + "] session.",
-                                    packet.isPrivate);
-                            broadcastSet(packet, sessions.get(sesId).users);
+        if (registered != null) {
+            server.leaveAllSessions(userId, ssrc);
+            server.ids.disconnect(userId, registered);
+            userList.remove(nickname, registered);
 
-                        } else {
-                            log.append(" - " + nickname + " has joined the call [channel " + packet.channel
-                                    + "] of session " + packet.sessionId
-                                    + "on port " + port + "\n");
+            // tell the other clients and nodes
+            server.presence.left(nickname);
+            server.cluster.userLeft(nickname);
+
+            // update server observers
+            server.userListChanged();
+        }
 
-                            // update call list
-                            sessions.get(packet.sessionId).callList.get(packet.channel).add(nickname);
+        metrics.close(connection);
+        out.close();
+        try {
+            in.close();
+        } catch (Exception e) {
+            // already closed
+        }
+        try {
+            socket.close();
+        } catch (Exception e) {
+            // already closed
+        }
 
-                            // join call on port with updated packet
-                            packet.port = port;
-                            for (int i = 0; i < sessions.get(sesId).users.size(); i++) {
-                                // do not add yourself
-                                if (sessions.get(sesId).users.get(i).equals(nickname)) {
-                                    continue;
-                                }
-                                packet.userAddresses.add(sessions.get(sesId).userAddresses.get(i));
-                            }
-                            out.writeObject(packet);
+    }
 
-                            // output event on text area
-                            packet = new Packet("message", nickname, packet.sessionId,
-                                    "[ ! ] " + nickname + " has joined the call [channel " + packet.channel
-                                            + "] session.",
-                                    packet.isPrivate);
-                            broadcastSet(packet, sessions.get(sesId).users);
+    // test request
+    void echo(Packet packet) {
+        log.log(EventLog.ECHO, nickname, packet.stringData, -1, 0, 0);
+    }
 
-                        }
-                        break;
+    /**
+     * Names the client as the sender of a packet it sent, in place of the
+     * name it gave, and drops any other user it named, before the packet is
+     * relayed.
+     *
+     * @param packet the packet
+     */
+    private void stampSender(Packet packet) {
+        packet.from = null;
+        packet.user = userId;
+        packet.users = null;
+        packet.left = null;
+        packet.calls = null;
+        server.ids.name(packet);
+    }
 
-                    // create a session
-                    case "session":
-                        log.append(" - " + nickname + " created a session with id " + Server.sessionID + "\n");
-
-                        boolean group = false;
+    // send a message
+    void message(Packet packet) {
 
-                        if (packet.stringData.equals("Group")) {
-                            group = true;
-                        }
-
-                        // tell user what session he is in (isPrivate = true , because primitive type !=
-                        // null)
-                        packet = new Packet("session", true, Server.sessionID, null);
-                        out.writeObject(packet);
-
-                        ArrayList<ArrayList<String>> callList = new ArrayList<ArrayList<String>>();
-                        callList.add(new ArrayList<String>()); // channel 0
-                        callList.add(new ArrayList<String>()); // channel 1
-                        callList.add(new ArrayList<String>()); // channel 2
-                        callList.add(new ArrayList<String>()); // channel 3
-                        ArrayList<String> sessionUsers = new ArrayList<String>();
-                        ArrayList<InetAddress> userAddresses = new ArrayList<InetAddress>();
-                        userAddresses.add(userList.get(nickname).address);
-                        sessionUsers.add(nickname);
-
-                        // assign and increment callport
-                        sessions.put(Server.sessionID,
-                                new PortWrapper(Server.callPort, sessionUsers, callList, userAddresses));
-
-                        // notify group creator to open frame
-                        if (group) {
-                            packet = new Packet("notify", Server.sessionID.toString(), null);
-                            out.writeObject(packet);
-
-                            // send creator sessionUsers
-                            packet = new Packet("sessionUsers", Server.sessionID.toString(),
-                                    sessions.get(Server.sessionID).users);
-                            out.writeObject(packet);
-
-                        }
-
-                        Server.callPort += 4;
-                        Server.sessionID++;
-
-                        break;
-
-                    case "invite":
-
-                        log.append("- " + nickname + " added " + packet.invitee + " to " + packet.sessionId + " \n");
-
-                        // add user and address to session list
-                        sessions.get(packet.sessionId).users.add(packet.invitee);
-                        sessions.get(packet.sessionId).userAddresses.add(userList.get(packet.invitee).address);
-
-                        ArrayList<String> usersToInvite = sessions.get(packet.sessionId).users;
-
-                        // notify user
-                        if (packet.isPrivate) {
-                            packet = new Packet("notifyPrivate", packet.sessionId.toString(), usersToInvite);
-                            broadcastSet(packet, usersToInvite);
-                        } else {
-                            ArrayList<String> inviteeList = new ArrayList<String>();
-                            inviteeList.add(packet.invitee);
-                            packet = new Packet("notify", packet.sessionId.toString(), null);
-                            broadcastSet(packet, inviteeList);
-
-                            // send updated sessionUsers
-                            packet = new Packet("sessionUsers", packet.stringData,
-                                    sessions.get(Integer.parseInt(packet.stringData)).users);
-                            broadcastSet(packet, sessions.get(Integer.parseInt(packet.stringData)).users);
-                        }
-
-                        break;
-
-                    // register user with nickname
-                    case "register":
-
-                        // get selected nickname
-                        nickname = packet.stringData;
-
-                        // check duplicates
-                        if (userList.containsKey(nickname)) {
-                            packet = new Packet("error", "Nickname already in use", null);
-                            out.writeObject(packet);
-                            break;
-                        }
-
-                        // add user to userlist
-                        userList.put(nickname, new AddressWrapper(out, socket.getInetAddress()));
-                        log.append("[+] A new client has connected: " + nickname + "\n");
-                        log.append("\t the current user list : " + userList.toString() + "\n");
-
-                        // send success packet
-                        packet = new Packet("success", null, null);
-                        out.writeObject(packet);
-
-                        // broadcast new userList
-                        packet = new Packet("userList", null, new ArrayList<String>(userList.keySet()));
-                        broadcast(packet);
-
-                        // update server userlist
-                        String[] clientList = Arrays.copyOf(
-                                packet.listData.toArray(), packet.listData.size(), String[].class);
-                        logList.setListData(clientList);
-
-                        break;
-
-                    // send the user list to the client
-                    case "getUserList":
-                        packet = new Packet("userList", null, new ArrayList<String>(userList.keySet()));
-                        out.writeObject(packet);
-                        break;
-
-                    case "calllist":
-                        // send back call list
-                        packet = new Packet("calllist", packet.sessionId, packet.isPrivate,
-                                sessions.get(packet.sessionId).callList);
-                        out.writeObject(packet);
-                        break;
-
-                    // disconnect client and finish thread
-                    case "disconnect":
-
-                        // remove from user list
-                        log.append("[+] Disconnecting client: " + nickname);
-                        userList.remove(nickname);
-
-                        // send updated user list to all clients
-                        packet = new Packet("userList", null, new ArrayList<>(userList.keySet()));
-                        broadcast(packet);
-
-                        // update server user list
-                        clientList = Arrays.copyOf(
-                                packet.listData.toArray(), packet.listData.size(), String[].class);
-                        logList.setListData(clientList);
-                        // finish thread
-                        socket.close();
-                        return;
-
-                    // disconnect user from session
-                    // use invite packet to check if private
-                    case "disconnectSession":
-                        log.append("[+] " + nickname + " left session " + packet.sessionId);
-
-                        sesId = packet.sessionId;
-
-                        // remove user and address from session
-                        sessions.get(packet.sessionId).users.remove(nickname);
-                        sessions.get(packet.sessionId).userAddresses.remove(userList.get(nickname).address);
-
-                        // tell client to disconnect (packet already in correct format)
-                        out.writeObject(packet);
-
-                        // send updated sessionUsers to group members
-                        packet = new Packet("sessionUsers", packet.sessionId.toString(),
-                                sessions.get(packet.sessionId).users);
-                        broadcastSet(packet, sessions.get(sesId).users);
-
-                        break;
-                    default:
-                        System.out.println("[!] Invalid request received from client");
-                        break;
-                }
+        log.log(EventLog.MESSAGE, nickname, null, packet.to, 0, packet.messageData.length());
+        stampSender(packet);
 
-            } catch (Exception e) {
-                // System.out.println("[!] Error reading request from client");
-                // e.printStackTrace();
+        // send message to session
+        onSession(packet.to, request -> {
+            SessionRecord session = sessions.get(packet.to);
+            if (session != null) {
+                broadcastSet(packet, session.users());
+            } else {
+                log.log(EventLog.NO_SESSION, nickname, null, packet.to, 0, 0);
+                out.send(new Packet("error", "There exists no such session", null));
             }
+        });
 
+    }
+
+    // send a voice note
+    void voiceNote(Packet packet) {
+
+        log.log(EventLog.VOICENOTE, nickname, null, packet.to, 0, packet.voiceNote.length);
+        stampSender(packet);
+
+        onSession(packet.to, request -> {
+            SessionRecord session = sessions.get(packet.to);
+            if (session == null) {
+                return;
+            }
+            int[] sendUsers = session.users(userId);
+
+            // broadcast the voice note to all in session
+            broadcastSet(packet, sendUsers);
+            metrics.voiceNoteRelayed((long) packet.voiceNote.length * sendUsers.length);
+        });
+
+    }
+
+    // join or leave call session
+    void call(Packet packet) {
+
+        // the channel number comes from the client
+        if (packet.channel < 0 || packet.channel >= ServerCore.CALL_CHANNELS) {
+            out.send(new Packet("error", "There is no call channel " + packet.channel, null));
+            return;
+        }
+
+        // calls run on the media relay of the node that created the session
+        if (!server.cluster.owns(packet.sessionId)) {
+            out.send(new Packet("error", "Calls of this session run on another server", null));
+            return;
         }
 
+        onSession(packet.sessionId, request -> {
+
+            // the server ran out of call channels when the session was created
+            SessionRecord session = sessions.get(packet.sessionId);
+            if (session == null || !session.contains(userId)) {
+                out.send(new Packet("error", "You are not in this session", null));
+                return;
+            }
+            if (!session.hasChannels()) {
+                out.send(new Packet("error", "No call channels are available for this session", null));
+                return;
+            }
+
+            // call channel id extraction, the relay routes the call audio by it
+            int port = session.channel(packet.channel);
+            Packet event;
+
+            if (packet.isLeave) {
+                log.log(EventLog.CALL_LEAVE, nickname, null, packet.sessionId, packet.channel, 0);
+
+                // update call list
+                session.setCall(userId, packet.channel, false);
+                server.relay.leave(port, ssrc);
+
+                // leave call with same packet, naming the channel id
+                packet.port = port;
+                out.send(packet);
+
+                // output event on text area
+                event = new Packet("message", null, packet.sessionId,
+                        "[ ! ] " + nickname + " has left the call [channel " + packet.channel
+                                + "] session.",
+                        packet.isPrivate);
+
+            } else {
+                log.log(EventLog.CALL_JOIN, nickname, null, packet.sessionId, packet.channel, port);
+
+                // update call list
+                session.setCall(userId, packet.channel, true);
+                server.relay.join(port, packet.sessionId, ssrc, socket.getInetAddress());
+
+                // join call on the relay with updated packet
+                packet.port = port;
+                packet.ssrc = ssrc;
+                out.send(packet);
+
+                // output event on text area
+                event = new Packet("message", null, packet.sessionId,
+                        "[ ! ] " + nickname + " has joined the call [channel " + packet.channel
+                                + "] session.",
+                        packet.isPrivate);
+
+            }
+            stampSender(event);
+            broadcastSet(event, session.users());
+
+        });
+
+    }
+
+    // create a session
+    void session(Packet packet) {
+
+        Integer newId = server.nextSessionId();
+        log.log(EventLog.SESSION_CREATE, nickname, null, newId, 0, 0);
+
+        boolean group = packet.stringData.equals("Group");
+
+        // assign call channels, the session still works for chat if there are none left
+        int callChannel = server.callChannels.allocate();
+        if (callChannel < 0) {
+            log.log(EventLog.NO_CALL_CHANNELS, nickname, null, newId, 0, 0);
+        }
+        SessionRecord created = new SessionRecord(callChannel, group);
+        created.add(userId);
+
+        // the session is published on its shard, ahead of anything sent to it
+        onSession(newId, request -> {
+            sessions.put(newId, created);
+            server.joined(userId, newId);
+            server.store.created(newId, created);
+            server.cluster.sessionChanged(newId, created);
+
+            // tell user what session he is in (isPrivate = true , because primitive type !=
+            // null)
+            reply(new Packet("session", true, newId, null), request);
+
+            // notify group creator to open frame
+            if (group) {
+                out.send(new Packet("notify", newId.toString(), null));
+
+                // send creator sessionUsers
+                out.send(server.membersCheckpoint(newId, created));
+            }
+        });
+
+    }
+
+    // add a user to a session, named by its id
+    void invite(Packet packet) {
+
+        String invitee = server.ids.name(packet.user);
+        log.log(EventLog.INVITE, nickname, invitee, packet.sessionId, 0, 0);
+
+        onSession(packet.sessionId, request -> {
+
+            // add user and address to session list
+            SessionRecord invited = sessions.get(packet.sessionId);
+            if (invited == null || invitee == null || !server.online(invitee)) {
+                reply(new Packet("error", "There exists no such session or user", null), request);
+                return;
+            }
+
+            // the node that created the session makes every change to its members, in order
+            if (server.cluster.owns(packet.sessionId)) {
+                server.addMember(packet.sessionId, invited, packet.user, packet.isPrivate);
+            } else {
+                server.cluster.memberChange(packet.sessionId, invitee, false, packet.isPrivate);
+            }
+
+            // acknowledge the invite if the inviter waits for it
+            if (request != 0) {
+                reply(new Packet("ack", null, null), request);
+            }
+
+        });
+
+    }
+
+    // register user with nickname
+    void register(Packet packet) {
+
+        // check duplicates and add user to userlist
+        AddressWrapper user = new AddressWrapper(out, socket.getInetAddress());
+        if (registered != null || server.cluster.nodeOf(packet.stringData) >= 0
+                || userList.putIfAbsent(packet.stringData, user) != null) {
+            log.log(EventLog.DUPLICATE_NICKNAME, packet.stringData);
+            packet = new Packet("error", "Nickname already in use", null);
+            out.send(packet);
+            return;
+        }
+
+        // get selected nickname, and its id
+        nickname = packet.stringData;
+        userId = server.ids.id(nickname);
+        server.ids.connect(userId, user);
+        registered = user;
+        log.log(EventLog.CONNECT, nickname, null, -1, 0, userList.size());
+
+        // send success packet, with the id the client is named by
+        packet = new Packet("success", null, null);
+        packet.user = userId;
+        out.send(packet);
+
+        // send the user the full list, and the others a delta
+        server.presence.sendSnapshot(out);
+        server.presence.joined(nickname);
+        server.cluster.userJoined(nickname);
+
+        // reopen the sessions the user was in before the server restarted
+        server.resume(userId);
+
+        // update server observers
+        server.userListChanged();
+
+    }
+
+    // send the user list to the client, also when it missed a delta
+    void getUserList(Packet packet) {
+        server.presence.sendSnapshot(out);
+    }
+
+    // send back call list
+    void callList(Packet packet) {
+        onSession(packet.sessionId, request -> {
+            // only the members of a session may see who is in its calls
+            SessionRecord session = sessions.get(packet.sessionId);
+            if (session == null || !session.contains(userId)) {
+                reply(new Packet("error", "There exists no such session", null), request);
+                return;
+            }
+            int[][] calls = new int[ServerCore.CALL_CHANNELS][];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = session.calls(i);
+            }
+            Packet reply = new Packet("calllist", packet.sessionId, packet.isPrivate, calls);
+            server.ids.name(reply);
+            reply(reply, request);
+        });
+    }
+
+    // disconnect client and finish thread
+    void disconnect(Packet packet) {
+
+        // finish thread, the user is removed from the user list on the way out
+        log.log(EventLog.DISCONNECT, nickname);
+        running = false;
+
+    }
+
+    // disconnect user from session
+    // use invite packet to check if private
+    void disconnectSession(Packet packet) {
+
+        log.log(EventLog.SESSION_LEAVE, nickname, null, packet.sessionId, 0, 0);
+
+        onSession(packet.sessionId, request -> {
+
+            // remove user and address from session, the members get the change and the
+            // last to leave frees its ports
+            server.leaveSession(packet.sessionId, userId, ssrc);
+
+            // tell client to disconnect (packet already in correct format)
+            out.send(packet);
+
+        });
+
+    }
+
+    // send the member list of a session to a member that missed a change
+    void sessionUsers(Packet packet) {
+        int sessionId = Integer.parseInt(packet.stringData);
+        onSession(sessionId, request -> {
+            SessionRecord session = sessions.get(sessionId);
+            if (session != null && session.contains(userId)) {
+                out.send(server.membersCheckpoint(sessionId, session));
+            }
+        });
+    }
+
+    // the client is alive, reading the packet was enough
+    void heartbeat(Packet packet) {
+    }
+
+    // unknown request
+    void invalid(Packet packet) {
+        log.log(EventLog.INVALID_REQUEST, nickname, packet.type, -1, 0, 0);
     }
 
 }
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ClientRpc class is the one writer of a client's connection to the
+ * server. It queues packets on the PacketWriter of the connection, so control
+ * and chat packets go out ahead of voice notes being uploaded, and the caller
+ * never waits for the socket. Packets are either sent one way, or sent as a
+ * request stamped with a request id, in which case the caller gets a future
+ * that the listener thread completes when the reply with the same id arrives.
+ * Requests never block the caller, so several can be in flight at once, and a
+ * request that gets no reply fails with a TimeoutException.
+ */
+public class ClientRpc {
+
+    /** How long a request waits for its reply, in milliseconds. */
+    static final long TIMEOUT_MILLIS = Long.getLong("tschat.rpcTimeoutMillis", 10000);
+
+    /** How often an idle connection sends a heartbeat, in milliseconds. */
+    static final long HEARTBEAT_MILLIS = Long.getLong("tschat.heartbeatMillis", 10000);
+
+    /** How long the server may send nothing before it is considered gone, in milliseconds. */
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("tschat.idleTimeoutMillis", 30000);
+
+    private final PacketWriter out;
+
+    /** When a packet was last sent, so the client knows when to send a heartbeat. */
+    private volatile long lastSend = System.nanoTime();
+
+    /** When a packet was last read. */
+    private volatile long lastRead = System.nanoTime();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<Packet>> pending =
+            new ConcurrentHashMap<Integer, CompletableFuture<Packet>>();
+
+    /**
+     * Creates a new ClientRpc.
+     *
+     * @param out the writer of the connection to the server
+     */
+    public ClientRpc(PacketWriter out) {
+        this.out = out;
+    }
+
+    /**
+     * Sends a packet without waiting for a reply.
+     *
+     * @param packet the packet
+     *
+     * @throws IOException if the connection is closed
+     */
+    public void send(Packet packet) throws IOException {
+        if (out.isClosed()) {
+            throw new IOException("The connection to the server is closed");
+        }
+        out.send(packet);
+        lastSend = System.nanoTime();
+    }
+
+    /**
+     * Closes the writer of the connection, after what was sent is written.
+     *
+     * @param waitMillis how long to wait for it to be written, 0 not to wait
+     */
+    public void close(long waitMillis) {
+        out.close();
+        if (waitMillis > 0) {
+            try {
+                out.awaitClose(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * When a packet was last sent.
+     *
+     * @return the System.nanoTime of the last send
+     */
+    public long lastSend() {
+        return lastSend;
+    }
+
+    /**
+     * Sends a request and returns the future of its reply, failing after the
+     * default timeout.
+     *
+     * @param request the request
+     *
+     * @return the future reply
+     */
+    public CompletableFuture<Packet> call(Packet request) {
+        return call(request, TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sends a request and returns the future of its reply.
+     *
+     * @param request       the request, its request id is overwritten
+     * @param timeoutMillis how long to wait for the reply
+     *
+     * @return the future reply, completed on the listener thread
+     */
+    public CompletableFuture<Packet> call(Packet request, long timeoutMillis) {
+
+        // 0 means no reply is expected
+        int id = requestIds.incrementAndGet();
+        if (id == 0) {
+            id = requestIds.incrementAndGet();
+        }
+        request.requestId = id;
+
+        CompletableFuture<Packet> reply = new CompletableFuture<Packet>();
+        pending.put(id, reply);
+        final int requestId = id;
+        reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((packet, e) -> pending.remove(requestId));
+
+        try {
+            send(request);
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+
+    }
+
+    /**
+     * Completes the request a reply belongs to, called by the listener thread
+     * for every packet it reads.
+     *
+     * @param packet the packet read
+     *
+     * @return whether the packet was the reply to a pending request
+     */
+    public boolean complete(Packet packet) {
+        lastRead = System.nanoTime();
+        if (packet.requestId == 0) {
+            return false;
+        }
+        CompletableFuture<Packet> reply = pending.remove(packet.requestId);
+        if (reply == null) {
+            return false;
+        }
+        if ("error".equals(packet.type)) {
+            reply.completeExceptionally(new IOException(packet.stringData));
+        } else {
+            reply.complete(packet);
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the connection alive, called periodically. Sends a heartbeat if
+     * nothing was sent for a heartbeat interval.
+     *
+     * @return false if nothing was read from the server for the idle timeout
+     *
+     * @throws IOException if the connection is closed
+     */
+    public boolean keepAlive() throws IOException {
+        long now = System.nanoTime();
+        if (TimeUnit.NANOSECONDS.toMillis(now - lastRead) >= IDLE_TIMEOUT_MILLIS) {
+            return false;
+        }
+        if (TimeUnit.NANOSECONDS.toMillis(now - lastSend) >= HEARTBEAT_MILLIS) {
+            send(new Packet("heartbeat", null, null));
+        }
+        return true;
+    }
+
+    /**
+     * Fails every pending request, when the connection is lost.
+     *
+     * @param cause the reason
+     */
+    public void failAll(Throwable cause) {
+        for (CompletableFuture<Packet> reply : pending.values()) {
+            reply.completeExceptionally(cause);
+        }
+        pending.clear();
+    }
+
+}
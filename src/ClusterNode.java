@@ -0,0 +1,723 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ClusterNode class links this server with the other nodes of a cluster.
+ * Each node owns the connections of the users who registered on it, and the
+ * nodes share a directory of who is online on which node and of the members
+ * of every session. A session belongs to the node that created it, which
+ * makes every change to its members, in order, and replicates each change to
+ * every peer; the other nodes send it the invites and leaves of their users.
+ * A packet for users on another node is forwarded to that node once, with the
+ * names of its recipients there, so a message or a voice note to a group
+ * crosses each link once whatever the number of recipients behind it. User
+ * ids are local to each node, so the nodes name users by nickname, and a
+ * forwarded packet carries the names of the users it refers to.
+ *
+ * A node sends to each peer over a link it dials itself and receives over the
+ * links the peers dial, so every link carries packets one way, in order. When
+ * a link comes up the dialling node sends its whole share of the directory,
+ * and when a peer's link goes down its users are taken off the directory and
+ * out of the sessions of this node, as if they had disconnected. Calls stay on the node
+ * whose media relay created the session.
+ *
+ * The cluster port listens on CLUSTER_ADDRESS only, and a node dials its
+ * peers from that address. A link must start with a hello naming a peer of
+ * tschat.peers, come from an address of that peer's host and carry the
+ * cluster secret, if one is set, and a peer may have one link in at a time.
+ * Any other link is closed before a packet of it is handled.
+ */
+public class ClusterNode {
+
+    /** The id of this node, 0 to MAX_NODES - 1, unique in the cluster. */
+    static final int NODE_ID = Integer.getInteger("tschat.nodeId", 0);
+
+    /** The other nodes, as id@host:port of their cluster ports, empty runs a single server. */
+    static final String PEERS = System.getProperty("tschat.peers", "");
+
+    /** The TCP port the peers dial. */
+    static final int CLUSTER_PORT = Integer.getInteger("tschat.clusterPort", ServerCore.PORT + 1000);
+
+    /** The address the cluster port listens on and the peers are dialled from. */
+    static final String CLUSTER_ADDRESS = System.getProperty("tschat.clusterAddress", "localhost");
+
+    /** The secret every node of the cluster sends in its hello, empty sends none. */
+    static final String CLUSTER_SECRET = System.getProperty("tschat.clusterSecret", "");
+
+    /** The most nodes in a cluster, session ids carry the id of the node that created them. */
+    static final int MAX_NODES = 16;
+
+    /** How long a node waits before dialling a peer again, in milliseconds. */
+    static final long RETRY_MILLIS = 1000;
+
+    /** The handlers of the packets a peer can send. */
+    static final PacketDispatcher<Link> DISPATCHER = new PacketDispatcher<Link>(Link::invalid)
+            .register(PacketType.CLUSTER_HELLO, Link::hello)
+            .register(PacketType.CLUSTER_USER, Link::user)
+            .register(PacketType.CLUSTER_SESSION, Link::session)
+            .register(PacketType.CLUSTER_MEMBER, Link::member)
+            .register(PacketType.CLUSTER_FORWARD, Link::forward);
+
+    private final ServerCore server;
+
+    /** The links to the peers, by node id. */
+    private final HashMap<Integer, Peer> peers = new HashMap<Integer, Peer>();
+
+    /** Maps the nicknames of the users connected to other nodes to their node. */
+    final ConcurrentHashMap<String, Integer> remoteUsers = new ConcurrentHashMap<String, Integer>();
+
+    /** The peers with a link in, by node id. */
+    private final Set<Integer> linked = ConcurrentHashMap.newKeySet();
+
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a new ClusterNode.
+     *
+     * @param server the server this node runs
+     */
+    public ClusterNode(ServerCore server) {
+        this.server = server;
+        for (String peer : PEERS.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("tschat.peers entries are id@host:port: " + peer);
+            }
+            int id = Integer.parseInt(peer.substring(0, at));
+            peers.put(id, new Peer(id, peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }
+
+    /**
+     * Whether this server has peers.
+     *
+     * @return true if it is a node of a cluster
+     */
+    boolean enabled() {
+        return !peers.isEmpty();
+    }
+
+    /**
+     * Starts accepting the links of the peers and dialling them, unless this
+     * server runs on its own.
+     *
+     * @throws IOException if the cluster port cannot be opened
+     */
+    void start() throws IOException {
+
+        if (!enabled()) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(CLUSTER_PORT, 50, InetAddress.getByName(CLUSTER_ADDRESS));
+        Thread accept = new Thread(() -> {
+            while (!stopped) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Link link = new Link(socket);
+                    new Thread(link, "cluster-in-" + socket.getRemoteSocketAddress()).start();
+                } catch (IOException e) {
+                    if (!stopped) {
+                        System.out.println("[!] Cluster link not accepted: " + e.getMessage());
+                    }
+                }
+            }
+        }, "cluster-accept");
+        accept.setDaemon(true);
+        accept.start();
+
+        for (Peer peer : peers.values()) {
+            Thread dial = new Thread(peer, "cluster-out-" + peer.id);
+            dial.setDaemon(true);
+            dial.start();
+        }
+
+    }
+
+    /**
+     * Stops the links to the peers.
+     */
+    void stop() {
+        stopped = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Assigns the id of a new session, unique in the cluster.
+     *
+     * @param sequence the next number from the session counter of this node
+     *
+     * @return the session id
+     */
+    int sessionId(int sequence) {
+        return enabled() ? sequence * MAX_NODES + NODE_ID : sequence;
+    }
+
+    /**
+     * Whether a session was created by this node, which then makes the changes
+     * to its members.
+     *
+     * @param sessionId the session
+     *
+     * @return true if this node owns the session
+     */
+    boolean owns(int sessionId) {
+        return !enabled() || Math.floorMod(sessionId, MAX_NODES) == NODE_ID;
+    }
+
+    /**
+     * Asks the node that owns a session to add a user to it or remove one.
+     *
+     * @param sessionId the session
+     * @param nickname  the user
+     * @param leave     true to remove the user, false to add it
+     * @param isPrivate whether the session is private
+     */
+    void memberChange(int sessionId, String nickname, boolean leave, boolean isPrivate) {
+        Peer peer = peers.get(Math.floorMod(sessionId, MAX_NODES));
+        if (peer != null) {
+            Packet packet = new Packet("clusterMember", isPrivate, sessionId, nickname);
+            packet.isLeave = leave;
+            peer.send(packet, false);
+        }
+    }
+
+    /**
+     * The number a session id was assigned from, the inverse of sessionId.
+     *
+     * @param sessionId the session
+     *
+     * @return the number from the session counter of the node that created it
+     */
+    int sequence(int sessionId) {
+        return enabled() ? Math.floorDiv(sessionId, MAX_NODES) : sessionId;
+    }
+
+    /**
+     * The node a user is connected to.
+     *
+     * @param nickname the user
+     *
+     * @return the id of its node, or -1 if it is not connected to another node
+     */
+    int nodeOf(String nickname) {
+        Integer node = remoteUsers.get(nickname);
+        return node == null ? -1 : node;
+    }
+
+    /**
+     * Tells the peers that a user registered on this node.
+     *
+     * @param nickname the user
+     */
+    void userJoined(String nickname) {
+        broadcast(new Packet("clusterUser", false, null, nickname));
+    }
+
+    /**
+     * Tells the peers that a user of this node left.
+     *
+     * @param nickname the user
+     */
+    void userLeft(String nickname) {
+        Packet packet = new Packet("clusterUser", false, null, nickname);
+        packet.isLeave = true;
+        broadcast(packet);
+    }
+
+    /**
+     * Replicates the member list of a session to the peers. Called on the
+     * shard of the session, after each change, so every peer sees the
+     * versions in order. An empty list ends the session.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     */
+    void sessionChanged(int sessionId, SessionRecord session) {
+        if (enabled()) {
+            broadcast(snapshot(sessionId, session));
+        }
+    }
+
+    /**
+     * Forwards a packet to users connected to other nodes, once per node.
+     *
+     * @param packet the packet
+     * @param byNode the recipients on each node
+     */
+    void forward(Packet packet, Map<Integer, ArrayList<String>> byNode) {
+        for (Map.Entry<Integer, ArrayList<String>> entry : byNode.entrySet()) {
+            Peer peer = peers.get(entry.getKey());
+            if (peer != null) {
+                Packet forwarded = new Packet("clusterForward", null, entry.getValue());
+                forwarded.payload = packet;
+                server.ids.nameAll(forwarded, packet);
+                peer.send(forwarded, true);
+            }
+        }
+    }
+
+    /**
+     * Summarises the cluster for the metrics report.
+     *
+     * @return a one line summary
+     */
+    String summary() {
+        int up = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.out != null) {
+                up++;
+            }
+        }
+        return String.format("node=%d peers=%d/%d remoteUsers=%d", NODE_ID, up, peers.size(), remoteUsers.size());
+    }
+
+    /**
+     * Sends a packet to every peer.
+     *
+     * @param packet the packet
+     */
+    private void broadcast(Packet packet) {
+        for (Peer peer : peers.values()) {
+            peer.send(packet, false);
+        }
+    }
+
+    /**
+     * Builds the replicated member list of a session, called on the shard of
+     * the session.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     *
+     * @return a "clusterSession" packet stamped with the version of the list
+     */
+    private Packet snapshot(int sessionId, SessionRecord session) {
+        ArrayList<String> users = new ArrayList<String>(session.size());
+        for (int i = 0; i < session.size(); i++) {
+            users.add(server.ids.name(session.user(i)));
+        }
+        Packet packet = new Packet("clusterSession", null, users);
+        packet.sessionId = sessionId;
+        packet.version = session.version;
+        packet.isPrivate = !session.group;
+        return packet;
+    }
+
+    /**
+     * Sends this node's share of the directory to a peer that just came up:
+     * the users connected here and the member lists of the sessions it owns.
+     *
+     * @param peer the peer
+     */
+    private void resync(Peer peer) {
+        Packet hello = new Packet("clusterHello", Integer.toString(NODE_ID), null);
+        hello.messageData = CLUSTER_SECRET;
+        peer.send(hello, false);
+        for (String nickname : server.userList.keySet()) {
+            peer.send(new Packet("clusterUser", false, null, nickname), false);
+        }
+        for (Integer sessionId : server.sessions.keySet()) {
+            if (!owns(sessionId)) {
+                continue;
+            }
+            server.shards.execute(sessionId, () -> {
+                SessionRecord session = server.sessions.get(sessionId);
+                if (session != null && !session.isEmpty()) {
+                    peer.send(snapshot(sessionId, session), false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies a member list replicated by a peer, unless this node already
+     * has that version or a newer one. The members connected to this node get
+     * the full list. Runs on the shard of the session.
+     *
+     * @param sessionId the session
+     * @param users     the members, empty if the session ended
+     * @param version   the version of the list
+     * @param group     whether it is a group session
+     */
+    private void applySession(int sessionId, ArrayList<String> users, long version, boolean group) {
+
+        SessionRecord session = server.sessions.get(sessionId);
+        if (session == null) {
+            if (users.isEmpty()) {
+                return;
+            }
+            // the session has no call channels on this node
+            SessionRecord created = new SessionRecord(-1, group);
+            server.sessions.put(sessionId, created);
+            session = created;
+        }
+
+        if (version <= session.version) {
+            return;
+        }
+        session.version = (int) version;
+        server.leftAll(sessionId, session);
+        session.clear();
+        for (String user : users) {
+            int id = server.ids.id(user);
+            session.add(id);
+            server.joined(id, sessionId);
+        }
+        if (users.isEmpty()) {
+            server.sessions.remove(sessionId, session);
+            return;
+        }
+        Packet checkpoint = server.membersCheckpoint(sessionId, session);
+        for (int i = 0; i < session.size(); i++) {
+            AddressWrapper member = server.ids.connection(session.user(i));
+            if (member != null) {
+                member.out.send(checkpoint);
+            }
+        }
+
+    }
+
+    /**
+     * Takes the users of a peer that went down off the directory and out of
+     * the sessions of this node, and drops the copies of the sessions of the
+     * peer, which starts them afresh if it comes back.
+     *
+     * @param node the id of the peer
+     */
+    private void nodeDown(int node) {
+        for (Map.Entry<String, Integer> entry : remoteUsers.entrySet()) {
+            if (entry.getValue() == node && remoteUsers.remove(entry.getKey(), node)) {
+                removeUser(entry.getKey());
+            }
+        }
+        for (Integer sessionId : server.sessions.keySet()) {
+            if (Math.floorMod(sessionId, MAX_NODES) == node) {
+                server.shards.execute(sessionId, () -> {
+                    SessionRecord session = server.sessions.remove(sessionId);
+                    if (session != null) {
+                        server.leftAll(sessionId, session);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Removes a user of another node from the sessions of this node and tells
+     * the clients here that it left.
+     *
+     * @param nickname the user
+     */
+    private void removeUser(String nickname) {
+        server.leaveAllSessions(server.ids.id(nickname), 0);
+        server.presence.left(nickname);
+    }
+
+    /**
+     * The link this node dials to a peer, and sends every packet for the peer
+     * on. It redials while the server runs.
+     */
+    private final class Peer implements Runnable {
+
+        final int id;
+        final String host;
+        final int port;
+
+        /** The writer of the link, null while it is down, packets for the peer are then dropped. */
+        volatile PacketWriter out;
+        private Socket socket;
+
+        Peer(int id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Whether a link may come from an address, which must be one the host
+         * of the peer resolves to.
+         *
+         * @param address the remote address of the link
+         *
+         * @return true if it is an address of the peer
+         */
+        boolean dialsFrom(InetAddress address) {
+            try {
+                return Arrays.asList(InetAddress.getAllByName(host)).contains(address);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Queues a packet for the peer.
+         *
+         * @param packet the packet
+         * @param reset  whether the stream handle table is reset first, for
+         *               packets that may have been sent before and changed
+         */
+        void send(Packet packet, boolean reset) {
+            PacketWriter writer = out;
+            if (writer != null) {
+                if (reset) {
+                    writer.reset();
+                }
+                writer.send(packet);
+            }
+        }
+
+        /**
+         * Closes the link, the peer is dialled again.
+         */
+        synchronized void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        /**
+         * Dials the peer, sends it the directory and waits for the link to go
+         * down, again and again.
+         */
+        @Override
+        public void run() {
+
+            while (!stopped) {
+
+                try {
+                    Socket dialled = new Socket();
+                    dialled.bind(new InetSocketAddress(CLUSTER_ADDRESS, 0));
+                    dialled.connect(new InetSocketAddress(host, port), (int) RETRY_MILLIS);
+                    dialled.setTcpNoDelay(true);
+                    synchronized (this) {
+                        socket = dialled;
+                    }
+
+                    // a peer that stops reading is dropped and dialled again, and resynced
+                    PacketWriter writer = new PacketWriter(dialled.getOutputStream()).onOverflow(this::close)
+                            .start("cluster-writer-" + id);
+
+                    // changes made from here on are sent as well, some twice, which is harmless
+                    out = writer;
+                    resync(this);
+
+                    // the peer never writes on this link, a read ends when it closes
+                    InputStream in = dialled.getInputStream();
+                    while (in.read() >= 0) {
+                        // nothing to read
+                    }
+
+                } catch (IOException e) {
+                    // the peer is down, try again later
+                }
+
+                PacketWriter writer = out;
+                out = null;
+                if (writer != null) {
+                    writer.close();
+                }
+                close();
+
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * A link a peer dialled, which this node reads the packets of the peer
+     * from.
+     */
+    final class Link implements Runnable {
+
+        private final Socket socket;
+
+        /** The id of the peer, -1 until it says hello. */
+        private int node = -1;
+
+        Link(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Reads and handles the packets of the peer until the link goes down,
+         * then takes the users of the peer off the directory.
+         */
+        @Override
+        public void run() {
+
+            try {
+                // the limits of client packets hold here too, peers have no memory budget
+                PacketInputStream in = new PacketInputStream(socket.getInputStream(), null);
+                String refused = admit(in.readPacket());
+                if (refused != null) {
+                    System.out.println("[!] Refused a cluster link from " + socket.getRemoteSocketAddress() + ": "
+                            + refused);
+                    socket.close();
+                    return;
+                }
+                while (true) {
+                    Packet packet = in.readPacket();
+                    try {
+                        DISPATCHER.dispatch(this, packet);
+                    } catch (Exception e) {
+                        System.out.println("[!] Cluster packet from node " + node + " failed: " + e);
+                    }
+                }
+            } catch (PacketInputStream.Rejected e) {
+                System.out.println("[!] Rejected a packet from cluster node " + node + ": " + e.getMessage());
+            } catch (Exception e) {
+                // the link is down
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            if (node >= 0) {
+                linked.remove(node);
+                if (!stopped) {
+                    System.out.println("[!] Lost the link from cluster node " + node);
+                    nodeDown(node);
+                }
+            }
+
+        }
+
+        /**
+         * Checks the hello a link starts with, and takes the node it names as
+         * the peer of the link.
+         *
+         * @param packet the first packet of the link
+         *
+         * @return why the link is refused, or null if it is admitted
+         */
+        private String admit(Packet packet) {
+            if (PacketType.kind(packet) != PacketType.CLUSTER_HELLO) {
+                return "no hello";
+            }
+            int claimed;
+            try {
+                claimed = Integer.parseInt(packet.stringData);
+            } catch (NumberFormatException e) {
+                return "bad node id " + packet.stringData;
+            }
+            Peer peer = peers.get(claimed);
+            if (claimed == NODE_ID || peer == null) {
+                return "node " + claimed + " is not a peer";
+            }
+            if (!peer.dialsFrom(socket.getInetAddress())) {
+                return "node " + claimed + " is not at " + socket.getInetAddress().getHostAddress();
+            }
+            byte[] secret = packet.messageData == null ? new byte[0]
+                    : packet.messageData.getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(secret, CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8))) {
+                return "wrong cluster secret from node " + claimed;
+            }
+            if (!linked.add(claimed)) {
+                return "node " + claimed + " is linked already";
+            }
+            node = claimed;
+            return null;
+        }
+
+        // a link says hello once, a second one is not trusted
+        void hello(Packet packet) throws IOException {
+            System.out.println("[!] Second hello on the link from cluster node " + node);
+            socket.close();
+        }
+
+        // a user registered on, or left, the peer
+        void user(Packet packet) {
+            if (packet.isLeave) {
+                if (remoteUsers.remove(packet.invitee, node)) {
+                    removeUser(packet.invitee);
+                }
+            } else if (remoteUsers.put(packet.invitee, node) == null) {
+                server.presence.joined(packet.invitee);
+                server.resume(server.ids.id(packet.invitee));
+            }
+        }
+
+        // the member list of a session changed on the peer
+        void session(Packet packet) {
+            if (!owns(packet.sessionId)) {
+                server.shards.execute(packet.sessionId,
+                        () -> applySession(packet.sessionId, packet.listData, packet.version,
+                                !packet.isPrivate));
+            }
+        }
+
+        // a user of the peer joins or leaves a session of this node
+        void member(Packet packet) {
+            server.shards.execute(packet.sessionId, () -> {
+                int user = server.ids.id(packet.invitee);
+                if (packet.isLeave) {
+                    server.leaveSession(packet.sessionId, user, 0);
+                    return;
+                }
+                SessionRecord session = server.sessions.get(packet.sessionId);
+                if (session != null && server.online(packet.invitee)) {
+                    server.addMember(packet.sessionId, session, user, packet.isPrivate);
+                }
+            });
+        }
+
+        // a packet for users connected to this node, named by the ids of the peer
+        void forward(Packet packet) {
+            server.ids.localize(packet);
+            for (String user : packet.listData) {
+                AddressWrapper recipient = server.userList.get(user);
+                if (recipient != null) {
+                    recipient.out.reset();
+                    recipient.out.send(packet.payload);
+                }
+            }
+        }
+
+        // unknown packet
+        void invalid(Packet packet) {
+            System.out.println("[!] Invalid cluster packet from node " + node + ": " + packet.type);
+        }
+
+    }
+
+}
@@ -0,0 +1,423 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The EventLog class is the structured server event log. Worker threads record
+ * events into a fixed-size, preallocated ring buffer without locks or string
+ * building. A single consumer thread drains the ring, formats each event and
+ * hands the lines to a rolling log file and to any attached sinks, such as the
+ * admin view of the Server window.
+ *
+ * When the ring is full new events are dropped and counted instead of blocking
+ * the worker that records them.
+ */
+public class EventLog implements Runnable {
+
+    // event kinds
+    static final int SERVER_START = 0;
+    static final int CONNECT = 1;
+    static final int DUPLICATE_NICKNAME = 2;
+    static final int DISCONNECT = 3;
+    static final int ECHO = 4;
+    static final int MESSAGE = 5;
+    static final int NO_SESSION = 6;
+    static final int VOICENOTE = 7;
+    static final int CALL_JOIN = 8;
+    static final int CALL_LEAVE = 9;
+    static final int SESSION_CREATE = 10;
+    static final int INVITE = 11;
+    static final int SESSION_LEAVE = 12;
+    static final int INVALID_REQUEST = 13;
+    static final int NO_CALL_CHANNELS = 14;
+    static final int SESSION_END = 15;
+    static final int CONNECTION_LOST = 16;
+    static final int IDLE_TIMEOUT = 17;
+    static final int STATE_RESTORED = 18;
+    static final int SNAPSHOT = 19;
+    static final int SESSION_RESUME = 20;
+    static final int RESUME_EXPIRED = 21;
+    static final int PACKET_REJECTED = 22;
+    static final int SLOW_CONSUMER = 23;
+
+    /**
+     * Receives the formatted lines drained from the ring, always on the
+     * consumer thread.
+     */
+    public interface Sink {
+        void append(ArrayList<String> lines);
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    /** Most events drained before the file is flushed and the sinks are called. */
+    private static final int BATCH = 256;
+
+    // preallocated event slots
+    private final int mask;
+    private final long[] times;
+    private final int[] kinds;
+    private final String[] users;
+    private final String[] targets;
+    private final int[] sessionIds;
+    private final int[] details;
+    private final long[] values;
+
+    /** The sequence number published in each slot, -1 while it is empty. */
+    private final AtomicLongArray published;
+
+    /** The next sequence number to be claimed by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The next sequence number to be drained by the consumer. */
+    private volatile long head;
+
+    /** Events dropped because the ring was full. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final CopyOnWriteArrayList<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+
+    // rolling file output
+    private final File file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private BufferedWriter writer;
+    private long fileBytes;
+
+    /**
+     * Creates a new EventLog and starts its consumer thread.
+     *
+     * @param capacity     the number of slots, rounded up to a power of two
+     * @param file         the log file, or null to keep no file
+     * @param maxFileBytes the size at which the log file is rolled over
+     * @param maxFiles     the number of rolled over files to keep
+     */
+    public EventLog(int capacity, File file, long maxFileBytes, int maxFiles) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.kinds = new int[size];
+        this.users = new String[size];
+        this.targets = new String[size];
+        this.sessionIds = new int[size];
+        this.details = new int[size];
+        this.values = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+
+        Thread consumer = new Thread(this, "event-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Creates the server event log, configured through the tschat.log* system
+     * properties.
+     *
+     * @return the event log
+     */
+    public static EventLog create() {
+        String path = System.getProperty("tschat.logFile", "logs/server.log");
+        File file = path.isEmpty() ? null : new File(path);
+        return new EventLog(Integer.getInteger("tschat.logCapacity", 1 << 16), file,
+                Long.getLong("tschat.logFileBytes", 8L << 20), Integer.getInteger("tschat.logFiles", 5));
+    }
+
+    /**
+     * Attaches a sink that receives every formatted line from now on.
+     *
+     * @param sink the sink to attach
+     */
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Removes a previously attached sink.
+     *
+     * @param sink the sink to remove
+     */
+    public void removeSink(Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Records an event that only concerns a user.
+     *
+     * @param kind the event kind
+     * @param user the user that caused the event
+     */
+    public void log(int kind, String user) {
+        log(kind, user, null, -1, 0, 0);
+    }
+
+    /**
+     * Records an event. Only references and primitives are stored, the line
+     * is formatted later by the consumer thread.
+     *
+     * @param kind      the event kind
+     * @param user      the user that caused the event
+     * @param target    a second user or string the event refers to
+     * @param sessionId the session the event happened in, or -1
+     * @param detail    a small detail such as the call channel
+     * @param value     a size, count or port
+     *
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean log(int kind, String user, String target, int sessionId, int detail, long value) {
+
+        // claim a slot
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int i = (int) (seq & mask);
+        times[i] = System.currentTimeMillis();
+        kinds[i] = kind;
+        users[i] = user;
+        targets[i] = target;
+        sessionIds[i] = sessionId;
+        details[i] = detail;
+        values[i] = value;
+
+        // publish the slot to the consumer
+        published.lazySet(i, seq);
+        return true;
+    }
+
+    /**
+     * Number of events dropped so far because the ring was full.
+     *
+     * @return the dropped event count
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The consumer loop. Drains published events in order, formats them and
+     * writes them out in batches.
+     */
+    @Override
+    public void run() {
+
+        ArrayList<String> batch = new ArrayList<String>(BATCH);
+        long reportedDrops = 0;
+
+        while (true) {
+
+            long seq = head;
+            int i = (int) (seq & mask);
+
+            if (published.get(i) == seq && batch.size() < BATCH) {
+                batch.add(format(i));
+
+                // release the slot
+                users[i] = null;
+                targets[i] = null;
+                head = seq + 1;
+                continue;
+            }
+
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.add(TIME.format(Instant.now()) + " [!] Event log full, dropped " + (drops - reportedDrops)
+                        + " events");
+                reportedDrops = drops;
+            }
+
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+
+            writeFile(batch);
+            for (Sink sink : sinks) {
+                sink.append(batch);
+            }
+            batch = new ArrayList<String>(BATCH);
+        }
+
+    }
+
+    /**
+     * Formats the event in a slot into a log line.
+     *
+     * @param i the slot index
+     *
+     * @return the log line
+     */
+    private String format(int i) {
+
+        String user = users[i];
+        String target = targets[i];
+        int sessionId = sessionIds[i];
+        int detail = details[i];
+        long value = values[i];
+        String line;
+
+        switch (kinds[i]) {
+            case SERVER_START:
+                line = "[+] Starting server on port " + value;
+                break;
+            case CONNECT:
+                line = "[+] A new client has connected: " + user + " (" + value + " online)";
+                break;
+            case DUPLICATE_NICKNAME:
+                line = "[!] Nickname already in use: " + user;
+                break;
+            case DISCONNECT:
+                line = "[+] Disconnecting client: " + user;
+                break;
+            case ECHO:
+                line = " - " + user + " said: " + target;
+                break;
+            case MESSAGE:
+                line = " - " + user + " sent message to session " + sessionId + " (" + value + " chars)";
+                break;
+            case NO_SESSION:
+                line = "[!] " + user + " sent to unknown session " + sessionId;
+                break;
+            case VOICENOTE:
+                line = " - " + user + " sent a voice note to session " + sessionId + " (" + value + " bytes)";
+                break;
+            case CALL_JOIN:
+                line = " - " + user + " has joined the call [channel " + detail + "] of session " + sessionId
+                        + " as channel id " + value;
+                break;
+            case CALL_LEAVE:
+                line = " - " + user + " has left the call [channel " + detail + "] of session " + sessionId;
+                break;
+            case SESSION_CREATE:
+                line = " - " + user + " created a session with id " + sessionId;
+                break;
+            case INVITE:
+                line = " - " + user + " added " + target + " to " + sessionId;
+                break;
+            case SESSION_LEAVE:
+                line = "[+] " + user + " left session " + sessionId;
+                break;
+            case INVALID_REQUEST:
+                line = "[!] Invalid request received from " + user + ": " + target;
+                break;
+            case NO_CALL_CHANNELS:
+                line = "[!] No call channels left for session " + sessionId + " of " + user;
+                break;
+            case SESSION_END:
+                line = "[+] Session " + sessionId + " ended, call channels from " + value + " released";
+                break;
+            case CONNECTION_LOST:
+                line = "[!] Lost the connection of client: " + user;
+                break;
+            case IDLE_TIMEOUT:
+                line = "[!] No heartbeat from " + user + " for " + value + " ms, closing the connection";
+                break;
+            case STATE_RESTORED:
+                line = "[+] Restored " + value + " sessions from " + target + " in " + detail + " ms";
+                break;
+            case SNAPSHOT:
+                line = "[+] Wrote a snapshot of " + value + " sessions in " + detail + " ms";
+                break;
+            case SESSION_RESUME:
+                line = "[+] " + user + " resumed " + value + " sessions";
+                break;
+            case RESUME_EXPIRED:
+                line = "[!] " + user + " did not reconnect, removed from " + value + " sessions";
+                break;
+            case PACKET_REJECTED:
+                line = "[!] Rejected a packet from " + user + ": " + target + ", closing the connection";
+                break;
+            case SLOW_CONSUMER:
+                line = "[!] " + user + " is not keeping up, " + value + " bytes queued, closing the connection";
+                break;
+            default:
+                line = "[?] Unknown event " + kinds[i];
+        }
+
+        return TIME.format(Instant.ofEpochMilli(times[i])) + " " + line;
+    }
+
+    /**
+     * Appends a batch of lines to the log file, rolling it over when it grows
+     * past its size limit.
+     *
+     * @param lines the lines to write
+     */
+    private void writeFile(ArrayList<String> lines) {
+
+        if (file == null) {
+            return;
+        }
+
+        try {
+            if (writer == null) {
+                File dir = file.getAbsoluteFile().getParentFile();
+                if (dir != null) {
+                    dir.mkdirs();
+                }
+                fileBytes = file.length();
+                writer = new BufferedWriter(new FileWriter(file, true));
+            }
+
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+                fileBytes += line.length() + 1;
+            }
+            writer.flush();
+
+            if (fileBytes >= maxFileBytes) {
+                roll();
+            }
+
+        } catch (IOException e) {
+            System.out.println("[!] Could not write the event log: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Rolls the log file over, shifting server.log.1 to server.log.2 and so on
+     * and deleting the oldest file.
+     *
+     * @throws IOException if the current file cannot be closed
+     */
+    private void roll() throws IOException {
+
+        writer.close();
+        writer = null;
+
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int n = maxFiles - 1; n >= 1; n--) {
+            new File(file.getPath() + "." + n).renameTo(new File(file.getPath() + "." + (n + 1)));
+        }
+        if (maxFiles > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JList;
+import javax.swing.SwingUtilities;
+
+/**
+ * The EventLogView class is the list model behind the admin log view of the
+ * Server window. It keeps only the most recent lines in a fixed-size ring, and
+ * because it is shown in a JList only the visible rows are ever rendered.
+ */
+public class EventLogView extends AbstractListModel<String> implements EventLog.Sink {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] lines;
+    private int start;
+    private int size;
+
+    /** The list showing this model, scrolled to the newest line on updates. */
+    private JList<String> list;
+
+    /**
+     * Creates a new EventLogView keeping at most the given number of lines.
+     *
+     * @param capacity the number of lines to keep
+     */
+    public EventLogView(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Sets the list that shows this model.
+     *
+     * @param list the list showing this model
+     */
+    public void setList(JList<String> list) {
+        this.list = list;
+    }
+
+    /**
+     * Called by the event log consumer thread with a drained batch. The batch
+     * is applied on the EDT with a single invokeLater.
+     *
+     * @param batch the formatted lines
+     */
+    @Override
+    public void append(ArrayList<String> batch) {
+        SwingUtilities.invokeLater(() -> {
+
+            int before = size;
+            boolean wrapped = false;
+
+            for (String line : batch) {
+                if (size < lines.length) {
+                    lines[(start + size) % lines.length] = line;
+                    size++;
+                } else {
+                    // drop the oldest line
+                    lines[start] = line;
+                    start = (start + 1) % lines.length;
+                    wrapped = true;
+                }
+            }
+
+            // one change event per batch
+            if (size > before) {
+                fireIntervalAdded(this, before, size - 1);
+            }
+            if (wrapped) {
+                fireContentsChanged(this, 0, size - 1);
+            }
+
+            if (list != null && size > 0) {
+                list.ensureIndexIsVisible(size - 1);
+            }
+        });
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(start + index) % lines.length];
+    }
+
+}
@@ -3,11 +3,12 @@ import java.awt.Color;
 import java.awt.Image;
 import java.awt.Toolkit;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 
+import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -31,40 +32,94 @@ import javax.swing.JLabel;
 public class GroupSession extends javax.swing.JFrame {
 
         Integer sessionId;
-        ObjectOutputStream out;
+        ClientRpc out;
         String invitee;
         String username;
         ArrayList<String> onlineUsers;
         ArrayList<String> vnReceived;
+        UserNames names;
         boolean inCall = false;
 
+        // the conversation, a bounded window over the session history
+        ChatTranscript transcript;
+
+        // the members, kept up to date by deltas, and the version of the list or -1
+        DefaultListModel<String> members = new DefaultListModel<String>();
+        long membersVersion = -1;
+
         /**
          * Constructs a GroupSession object with the specified parameters.
          * 
          * @param onlineUsers an ArrayList of online users
          * @param sessionId   the ID of the session
-         * @param out         an ObjectOutputStream for writing objects to the output
-         *                    stream
+         * @param out         the writer of the connection to the server
          * @param username    the username of the user
          * @param vnReceived  an ArrayList of voice notes received
+         * @param names       the names of the user ids the server sends
          * @throws Exception if an error occurs
          */
-        public GroupSession(ArrayList<String> onlineUsers, Integer sessionId, ObjectOutputStream out, String username,
-                        ArrayList<String> vnReceived)
+        public GroupSession(ArrayList<String> onlineUsers, Integer sessionId, ClientRpc out, String username,
+                        ArrayList<String> vnReceived, UserNames names)
                         throws Exception {
                 this.onlineUsers = onlineUsers;
                 this.sessionId = sessionId;
                 this.out = out;
                 this.username = username;
                 this.vnReceived = vnReceived;
+                this.names = names;
                 initComponents();
                 scaleImage(jLabel1, "images/group-session.png");
 
+                // show the conversation in a bounded list instead of the text area
+                transcript = new ChatTranscript(username, sessionId);
+                transcript.show(jScrollPane4, jTextArea1);
+                jList2.setModel(members);
+
                 // set online users
                 jList1.setListData(Arrays.copyOf(onlineUsers.toArray(), onlineUsers.size(), String[].class));
 
         }
 
+        /**
+         * Applies the member list of the session, or a change to it, on the EDT.
+         * Changes older than the list are skipped.
+         * 
+         * @param packet a "sessionUsers" list or a "members" change
+         * @return false if a change was missed and the full list is needed
+         */
+        boolean applyMembers(Packet packet) {
+
+                if (packet.kind == PacketType.SESSION_USERS) {
+                        if (packet.version >= membersVersion) {
+                                membersVersion = packet.version;
+                                members.clear();
+                                members.addAll(new LinkedHashSet<String>(names.names(packet.users)));
+                        }
+                        return true;
+                }
+
+                // waiting for the full list, or a change it already has
+                if (membersVersion < 0 || packet.version <= membersVersion) {
+                        return true;
+                }
+                if (packet.version != membersVersion + 1) {
+                        membersVersion = -1;
+                        return false;
+                }
+                membersVersion = packet.version;
+
+                for (String user : names.names(packet.users)) {
+                        if (!members.contains(user)) {
+                                members.addElement(user);
+                        }
+                }
+                for (String user : names.names(packet.left)) {
+                        members.removeElement(user);
+                }
+                return true;
+
+        }
+
         /**
          * This method is called from within the constructor to initialize the form.
          * WARNING: Do NOT modify this code. The content of this method is always
@@ -786,7 +841,7 @@ public class GroupSession extends javax.swing.JFrame {
                 Packet packet = new Packet("disconnectSession", false, sessionId, null);
 
                 try {
-                        out.writeObject(packet);
+                        out.send(packet);
                 } catch (IOException e) {
                         e.printStackTrace();
                 }
@@ -828,7 +883,7 @@ public class GroupSession extends javax.swing.JFrame {
 
                 // send respective packet
                 try {
-                        out.writeObject(packet);
+                        out.send(packet);
                 } catch (Exception e) {
                         e.printStackTrace();
                 }
@@ -855,10 +910,11 @@ public class GroupSession extends javax.swing.JFrame {
                         return;
                 }
 
-                // invite selected user
-                Packet packet = new Packet("invite", false, sessionId, invitee);
+                // invite selected user, by the id the server gave it
+                Packet packet = new Packet("invite", false, sessionId, null);
+                packet.user = names.id(invitee);
                 try {
-                        out.writeObject(packet);
+                        out.send(packet);
                 } catch (Exception e) {
                         e.printStackTrace();
                 }
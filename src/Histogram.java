@@ -0,0 +1,142 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Histogram class records a distribution of non-negative values, such as
+ * latencies in nanoseconds, into logarithmic buckets. Each power of two is split
+ * into four sub-buckets, which keeps the error of a percentile within 25%.
+ * Recording takes no locks and allocates nothing, so it is cheap enough for the
+ * hot paths of the server.
+ */
+public class Histogram {
+
+    /** Sub-buckets per power of two, as a number of bits. */
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Number of values recorded.
+     *
+     * @return the count
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Mean of the values recorded, or 0 when empty.
+     *
+     * @return the mean
+     */
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    /**
+     * Estimates a percentile of the values recorded, as the upper bound of the
+     * bucket the percentile falls in.
+     *
+     * @param percentile the percentile, between 0 and 100
+     *
+     * @return the estimated value, or 0 when empty
+     */
+    public long percentile(double percentile) {
+
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+    }
+
+    /**
+     * Summarises the histogram, dividing every value by the given unit.
+     *
+     * @param unit the divisor, for example 1000 to print nanoseconds as micros
+     *
+     * @return a one line summary
+     */
+    public String summary(long unit) {
+        return String.format("n=%d mean=%.1f p50=%d p99=%d p999=%d max<=%d", count(), mean() / unit,
+                percentile(50) / unit, percentile(99) / unit, percentile(99.9) / unit, percentile(100) / unit);
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value a non-negative value
+     *
+     * @return the bucket index
+     */
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * The largest value that falls into a bucket.
+     *
+     * @param bucket the bucket index
+     *
+     * @return the upper bound of the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+}
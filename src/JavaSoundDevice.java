@@ -0,0 +1,97 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Clip;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * The JavaSoundDevice class opens the lines of the sound card through Java
+ * Sound. It is the default device of the client.
+ */
+public class JavaSoundDevice implements AudioDevice {
+
+    @Override
+    public AudioCapture openCapture(AudioFormat format) throws Exception {
+
+        DataLine.Info inputInfo = new DataLine.Info(TargetDataLine.class, format);
+        TargetDataLine line = (TargetDataLine) AudioSystem.getLine(inputInfo);
+        line.open(format);
+
+        return new AudioCapture() {
+            volatile boolean stopped;
+
+            public AudioFormat getFormat() {
+                return line.getFormat();
+            }
+
+            public void start() {
+                line.start();
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (stopped) {
+                    return -1;
+                }
+                int n = line.read(b, off, len);
+                return n == 0 && stopped ? -1 : n;
+            }
+
+            public void stop() {
+                stopped = true;
+                line.stop();
+            }
+
+            public void close() {
+                line.close();
+            }
+
+            public AudioInputStream stream() {
+                return new AudioInputStream(line);
+            }
+        };
+    }
+
+    @Override
+    public AudioPlayback openPlayback(AudioFormat format) throws Exception {
+
+        DataLine.Info outputInfo = new DataLine.Info(SourceDataLine.class, format);
+        SourceDataLine line = (SourceDataLine) AudioSystem.getLine(outputInfo);
+        line.open(format);
+
+        return new AudioPlayback() {
+            public AudioFormat getFormat() {
+                return line.getFormat();
+            }
+
+            public void start() {
+                line.start();
+            }
+
+            public int write(byte[] b, int off, int len) {
+                return line.write(b, off, len);
+            }
+
+            public void drain() {
+                line.drain();
+            }
+
+            public void stop() {
+                line.stop();
+            }
+
+            public void close() {
+                line.close();
+            }
+        };
+    }
+
+    @Override
+    public void play(AudioInputStream in) throws Exception {
+        Clip clip = AudioSystem.getClip();
+        clip.open(in);
+        clip.start();
+    }
+
+}
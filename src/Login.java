@@ -1,8 +1,6 @@
 import java.awt.Color;
 import java.awt.Image;
 import java.awt.Toolkit;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 import javax.swing.ImageIcon;
@@ -411,19 +409,20 @@ public class Login extends JFrame {
 			socket = new Socket(IP, Integer.parseInt(PORT));
 
 			// Connected successfully
-			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			PacketWriter out = new PacketWriter(socket.getOutputStream()).start("writer");
+			PacketInputStream in = new PacketInputStream(socket.getInputStream(), null);
 
 			// register user with nickname
 			Packet packet = new Packet("register", username, null);
-			out.writeObject(packet);
-			packet = (Packet) in.readObject();
+			out.send(packet);
+			packet = in.readPacket();
 
 			// duplicate username
 			if (packet.type == "error") {
 
 				JOptionPane.showMessageDialog(loginFrame, "Invalid username", "Error", JOptionPane.ERROR_MESSAGE);
 
+				out.close();
 				return;
 			}
 
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The MediaRelay class forwards the call audio of all sessions over one UDP
+ * socket on the server. Each datagram carries the MediaSocket header, and its
+ * call channel id indexes straight into the demux table, so routing a datagram
+ * takes one array read. The datagram is then sent to every other member of the
+ * channel. A member is admitted by ClientManager when it joins the call, and
+ * its UDP endpoint is learned from the first datagram it sends from the address
+ * of its TCP connection, which is why clients send an empty datagram on join.
+ */
+public class MediaRelay implements Runnable {
+
+    /**
+     * The members of one call channel. The member array is replaced on every
+     * change, so the relay thread reads it without locking.
+     */
+    static class Channel {
+
+        final int session;
+        volatile Member[] members = new Member[0];
+
+        Channel(int session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * One user in a call channel.
+     */
+    static class Member {
+
+        final int ssrc;
+        final InetAddress address;
+        volatile InetSocketAddress endpoint;
+
+        Member(int ssrc, InetAddress address) {
+            this.ssrc = ssrc;
+            this.address = address;
+        }
+    }
+
+    /** The demux table, indexed by call channel id. */
+    private final AtomicReferenceArray<Channel> channels;
+
+    private DatagramSocket socket;
+
+    final LongAdder datagramsIn = new LongAdder();
+    final LongAdder datagramsOut = new LongAdder();
+    final LongAdder datagramsDropped = new LongAdder();
+
+    /**
+     * Creates a new MediaRelay.
+     *
+     * @param size the number of call channel ids, ids run from 0 to size - 1
+     */
+    public MediaRelay(int size) {
+        this.channels = new AtomicReferenceArray<Channel>(size);
+    }
+
+    /**
+     * Starts relaying on a socket, on a daemon thread.
+     *
+     * @param socket the socket the clients send to
+     */
+    public void start(DatagramSocket socket) {
+        this.socket = socket;
+        Thread thread = new Thread(this, "media-relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Admits a user to a call channel.
+     *
+     * @param id      the call channel id
+     * @param session the session the channel belongs to
+     * @param ssrc    the SSRC of the user
+     * @param address the address the user connects from
+     */
+    public synchronized void join(int id, int session, int ssrc, InetAddress address) {
+        Channel channel = channels.get(id);
+        if (channel == null || channel.session != session) {
+            channel = new Channel(session);
+            channels.set(id, channel);
+        }
+        Member[] members = channel.members;
+        Member[] joined = new Member[members.length + 1];
+        int n = 0;
+        for (Member member : members) {
+            if (member.ssrc != ssrc) {
+                joined[n++] = member;
+            }
+        }
+        joined[n++] = new Member(ssrc, address);
+        channel.members = n == joined.length ? joined : Arrays.copyOf(joined, n);
+    }
+
+    /**
+     * Removes a user from a call channel.
+     *
+     * @param id   the call channel id
+     * @param ssrc the SSRC of the user
+     */
+    public synchronized void leave(int id, int ssrc) {
+        Channel channel = channels.get(id);
+        if (channel == null) {
+            return;
+        }
+        Member[] members = channel.members;
+        Member[] left = new Member[members.length];
+        int n = 0;
+        for (Member member : members) {
+            if (member.ssrc != ssrc) {
+                left[n++] = member;
+            }
+        }
+        channel.members = Arrays.copyOf(left, n);
+    }
+
+    /**
+     * Removes a call channel, when its id goes back to the allocator.
+     *
+     * @param id the call channel id
+     */
+    public synchronized void close(int id) {
+        channels.set(id, null);
+    }
+
+    /**
+     * Receives and routes datagrams until the socket is closed.
+     */
+    @Override
+    public void run() {
+
+        byte[] buffer = new byte[MediaSocket.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        try {
+            while (true) {
+                packet.setData(buffer);
+                socket.receive(packet);
+                route(packet);
+            }
+        } catch (IOException e) {
+            // the socket was closed
+        }
+
+    }
+
+    /**
+     * Routes one datagram to the other members of its channel. The datagram is
+     * dropped if its header is invalid, if its channel is not live for its
+     * session, or if its sender is not a member connecting from its address.
+     *
+     * @param packet the datagram, its address is overwritten
+     *
+     * @return the number of members it was sent to
+     *
+     * @throws IOException if a datagram cannot be sent
+     */
+    int route(DatagramPacket packet) throws IOException {
+
+        datagramsIn.increment();
+        byte[] b = packet.getData();
+        int length = packet.getLength();
+        int id = length < MediaSocket.HEADER || b[0] != MediaSocket.VERSION ? -1 : MediaSocket.readInt(b, 8);
+
+        Channel channel = id >= 0 && id < channels.length() ? channels.get(id) : null;
+        if (channel == null || channel.session != MediaSocket.readInt(b, 4)) {
+            datagramsDropped.increment();
+            return 0;
+        }
+
+        // find the sender and learn its endpoint
+        int ssrc = MediaSocket.readInt(b, 12);
+        Member[] members = channel.members;
+        Member sender = null;
+        for (Member member : members) {
+            if (member.ssrc == ssrc) {
+                sender = member;
+                break;
+            }
+        }
+        if (sender == null || !sender.address.equals(packet.getAddress())) {
+            datagramsDropped.increment();
+            return 0;
+        }
+        InetSocketAddress endpoint = sender.endpoint;
+        if (endpoint == null || endpoint.getPort() != packet.getPort()) {
+            sender.endpoint = new InetSocketAddress(packet.getAddress(), packet.getPort());
+        }
+
+        // an empty datagram only announces the endpoint
+        if (length == MediaSocket.HEADER) {
+            return 0;
+        }
+
+        int sent = 0;
+        for (Member member : members) {
+            InetSocketAddress to = member.endpoint;
+            if (member == sender || to == null) {
+                continue;
+            }
+            packet.setSocketAddress(to);
+            socket.send(packet);
+            sent++;
+        }
+        datagramsOut.add(sent);
+        return sent;
+
+    }
+
+    /**
+     * Stops relaying.
+     */
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+}
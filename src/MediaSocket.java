@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MediaSocket class carries all the call audio of a client over one UDP
+ * socket. Every datagram goes to the server's MediaRelay and starts with a
+ * header naming the session, the call channel and the sender (SSRC), so the
+ * relay and the receiving clients can route it without a socket per call.
+ *
+ * Header layout, big-endian:
+ *
+ * 0      version
+ * 1      reserved
+ * 2-3    sequence number
+ * 4-7    session id
+ * 8-11   call channel id, assigned by the server and unique among the live
+ *        channels of all sessions
+ * 12-15  SSRC of the sender
+ */
+public class MediaSocket implements Runnable {
+
+    static final int VERSION = 1;
+    static final int HEADER = 16;
+
+    /** The largest datagram sent or received. */
+    static final int MAX_DATAGRAM = 2048;
+
+    private final DatagramSocket socket;
+    private final SocketAddress relay;
+
+    /** The calls of this client, by call channel id. */
+    private final ConcurrentHashMap<Integer, VoiceChat> calls = new ConcurrentHashMap<Integer, VoiceChat>();
+
+    /**
+     * Creates a MediaSocket on an ephemeral local port.
+     *
+     * @param relay the address of the server's media relay
+     *
+     * @throws SocketException if the socket cannot be opened
+     */
+    public MediaSocket(SocketAddress relay) throws SocketException {
+        this(relay, new DatagramSocket());
+    }
+
+    /**
+     * Creates a MediaSocket on a given socket.
+     *
+     * @param relay  the address of the server's media relay
+     * @param socket the socket to send and receive on
+     */
+    public MediaSocket(SocketAddress relay, DatagramSocket socket) {
+        this.relay = relay;
+        this.socket = socket;
+    }
+
+    /**
+     * Starts receiving on a daemon thread.
+     *
+     * @return this socket
+     */
+    public MediaSocket start() {
+        Thread thread = new Thread(this, "media-" + socket.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Routes the datagrams of a call channel to a call.
+     *
+     * @param channel the call channel id
+     * @param call    the call
+     */
+    void register(int channel, VoiceChat call) {
+        calls.put(channel, call);
+    }
+
+    /**
+     * Stops routing the datagrams of a call channel to a call.
+     *
+     * @param channel the call channel id
+     * @param call    the call
+     */
+    void unregister(int channel, VoiceChat call) {
+        calls.remove(channel, call);
+    }
+
+    /**
+     * Sends a datagram, header included, to the relay.
+     *
+     * @param data   the datagram
+     * @param length the length of the datagram
+     *
+     * @throws IOException if the datagram cannot be sent
+     */
+    void send(byte[] data, int length) throws IOException {
+        socket.send(new DatagramPacket(data, length, relay));
+    }
+
+    /**
+     * Receives datagrams and hands their audio to the call of their channel.
+     */
+    @Override
+    public void run() {
+
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                int length = packet.getLength();
+                if (length < HEADER || buffer[0] != VERSION) {
+                    continue;
+                }
+                VoiceChat call = calls.get(readInt(buffer, 8));
+                if (call != null) {
+                    call.deliver(buffer, HEADER, length - HEADER);
+                }
+            }
+        } catch (Exception e) {
+            // the socket was closed
+        }
+
+    }
+
+    /**
+     * Closes the socket.
+     */
+    public void close() {
+        socket.close();
+    }
+
+    /**
+     * Writes a datagram header.
+     *
+     * @param b        the datagram
+     * @param sequence the sequence number
+     * @param session  the session id
+     * @param channel  the call channel id
+     * @param ssrc     the SSRC of the sender
+     */
+    static void writeHeader(byte[] b, int sequence, int session, int channel, int ssrc) {
+        b[0] = VERSION;
+        b[1] = 0;
+        b[2] = (byte) (sequence >> 8);
+        b[3] = (byte) sequence;
+        writeInt(b, 4, session);
+        writeInt(b, 8, channel);
+        writeInt(b, 12, ssrc);
+    }
+
+    static void writeInt(byte[] b, int at, int value) {
+        b[at] = (byte) (value >> 24);
+        b[at + 1] = (byte) (value >> 16);
+        b[at + 2] = (byte) (value >> 8);
+        b[at + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] b, int at) {
+        return (b[at] << 24) | ((b[at + 1] & 0xff) << 16) | ((b[at + 2] & 0xff) << 8) | (b[at + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * The MemoryBudget class bounds the heap taken by the payloads the server has
+ * read and not yet handled. Budgets form a tree: each connection has its own
+ * budget, whose parent is the global budget of the server, and a reservation
+ * must fit in every budget up to the root. A reader that cannot reserve waits
+ * for other payloads to be released, which stops it reading its socket and so
+ * pushes back on its client, and gives up after a timeout.
+ *
+ * All budgets of a tree share the lock of the root.
+ */
+public class MemoryBudget {
+
+    private final MemoryBudget parent;
+    private final Object lock;
+    private final long limit;
+
+    // the bytes reserved, guarded by lock
+    private long used;
+
+    /**
+     * Creates a root budget.
+     *
+     * @param limit the most bytes it holds
+     */
+    public MemoryBudget(long limit) {
+        this.parent = null;
+        this.lock = this;
+        this.limit = limit;
+    }
+
+    /**
+     * Creates a budget within another one.
+     *
+     * @param parent the budget it takes its bytes from as well
+     * @param limit  the most bytes it holds
+     */
+    public MemoryBudget(MemoryBudget parent, long limit) {
+        this.parent = parent;
+        this.lock = parent.lock;
+        this.limit = limit;
+    }
+
+    /**
+     * Reserves bytes in this budget and its parents, waiting for them to be
+     * released if they do not fit now.
+     *
+     * @param bytes      the bytes to reserve
+     * @param waitMillis the most time to wait
+     *
+     * @return false if they did not fit in time, or can never fit
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean reserve(long bytes, long waitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + waitMillis * 1_000_000L;
+        synchronized (lock) {
+            for (MemoryBudget budget = this; budget != null; budget = budget.parent) {
+                if (bytes > budget.limit) {
+                    return false;
+                }
+            }
+            while (!fits(bytes)) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            for (MemoryBudget budget = this; budget != null; budget = budget.parent) {
+                budget.used += bytes;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gives back reserved bytes, and wakes the readers waiting for them.
+     *
+     * @param bytes the bytes to give back, 0 does nothing
+     */
+    public void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            for (MemoryBudget budget = this; budget != null; budget = budget.parent) {
+                budget.used -= bytes;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The bytes reserved in this budget, including its children.
+     *
+     * @return the bytes in use
+     */
+    public long used() {
+        synchronized (lock) {
+            return used;
+        }
+    }
+
+    /**
+     * The most bytes this budget holds.
+     *
+     * @return the limit
+     */
+    public long limit() {
+        return limit;
+    }
+
+    private boolean fits(long bytes) {
+        for (MemoryBudget budget = this; budget != null; budget = budget.parent) {
+            if (budget.used + bytes > budget.limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -9,14 +9,17 @@ import java.util.ArrayList;
  * on its type. It implements the Serializable interface to make it
  * serializable.
  */
-public class Packet implements Serializable {
+public class Packet implements Serializable, Cloneable {
 
     // request variables
     String type;
+    int kind; // the PacketType of type, set by the constructors
     String stringData;
     ArrayList<String> listData;
+    int requestId; // 0 when no reply is expected, replies echo the id of their request
 
-    // message variables
+    // message variables, from is the sender as the client names itself, the
+    // server relays the packet with the id of the sender in user instead
     String from;
     Integer to;
     String messageData;
@@ -34,7 +37,21 @@ public class Packet implements Serializable {
     ArrayList<InetAddress> userAddresses;
     int port;
     int channel;
-    ArrayList<ArrayList<String>> callList;
+    int ssrc;
+    int[][] calls; // the users in each call channel
+
+    // user id variables, the server names users by the ids it gives them at register
+    int user; // the sender, the invitee, the user joining or leaving a call, or the registered user
+    int[] users; // the members of a session, or the users online
+    int[] named; // the users whose names come with the packet
+    String[] names; // their names, for the clients that may not know them yet
+
+    // delta variables, users holds the users added
+    int[] left;
+    long version;
+
+    // cluster variables, listData holds the recipients of a forwarded packet
+    Packet payload;
 
     /**
      * Constructs a new Packet object of type request.
@@ -45,6 +62,7 @@ public class Packet implements Serializable {
      */
     public Packet(String type, String stringData, ArrayList<String> listData) {
         this.type = type;
+        this.kind = PacketType.of(type);
         this.stringData = stringData;
         this.listData = listData;
     }
@@ -59,6 +77,7 @@ public class Packet implements Serializable {
      */
     public Packet(String type, boolean isPrivate, Integer sessionId, String invitee) {
         this.type = type;
+        this.kind = PacketType.of(type);
         this.isPrivate = isPrivate;
         this.sessionId = sessionId;
         this.invitee = invitee;
@@ -76,6 +95,7 @@ public class Packet implements Serializable {
      */
     public Packet(String type, String from, Integer to, String messageData, boolean isPrivate) {
         this.type = type;
+        this.kind = PacketType.of(type);
         this.from = from;
         this.to = to;
         this.messageData = messageData;
@@ -94,6 +114,7 @@ public class Packet implements Serializable {
      */
     public Packet(String type, String from, Integer to, byte[] voiceNote, boolean isPrivate) {
         this.type = type;
+        this.kind = PacketType.of(type);
         this.from = from;
         this.to = to;
         this.voiceNote = voiceNote;
@@ -114,6 +135,7 @@ public class Packet implements Serializable {
     public Packet(String type, Integer sessionId, boolean isLeave, boolean isPrivate, int port,
             ArrayList<InetAddress> userAddresses, int channel) {
         this.type = type;
+        this.kind = PacketType.of(type);
         this.sessionId = sessionId;
         this.isLeave = isLeave;
         this.isPrivate = isPrivate;
@@ -123,11 +145,82 @@ public class Packet implements Serializable {
     }
 
     // call list packet
-    public Packet(String type, Integer sessionId, boolean isPrivate, ArrayList<ArrayList<String>> callList) {
+    public Packet(String type, Integer sessionId, boolean isPrivate, int[][] calls) {
         this.type = type;
+        this.kind = PacketType.of(type);
         this.sessionId = sessionId;
         this.isPrivate = isPrivate;
-        this.callList = callList;
+        this.calls = calls;
+    }
+
+    /**
+     * A rough size of the packet, counting its voice note, strings and arrays,
+     * for bounding the packets queued for a connection.
+     *
+     * @return the size in bytes
+     */
+    long payloadBytes() {
+        long bytes = 64;
+        if (voiceNote != null) {
+            bytes += voiceNote.length;
+        }
+        if (messageData != null) {
+            bytes += messageData.length();
+        }
+        if (stringData != null) {
+            bytes += stringData.length();
+        }
+        if (listData != null) {
+            for (String item : listData) {
+                bytes += item == null ? 8 : 16 + item.length();
+            }
+        }
+        if (users != null) {
+            bytes += 4L * users.length;
+        }
+        if (names != null) {
+            for (String name : names) {
+                bytes += 20 + name.length();
+            }
+        }
+        if (payload != null) {
+            bytes += payload.payloadBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * The last packet of the chain of packets this one forwards, which holds
+     * the voice note if there is one.
+     *
+     * @return the innermost packet, this one if it forwards none
+     */
+    Packet innermost() {
+        Packet packet = this;
+        while (packet.payload != null) {
+            packet = packet.payload;
+        }
+        return packet;
+    }
+
+    /**
+     * A copy of the packet and the packets it forwards without the voice note,
+     * to send with the first chunk of the voice note.
+     *
+     * @return the copy, the other fields are shared
+     */
+    Packet withoutVoiceNote() {
+        Packet copy;
+        try {
+            copy = (Packet) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.voiceNote = null;
+        if (payload != null) {
+            copy.payload = payload.withoutVoiceNote();
+        }
+        return copy;
     }
 
 }
@@ -0,0 +1,68 @@
+/**
+ * The PacketDispatcher class maps packet kinds to handlers. Handlers are
+ * registered independently, one per kind, and dispatching a packet is one
+ * array read. Packets without a handler go to the fallback handler.
+ *
+ * @param <T> the object the handlers act on, such as a ClientManager
+ */
+public class PacketDispatcher<T> {
+
+    /**
+     * Handles the packets of one kind.
+     *
+     * @param <T> the object the handler acts on
+     */
+    public interface Handler<T> {
+
+        /**
+         * Handles a packet.
+         *
+         * @param target the object to act on
+         * @param packet the packet
+         *
+         * @throws Exception if the packet cannot be handled
+         */
+        void handle(T target, Packet packet) throws Exception;
+    }
+
+    private final Handler<T>[] handlers;
+    private final Handler<T> fallback;
+
+    /**
+     * Creates a new PacketDispatcher.
+     *
+     * @param fallback handles the packets of kinds without a handler
+     */
+    @SuppressWarnings("unchecked")
+    public PacketDispatcher(Handler<T> fallback) {
+        this.handlers = (Handler<T>[]) new Handler<?>[PacketType.COUNT];
+        this.fallback = fallback;
+    }
+
+    /**
+     * Registers the handler of a kind, replacing any previous one.
+     *
+     * @param kind    the packet kind, one of the PacketType constants
+     * @param handler the handler
+     *
+     * @return this dispatcher
+     */
+    public PacketDispatcher<T> register(int kind, Handler<T> handler) {
+        handlers[kind] = handler;
+        return this;
+    }
+
+    /**
+     * Dispatches a packet to the handler of its kind.
+     *
+     * @param target the object to act on
+     * @param packet the packet
+     *
+     * @throws Exception if the handler fails
+     */
+    public void dispatch(T target, Packet packet) throws Exception {
+        Handler<T> handler = handlers[PacketType.kind(packet)];
+        (handler == null ? fallback : handler).handle(target, packet);
+    }
+
+}
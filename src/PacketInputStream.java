@@ -0,0 +1,370 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * The PacketInputStream class is the object stream the server reads the
+ * packets of a connection from. An ObjectInputStream allocates an array as
+ * soon as it has read its length, so a peer could make the server take any
+ * amount of heap with a few bytes. This stream checks every array before it
+ * is allocated, and rejects the packet when
+ * <ul>
+ * <li>an array is larger than MAX_PAYLOAD_BYTES, or the packet is nested
+ * deeper than MAX_DEPTH or holds a class a packet never holds,</li>
+ * <li>the packet takes more than MAX_FRAME_BYTES off the wire, which bounds
+ * its strings, as they grow while they are read,</li>
+ * <li>or an array does not fit in the memory budget of the connection within
+ * BUDGET_WAIT_MILLIS.</li>
+ * </ul>
+ * The arrays of at least RESERVE_BYTES are reserved in the budget while the
+ * packet is read. The reader takes the bytes reserved for a packet with
+ * takeReserved and releases them once it has handled the packet. Smaller
+ * arrays are filled from the wire before the next one is read, so the frame
+ * limit bounds them.
+ *
+ * A voice note sent in Chunks, see PacketWriter, is put back together here:
+ * its length is checked and reserved when its first chunk arrives, the
+ * bytes that follow each chunk are read straight into it, and the packet is
+ * returned once its last chunk is read. The control and chat
+ * packets that arrive between the chunks are returned as they come.
+ *
+ * A rejected packet leaves the stream in the middle of a frame, so the
+ * connection has to be closed.
+ */
+public class PacketInputStream implements Closeable {
+
+    /** The largest array a packet may hold, in bytes, such as a voice note. */
+    static final int MAX_PAYLOAD_BYTES = Integer.getInteger("tschat.maxPayloadBytes", 16 << 20);
+
+    /** The most bytes one packet may take on the wire. */
+    static final int MAX_FRAME_BYTES = Integer.getInteger("tschat.maxFrameBytes", MAX_PAYLOAD_BYTES + 64 * 1024);
+
+    /** How long a reader waits for its memory budget before it rejects the packet, in milliseconds. */
+    static final long BUDGET_WAIT_MILLIS = Long.getLong("tschat.budgetWaitMillis", 5000);
+
+    /** The deepest a packet may nest objects, the arrays of a cluster packet sent in chunks are 5 deep. */
+    static final int MAX_DEPTH = 8;
+
+    /** The size from which arrays are reserved in the memory budget. */
+    static final int RESERVE_BYTES = 1024;
+
+    /** The buffer of the socket, the stream reads the small blocks of a chunk from it. */
+    static final int READ_BUFFER_BYTES = 16 * 1024;
+
+    /** The classes a packet is built of. */
+    private static final Set<Class<?>> CLASSES = Set.of(Packet.class, Chunk.class, String.class, Integer.class,
+            Number.class,
+            ArrayList.class, Object[].class, InetAddress.class, Inet4Address.class, Inet6Address.class,
+            byte[].class, int[].class, int[][].class, String[].class);
+
+    private final FrameStream frame;
+    private final ObjectInputStream in;
+    private final MemoryBudget budget;
+
+    /** The bytes reserved for the packet being read or last read. */
+    private long reserved;
+
+    /** Why the packet being read was rejected, null if it was not. */
+    private String rejection;
+
+    // the packet whose voice note is arriving in chunks, null between voice
+    // notes, the voice note, the bytes of it read, its stream and the bytes
+    // reserved for it
+    private Packet assembling;
+    private byte[] note;
+    private int filled;
+    private int stream;
+    private long noteReserved;
+
+    /**
+     * Creates a new PacketInputStream and reads the object stream header.
+     *
+     * @param in     the stream to read from
+     * @param budget the memory budget of the connection, or null to only
+     *               enforce the limits
+     *
+     * @throws IOException if the stream header cannot be read
+     */
+    public PacketInputStream(InputStream in, MemoryBudget budget) throws IOException {
+        this.budget = budget;
+        this.frame = new FrameStream(new BufferedInputStream(in, READ_BUFFER_BYTES));
+        this.in = new ObjectInputStream(frame);
+        this.in.setObjectInputFilter(this::check);
+    }
+
+    /**
+     * Reads the next packet, reading on through the chunks of a voice note
+     * until it is whole. The bytes reserved for the previous packet that
+     * were not taken are released first.
+     *
+     * @return the packet
+     *
+     * @throws Rejected               if the packet breaks a limit or does not
+     *                                fit in the memory budget
+     * @throws IOException            if the connection fails
+     * @throws ClassNotFoundException if the packet holds an unknown class
+     */
+    public Packet readPacket() throws IOException, ClassNotFoundException {
+        while (true) {
+            Object frame = readFrame();
+            if (frame instanceof Packet) {
+                return (Packet) frame;
+            }
+            Packet packet = assemble((Chunk) frame);
+            if (packet != null) {
+                return packet;
+            }
+        }
+    }
+
+    /**
+     * Reads the next packet or chunk off the wire.
+     */
+    private Object readFrame() throws IOException, ClassNotFoundException {
+        release();
+        rejection = null;
+        frame.start = frame.count;
+        try {
+            Object object = in.readObject();
+            if (!(object instanceof Packet || object instanceof Chunk)) {
+                throw new Rejected("not a packet");
+            }
+            return object;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            release();
+            if (rejection != null) {
+                throw new Rejected(rejection);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the bytes reserved for the last packet to the caller, who releases
+     * them in the budget once the packet is handled.
+     *
+     * @return the bytes reserved
+     */
+    public long takeReserved() {
+        long bytes = reserved;
+        reserved = 0;
+        return bytes;
+    }
+
+    /**
+     * Adds a chunk to the voice note it is part of.
+     *
+     * @param chunk the chunk
+     *
+     * @return the packet of the voice note once it is whole, else null
+     *
+     * @throws Rejected   if the chunk does not follow the one before, or the
+     *                     voice note breaks a limit or the memory budget
+     * @throws IOException if the bytes of the chunk cannot be read
+     */
+    private Packet assemble(Chunk chunk) throws IOException {
+
+        // the first chunk carries the packet and the length of the voice note
+        if (chunk.packet != null) {
+            if (assembling != null) {
+                throw new Rejected("a voice note started before the last one ended");
+            }
+            if (chunk.length <= 0 || chunk.length > MAX_PAYLOAD_BYTES) {
+                throw new Rejected("voice note of " + chunk.length + " bytes");
+            }
+            if (budget != null) {
+                try {
+                    if (!budget.reserve(chunk.length, BUDGET_WAIT_MILLIS)) {
+                        throw new Rejected("no memory budget for " + chunk.length + " bytes");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Rejected("interrupted");
+                }
+                noteReserved = chunk.length;
+            }
+            assembling = chunk.packet;
+            note = new byte[chunk.length];
+            filled = 0;
+            stream = chunk.stream;
+        } else if (assembling == null || chunk.stream != stream) {
+            throw new Rejected("chunk of an unknown voice note");
+        }
+
+        if (chunk.size < 0 || chunk.size > note.length - filled) {
+            throw new Rejected("chunk past the end of its voice note");
+        }
+        in.readFully(note, filled, chunk.size);
+        filled += chunk.size;
+        if (filled < note.length) {
+            return null;
+        }
+
+        // the voice note goes to the caller with the bytes reserved for it
+        Packet packet = assembling;
+        packet.innermost().voiceNote = note;
+        reserved += noteReserved;
+        noteReserved = 0;
+        assembling = null;
+        note = null;
+        return packet;
+
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        if (budget != null) {
+            budget.release(noteReserved);
+        }
+        noteReserved = 0;
+        in.close();
+    }
+
+    private void release() {
+        if (budget != null) {
+            budget.release(reserved);
+        }
+        reserved = 0;
+    }
+
+    /**
+     * The filter of the object stream, called for every class and array
+     * before it is allocated.
+     *
+     * @param info what is about to be read
+     *
+     * @return whether it may be read
+     */
+    private ObjectInputFilter.Status check(ObjectInputFilter.FilterInfo info) {
+
+        if (info.depth() > MAX_DEPTH) {
+            return reject("nested " + info.depth() + " deep");
+        }
+        Class<?> type = info.serialClass();
+        if (type == null) {
+            return ObjectInputFilter.Status.ALLOWED;
+        }
+        if (!CLASSES.contains(type)) {
+            return reject("class " + type.getName());
+        }
+        if (info.arrayLength() < 0) {
+            return ObjectInputFilter.Status.ALLOWED;
+        }
+
+        long bytes = info.arrayLength() * elementBytes(type.getComponentType());
+        if (bytes > MAX_PAYLOAD_BYTES) {
+            return reject("array of " + bytes + " bytes");
+        }
+        if (budget == null || bytes < RESERVE_BYTES) {
+            return ObjectInputFilter.Status.ALLOWED;
+        }
+        try {
+            if (!budget.reserve(bytes, BUDGET_WAIT_MILLIS)) {
+                return reject("no memory budget for " + bytes + " bytes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return reject("interrupted");
+        }
+        reserved += bytes;
+        return ObjectInputFilter.Status.ALLOWED;
+
+    }
+
+    private ObjectInputFilter.Status reject(String reason) {
+        rejection = reason;
+        return ObjectInputFilter.Status.REJECTED;
+    }
+
+    /**
+     * The heap an array element takes, references counted at their
+     * uncompressed size.
+     */
+    private static long elementBytes(Class<?> type) {
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        if (type == char.class || type == short.class) {
+            return 2;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        return 8;
+    }
+
+    /**
+     * Thrown for a packet that breaks a limit or does not fit in the memory
+     * budget.
+     */
+    static class Rejected extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        Rejected(String reason) {
+            super(reason);
+        }
+    }
+
+    /**
+     * Counts the bytes read and fails a read once the packet being read has
+     * taken MAX_FRAME_BYTES.
+     */
+    private final class FrameStream extends FilterInputStream {
+
+        long count;
+        long start;
+
+        FrameStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (count - start >= MAX_FRAME_BYTES) {
+                throw tooLarge();
+            }
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long left = start + MAX_FRAME_BYTES - count;
+            if (left <= 0) {
+                throw tooLarge();
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 512)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(0, read);
+        }
+
+        private IOException tooLarge() {
+            rejection = "packet over " + MAX_FRAME_BYTES + " bytes";
+            return new Rejected(rejection);
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The PacketOutputStream class is the object stream a connection writes its
+ * packets into. An ObjectOutputStream keeps every object it wrote in its
+ * handle table until it is reset, so a long-lived connection that never
+ * resets holds on to every packet it ever sent. This stream resets the table
+ * once RESET_BYTES bytes or RESET_PACKETS packets were written since the last
+ * reset, whichever comes first, which bounds the memory a connection keeps to
+ * about one budget of packets and costs the class descriptors being sent
+ * again once per budget.
+ *
+ * Explicit resets are still needed before sending an object again after it
+ * changed, otherwise the reader gets a reference to the earlier copy.
+ */
+public class PacketOutputStream implements Flushable, Closeable {
+
+    /** Default number of bytes written between handle table resets. */
+    static final int RESET_BYTES = Integer.getInteger("tschat.resetBytes", 64 * 1024);
+
+    /** Default number of packets written between handle table resets. */
+    static final int RESET_PACKETS = Integer.getInteger("tschat.resetPackets", 256);
+
+    private final CountingOutputStream counter;
+    private final ObjectOutputStream out;
+
+    private final int resetBytes;
+    private final int resetPackets;
+
+    /** The byte count at the last reset, and the packets written since. */
+    private long resetAt;
+    private int sinceReset;
+
+    /**
+     * Creates a new PacketOutputStream with the default budgets.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException if the stream header cannot be written
+     */
+    public PacketOutputStream(OutputStream out) throws IOException {
+        this(out, RESET_BYTES, RESET_PACKETS);
+    }
+
+    /**
+     * Creates a new PacketOutputStream and writes the object stream header.
+     * It is flushed, so the reader on the other side can open its stream.
+     *
+     * @param out          the stream to write to
+     * @param resetBytes   the bytes written between resets
+     * @param resetPackets the packets written between resets
+     *
+     * @throws IOException if the stream header cannot be written
+     */
+    public PacketOutputStream(OutputStream out, int resetBytes, int resetPackets) throws IOException {
+        this.resetBytes = Math.max(1, resetBytes);
+        this.resetPackets = Math.max(1, resetPackets);
+        this.counter = new CountingOutputStream(out);
+        this.out = new ObjectOutputStream(counter);
+        this.out.flush();
+    }
+
+    /**
+     * Writes an object, and resets the handle table after it if a budget has
+     * been used up.
+     *
+     * @param object the object, normally a packet
+     *
+     * @throws IOException if the object cannot be written
+     */
+    public void writeObject(Object object) throws IOException {
+        out.writeObject(object);
+        written();
+    }
+
+    /**
+     * Writes an object followed by raw bytes, which the reader reads with
+     * readFully right after the object, and resets the handle table after
+     * them if a budget has been used up. The bytes are not an object, so the
+     * handle table does not keep them and neither side copies them.
+     *
+     * @param object the object, normally a chunk
+     * @param data   the array holding the bytes
+     * @param offset where the bytes start
+     * @param length the number of bytes
+     *
+     * @throws IOException if the object or the bytes cannot be written
+     */
+    public void writeObject(Object object, byte[] data, int offset, int length) throws IOException {
+        out.writeObject(object);
+        out.write(data, offset, length);
+        written();
+    }
+
+    private void written() throws IOException {
+        sinceReset++;
+        if (sinceReset >= resetPackets || counter.count - resetAt >= resetBytes) {
+            reset();
+        }
+    }
+
+    /**
+     * Resets the handle table, so the objects written before can be collected
+     * and are written in full if they are sent again.
+     *
+     * @throws IOException if the reset marker cannot be written
+     */
+    public void reset() throws IOException {
+        out.reset();
+        resetAt = counter.count;
+        sinceReset = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Number of bytes written by this stream so far.
+     *
+     * @return the byte count
+     */
+    public long bytesWritten() {
+        return counter.count;
+    }
+
+    /**
+     * An output stream that counts the bytes passing through it.
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        volatile long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+import java.util.HashMap;
+
+/**
+ * The PacketType class numbers the packet types, so a packet is dispatched by
+ * indexing an array with its kind instead of switching on its type string.
+ * The number is set once, when the packet is constructed, and travels with it.
+ * A new packet type is added by giving it the next number and a name.
+ */
+public final class PacketType {
+
+    // requests from clients
+    static final int ECHO = 0;
+    static final int MESSAGE = 1;
+    static final int VOICENOTE = 2;
+    static final int CALL = 3;
+    static final int SESSION = 4;
+    static final int INVITE = 5;
+    static final int REGISTER = 6;
+    static final int GET_USER_LIST = 7;
+    static final int CALLLIST = 8;
+    static final int DISCONNECT = 9;
+    static final int DISCONNECT_SESSION = 10;
+
+    // replies and notifications from the server
+    static final int NOTIFY = 11;
+    static final int NOTIFY_PRIVATE = 12;
+    static final int USER_LIST = 13;
+    static final int SESSION_USERS = 14;
+    static final int SUCCESS = 15;
+    static final int ERROR = 16;
+    static final int ACK = 17;
+    static final int PRESENCE = 18;
+    static final int MEMBERS = 19;
+
+    // both ways, keeps an idle connection alive
+    static final int HEARTBEAT = 20;
+
+    // between the nodes of a cluster
+    static final int CLUSTER_HELLO = 21;
+    static final int CLUSTER_USER = 22;
+    static final int CLUSTER_SESSION = 23;
+    static final int CLUSTER_FORWARD = 24;
+    static final int CLUSTER_MEMBER = 25;
+
+    /** The kind of a packet whose type is not known. */
+    static final int UNKNOWN = 26;
+
+    /** The number of kinds, UNKNOWN included. */
+    static final int COUNT = 27;
+
+    /** The type string of each kind. */
+    static final String[] NAMES = { "echo", "message", "voicenote", "call", "session", "invite", "register",
+            "getUserList", "calllist", "disconnect", "disconnectSession", "notify", "notifyPrivate", "userList",
+            "sessionUsers", "success", "error", "ack", "presence", "members", "heartbeat", "clusterHello",
+            "clusterUser", "clusterSession", "clusterForward", "clusterMember", "unknown" };
+
+    private static final HashMap<String, Integer> KINDS = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < UNKNOWN; i++) {
+            KINDS.put(NAMES[i], i);
+        }
+    }
+
+    private PacketType() {
+    }
+
+    /**
+     * Finds the kind of a type string.
+     *
+     * @param type the packet type
+     *
+     * @return the kind, or UNKNOWN
+     */
+    static int of(String type) {
+        Integer kind = type == null ? null : KINDS.get(type);
+        return kind == null ? UNKNOWN : kind;
+    }
+
+    /**
+     * The kind of a packet, clamped to UNKNOWN if it is out of range.
+     *
+     * @param packet the packet
+     *
+     * @return the kind
+     */
+    static int kind(Packet packet) {
+        int kind = packet.kind;
+        return kind >= 0 && kind < COUNT ? kind : UNKNOWN;
+    }
+
+}
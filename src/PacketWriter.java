@@ -0,0 +1,410 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PacketWriter class owns the output side of a single connection. Packets
+ * are queued by any thread and written by one writer thread, which coalesces
+ * every frame queued during a flush cycle into a single write on the socket.
+ * A cycle ends when the queue is empty and the linger deadline has passed, or
+ * when the batch reaches the byte limit. The stream resets its handle table on
+ * its own budget, see PacketOutputStream, so a long-lived connection does not
+ * hold on to the packets it sent.
+ *
+ * The connection carries two streams. Control and chat packets are written in
+ * the order they were queued. Packets with a voice note are bulk: they are
+ * written in their own order, only while no control or chat packet is
+ * waiting, and a voice note larger than CHUNK_BYTES is split into Chunks,
+ * which PacketInputStream puts back together. A chat message or a
+ * call join so waits for at most one chunk, however large the voice notes
+ * ahead of it.
+ *
+ * The packets queued are bounded to QUEUE_BYTES, by their payloadBytes. A
+ * peer that reads slower than it is sent to fills its queue, and once a packet
+ * would overflow it the writer drops it and every later one, and runs the
+ * overflow handler, which closes the connection. A writer without an overflow
+ * handler, as the client's, is not bounded.
+ */
+public class PacketWriter implements Runnable {
+
+    /** Default upper bound on the bytes coalesced into one flush. */
+    static final int FLUSH_BYTES = Integer.getInteger("tschat.flushBytes", 64 * 1024);
+
+    /**
+     * Default time a flush cycle waits for more frames once the queue runs dry.
+     * 0 flushes as soon as the queue is empty (lowest latency), larger values
+     * trade up to this many microseconds of latency for fewer, larger writes.
+     */
+    static final long FLUSH_LINGER_MICROS = Long.getLong("tschat.flushLingerMicros", 200);
+
+    /** Default upper bound on the bytes of the packets waiting to be written. */
+    static final long QUEUE_BYTES = Long.getLong("tschat.writerQueueBytes", 32L << 20);
+
+    /** Default size of the chunks a voice note is written in. */
+    static final int CHUNK_BYTES = Integer.getInteger("tschat.chunkBytes", 32 * 1024);
+
+    /** Queue marker that resets the stream handle table before the next frame. */
+    private static final Object RESET = new Object();
+
+    /** Queue marker that stops the writer thread. */
+    private static final Object CLOSE = new Object();
+
+    /** Queue marker that wakes the writer thread for a bulk packet. */
+    private static final Object BULK = new Object();
+
+    /** Control and chat frames waiting to be written, and the markers. */
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+    /** Bulk packets waiting to be written, after the frames in queue. */
+    private final ConcurrentLinkedQueue<Packet> bulk = new ConcurrentLinkedQueue<Packet>();
+
+    // the bulk packet being written in chunks, the bytes of its voice note
+    // written so far and the stream of its chunks, used by the writer thread only
+    private Packet sending;
+    private int sent;
+    private int stream;
+
+    /** The object stream all frames are serialized into, it counts the bytes so batches can be bounded. */
+    private final PacketOutputStream out;
+
+    private final int flushBytes;
+    private final long lingerNanos;
+    private final int chunkBytes;
+
+    /** The bytes of the packets queued, by their payloadBytes. */
+    private final AtomicLong queued = new AtomicLong();
+
+    /** Run once when the queue overflows, after which packets are dropped. */
+    private volatile Runnable onOverflow;
+    private volatile boolean overflowed;
+
+    /** Set once the writer is closed or its connection failed, packets are then dropped. */
+    private volatile boolean closed;
+
+    private Thread thread;
+
+    /** When a packet was last queued, so idle connections can be sent heartbeats. */
+    private volatile long lastSend = System.nanoTime();
+
+    /**
+     * Creates a new PacketWriter with the default flush limits.
+     *
+     * @param socketOut the raw output stream of the connection
+     *
+     * @throws IOException if the stream header cannot be written
+     */
+    public PacketWriter(OutputStream socketOut) throws IOException {
+        this(socketOut, FLUSH_BYTES, FLUSH_LINGER_MICROS, CHUNK_BYTES);
+    }
+
+    /**
+     * Creates a new PacketWriter with the default chunk size.
+     *
+     * @param socketOut    the raw output stream of the connection
+     * @param flushBytes   the maximum number of bytes coalesced into one flush
+     * @param lingerMicros how long a cycle waits for more frames before flushing
+     *
+     * @throws IOException if the stream header cannot be written
+     */
+    public PacketWriter(OutputStream socketOut, int flushBytes, long lingerMicros) throws IOException {
+        this(socketOut, flushBytes, lingerMicros, CHUNK_BYTES);
+    }
+
+    /**
+     * Creates a new PacketWriter and writes the object stream header.
+     *
+     * @param socketOut    the raw output stream of the connection
+     * @param flushBytes   the maximum number of bytes coalesced into one flush
+     * @param lingerMicros how long a cycle waits for more frames before flushing
+     * @param chunkBytes   the size of the chunks voice notes are written in
+     *
+     * @throws IOException if the stream header cannot be written
+     */
+    public PacketWriter(OutputStream socketOut, int flushBytes, long lingerMicros, int chunkBytes)
+            throws IOException {
+        this.flushBytes = Math.max(1, flushBytes);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, lingerMicros));
+        this.chunkBytes = Math.max(1, chunkBytes);
+        this.out = new PacketOutputStream(new BufferedOutputStream(socketOut, this.flushBytes));
+    }
+
+    /**
+     * Starts the writer thread for this connection.
+     *
+     * @param name the name of the writer thread
+     *
+     * @return this writer
+     */
+    public PacketWriter start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Sets what is done when the queue overflows.
+     *
+     * @param handler run once, on the thread that overflowed the queue
+     *
+     * @return this writer
+     */
+    public PacketWriter onOverflow(Runnable handler) {
+        this.onOverflow = handler;
+        return this;
+    }
+
+    /**
+     * Queues a packet to be written to the connection, or drops it if the
+     * queue is full or the writer is closed. A packet is always queued on an
+     * empty queue.
+     *
+     * @param packet the packet to send
+     */
+    public void send(Packet packet) {
+        if (overflowed || closed) {
+            return;
+        }
+        long bytes = packet.payloadBytes();
+        long before = queued.getAndAdd(bytes);
+        if (before > 0 && before + bytes > QUEUE_BYTES && onOverflow != null) {
+            queued.addAndGet(-bytes);
+            overflow();
+            return;
+        }
+        lastSend = System.nanoTime();
+        if (packet.innermost().voiceNote != null) {
+            bulk.offer(packet);
+            queue.offer(BULK);
+        } else {
+            queue.offer(packet);
+        }
+    }
+
+    /**
+     * Marks the queue as overflowed and runs the handler, once.
+     */
+    private synchronized void overflow() {
+        if (overflowed) {
+            return;
+        }
+        overflowed = true;
+        Runnable handler = onOverflow;
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    /**
+     * The bytes of the packets waiting to be written.
+     *
+     * @return the bytes queued, by payloadBytes
+     */
+    public long queuedBytes() {
+        return queued.get();
+    }
+
+    /**
+     * When a packet was last queued.
+     *
+     * @return the System.nanoTime of the last send
+     */
+    public long lastSend() {
+        return lastSend;
+    }
+
+    /**
+     * Queues a reset of the stream handle table, so the next packet is written
+     * in full instead of as a back reference to an earlier copy.
+     */
+    public void reset() {
+        queue.offer(RESET);
+    }
+
+    /**
+     * Flushes whatever is queued and stops the writer thread. Packets sent
+     * afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        queue.offer(CLOSE);
+    }
+
+    /**
+     * Waits for the writer thread to write what was queued before close.
+     *
+     * @param millis the most time to wait, more than 0
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitClose(long millis) throws InterruptedException {
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+
+    /**
+     * Whether the writer was closed or its connection failed.
+     *
+     * @return true if packets are no longer written
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * The writer loop. Blocks for the first frame of a cycle, then drains the
+     * queues until they are empty past the linger deadline or the batch is
+     * full, and flushes the whole batch at once.
+     */
+    @Override
+    public void run() {
+
+        try {
+            while (true) {
+
+                Object frame = next(true);
+                long batchStart = out.bytesWritten();
+                long deadline = System.nanoTime() + lingerNanos;
+
+                while (frame != null) {
+
+                    if (frame == CLOSE) {
+                        // the voice notes queued before the close still go out
+                        for (Object chunk = nextChunk(); chunk != null; chunk = nextChunk()) {
+                            write(chunk);
+                        }
+                        out.flush();
+                        out.close();
+                        return;
+                    }
+                    write(frame);
+
+                    // batch is full, flush now
+                    if (out.bytesWritten() - batchStart >= flushBytes) {
+                        break;
+                    }
+
+                    frame = next(false);
+                    if (frame == null && lingerNanos > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining > 0) {
+                            frame = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                            if (frame == BULK) {
+                                frame = next(false);
+                            }
+                        }
+                    }
+                }
+
+                out.flush();
+            }
+
+        } catch (IOException | InterruptedException e) {
+            // connection closed, drop anything still queued
+            closed = true;
+            queue.clear();
+            bulk.clear();
+            sending = null;
+            queued.set(0);
+        }
+
+    }
+
+    /**
+     * The next frame to write: the oldest control or chat frame, or when
+     * there is none the next chunk of the voice notes.
+     *
+     * @param block whether to wait for a frame
+     *
+     * @return the frame, null if there is none and block is false
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Object next(boolean block) throws InterruptedException {
+        while (true) {
+            Object frame = queue.poll();
+            if (frame == null) {
+                frame = nextChunk();
+            }
+            if (frame == null && block) {
+                frame = queue.take();
+            }
+            // a bulk marker only wakes the writer, the packet is in bulk
+            if (frame != BULK) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * The next part of the bulk packets: a packet whose voice note fits in
+     * one chunk as it is, or the next chunk of a larger one.
+     *
+     * @return the packet or chunk, or null if no bulk packet is waiting
+     */
+    private Object nextChunk() {
+
+        if (sending == null) {
+            Packet packet = bulk.poll();
+            if (packet == null || packet.innermost().voiceNote.length <= chunkBytes) {
+                return packet;
+            }
+            sending = packet;
+            sent = 0;
+            stream++;
+        }
+
+        byte[] note = sending.innermost().voiceNote;
+        int size = Math.min(chunkBytes, note.length - sent);
+        Chunk chunk = new Chunk(stream, note, sent, size);
+        if (sent == 0) {
+            chunk.packet = sending.withoutVoiceNote();
+            chunk.length = note.length;
+        }
+        sent += size;
+
+        if (sent == note.length) {
+            queued.addAndGet(-sending.payloadBytes());
+            sending = null;
+        }
+        return chunk;
+
+    }
+
+    /**
+     * Serializes one queued frame into the batch buffer.
+     *
+     * @param frame a packet, a chunk or the reset marker
+     *
+     * @throws IOException if the frame cannot be serialized
+     */
+    private void write(Object frame) throws IOException {
+        if (frame == RESET) {
+            out.reset();
+        } else if (frame instanceof Chunk) {
+            Chunk chunk = (Chunk) frame;
+            out.writeObject(chunk, chunk.data, chunk.offset, chunk.size);
+        } else {
+            out.writeObject(frame);
+            // a chunked packet leaves the queue with its last chunk
+            if (frame instanceof Packet) {
+                queued.addAndGet(-((Packet) frame).payloadBytes());
+            }
+        }
+    }
+
+    /**
+     * Number of bytes serialized by this writer so far.
+     *
+     * @return the byte count
+     */
+    public long bytesWritten() {
+        return out.bytesWritten();
+    }
+
+}
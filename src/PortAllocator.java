@@ -0,0 +1,162 @@
+/**
+ * The PortAllocator class hands out blocks of consecutive ports, or other small
+ * ids such as call channel ids, from a fixed range, so sessions can return
+ * them when they end and a long running server never walks out of its range.
+ * Used blocks are kept in a bitmap, and free blocks on a stack, so allocating
+ * and releasing a block both take constant time.
+ */
+public class PortAllocator {
+
+    private final int first;
+    private final int blockSize;
+    private final int blocks;
+
+    /** One bit per block, set while the block is allocated. */
+    private final long[] used;
+
+    /** The free blocks, the top of the stack is handed out next. */
+    private final int[] free;
+    private int freeCount;
+
+    /** The index of each free block in the stack, -1 for an allocated block. */
+    private final int[] position;
+
+    private long allocations;
+    private long releases;
+    private long failures;
+
+    /**
+     * Creates a new PortAllocator over a range of ports. A partial block at the
+     * end of the range is not used.
+     *
+     * @param first     the first port of the range
+     * @param last      the last port of the range, inclusive
+     * @param blockSize the number of consecutive ports in a block
+     */
+    public PortAllocator(int first, int last, int blockSize) {
+        if (first < 1 || last > 65535 || blockSize < 1 || last - first + 1 < blockSize) {
+            throw new IllegalArgumentException("Invalid range " + first + "-" + last);
+        }
+        this.first = first;
+        this.blockSize = blockSize;
+        this.blocks = (last - first + 1) / blockSize;
+        this.used = new long[(blocks + 63) / 64];
+        this.free = new int[blocks];
+        this.position = new int[blocks];
+
+        // push in reverse so the lowest ports are handed out first
+        for (int block = blocks - 1; block >= 0; block--) {
+            position[block] = freeCount;
+            free[freeCount++] = block;
+        }
+    }
+
+    /**
+     * Allocates a block of ports.
+     *
+     * @return the first port of the block, or -1 if the range is exhausted
+     */
+    public synchronized int allocate() {
+        if (freeCount == 0) {
+            failures++;
+            return -1;
+        }
+        int block = free[--freeCount];
+        position[block] = -1;
+        used[block >>> 6] |= 1L << block;
+        allocations++;
+        return first + block * blockSize;
+    }
+
+    /**
+     * Allocates a given block of ports, such as the block a session held
+     * before the server restarted.
+     *
+     * @param port the first port of the block
+     *
+     * @return whether the block was free and is now allocated
+     */
+    public synchronized boolean reserve(int port) {
+        int offset = port - first;
+        if (offset < 0 || offset % blockSize != 0 || offset / blockSize >= blocks) {
+            return false;
+        }
+        int block = offset / blockSize;
+        int index = position[block];
+        if (index < 0) {
+            return false;
+        }
+
+        // move the top of the stack into the hole
+        int top = free[--freeCount];
+        free[index] = top;
+        position[top] = index;
+        position[block] = -1;
+        used[block >>> 6] |= 1L << block;
+        allocations++;
+        return true;
+    }
+
+    /**
+     * Returns a block of ports to the range. Releasing a port that is not the
+     * first port of an allocated block does nothing.
+     *
+     * @param port the first port of the block
+     *
+     * @return whether the block was released
+     */
+    public synchronized boolean release(int port) {
+        int offset = port - first;
+        if (offset < 0 || offset % blockSize != 0 || offset / blockSize >= blocks) {
+            return false;
+        }
+        int block = offset / blockSize;
+        long bit = 1L << block;
+        if ((used[block >>> 6] & bit) == 0) {
+            return false;
+        }
+        used[block >>> 6] &= ~bit;
+        position[block] = freeCount;
+        free[freeCount++] = block;
+        releases++;
+        return true;
+    }
+
+    /**
+     * Number of blocks in the range.
+     *
+     * @return the capacity in blocks
+     */
+    public int capacity() {
+        return blocks;
+    }
+
+    /**
+     * Number of blocks currently allocated.
+     *
+     * @return the blocks in use
+     */
+    public synchronized int inUse() {
+        return blocks - freeCount;
+    }
+
+    /**
+     * Fraction of the blocks currently allocated.
+     *
+     * @return the utilisation, between 0 and 1
+     */
+    public synchronized double utilisation() {
+        return (blocks - freeCount) / (double) blocks;
+    }
+
+    /**
+     * Summarises the allocator for the metrics report.
+     *
+     * @return a one line summary
+     */
+    public synchronized String summary() {
+        return String.format("%d-%d blocks=%d inUse=%d allocations=%d releases=%d failures=%d", first,
+                first + blocks * blockSize - 1, blocks, blocks - freeCount, allocations, releases, failures);
+    }
+
+}
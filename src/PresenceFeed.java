@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PresenceFeed class tells the connected clients who is online. A client
+ * gets the full user list once, as a snapshot, when it registers or asks for
+ * it, and after that only "presence" deltas naming the users who joined and
+ * left. Changes are collected for a short debounce interval and sent as one
+ * delta, so a login storm costs each client a few small packets per interval
+ * instead of a full list per login. Every delta carries the next version, and
+ * a client that sees a gap in the versions asks for a new snapshot.
+ *
+ * The feed names users by id and sends the name with every id, so clients
+ * learn the names of everybody online from it. Once a delta naming a user
+ * has been queued for every client, the user is marked as announced, and
+ * other packets then refer to it by id alone.
+ */
+public class PresenceFeed {
+
+    /** How long changes are collected before a delta is sent, in milliseconds. */
+    static final long DEBOUNCE_MILLIS = Long.getLong("tschat.presenceDebounceMillis", 100);
+
+    private final ConcurrentHashMap<String, AddressWrapper> userList;
+    private final ConcurrentHashMap<String, Integer> remoteUsers;
+    private final UserIds ids;
+    private final ScheduledExecutorService timer;
+
+    /** The changes since the last delta, true for joined, the last change of a user wins. */
+    private final LinkedHashMap<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+    private long version;
+    private boolean scheduled;
+
+    private long deltas;
+    private long deltaUsers;
+
+    /**
+     * Creates a new PresenceFeed.
+     *
+     * @param userList    the connected users, who receive the deltas
+     * @param remoteUsers the users connected to the other nodes of a cluster
+     * @param ids         the user ids of the server
+     */
+    public PresenceFeed(ConcurrentHashMap<String, AddressWrapper> userList,
+            ConcurrentHashMap<String, Integer> remoteUsers, UserIds ids) {
+        this.userList = userList;
+        this.remoteUsers = remoteUsers;
+        this.ids = ids;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records that a user joined, after it was added to the user list or
+     * registered on another node.
+     *
+     * @param nickname the user
+     */
+    public synchronized void joined(String nickname) {
+        pending.put(nickname, Boolean.TRUE);
+        schedule();
+    }
+
+    /**
+     * Records that a user left, after it was removed from the user list or
+     * left another node. Clients who register from now on do not get its
+     * name from the feed, so packets carry it again straight away.
+     *
+     * @param nickname the user
+     */
+    public synchronized void left(String nickname) {
+        ids.announce(ids.id(nickname), false);
+        pending.put(nickname, Boolean.FALSE);
+        schedule();
+    }
+
+    /**
+     * Sends a snapshot of the user list, stamped with the current version.
+     * Changes not yet sent may already be in it, which is harmless as clients
+     * apply deltas idempotently.
+     *
+     * @param out the writer of the user
+     */
+    public synchronized void sendSnapshot(PacketWriter out) {
+        ArrayList<String> users = new ArrayList<String>(userList.keySet());
+        users.addAll(remoteUsers.keySet());
+        Packet packet = new Packet("userList", null, null);
+        packet.users = new int[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            packet.users[i] = ids.id(users.get(i));
+        }
+        packet.named = packet.users;
+        packet.names = users.toArray(new String[0]);
+        packet.version = version;
+        out.send(packet);
+    }
+
+    /**
+     * Schedules a delta unless one is already pending.
+     */
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            timer.schedule(this::flush, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the pending changes to every connected user as one delta.
+     */
+    synchronized void flush() {
+
+        scheduled = false;
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        ArrayList<String> joined = new ArrayList<String>();
+        ArrayList<String> left = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+            (change.getValue() ? joined : left).add(change.getKey());
+        }
+        pending.clear();
+
+        Packet packet = new Packet("presence", null, null);
+        packet.users = new int[joined.size()];
+        for (int i = 0; i < joined.size(); i++) {
+            packet.users[i] = ids.id(joined.get(i));
+        }
+        packet.named = packet.users;
+        packet.names = joined.toArray(new String[0]);
+        packet.left = new int[left.size()];
+        for (int i = 0; i < left.size(); i++) {
+            packet.left[i] = ids.id(left.get(i));
+        }
+        packet.version = ++version;
+
+        // sent under the lock, so every writer sees the deltas in version order
+        for (AddressWrapper user : userList.values()) {
+            user.out.send(packet);
+        }
+        for (int user : packet.users) {
+            ids.announce(user, true);
+        }
+        deltas++;
+        deltaUsers += joined.size() + left.size();
+
+    }
+
+    /**
+     * Summarises the feed for the metrics report.
+     *
+     * @return a one line summary
+     */
+    public synchronized String summary() {
+        return String.format("version=%d deltas=%d users=%d pending=%d", version, deltas, deltaUsers,
+                pending.size());
+    }
+
+}
@@ -3,7 +3,6 @@ import java.awt.Color;
 import java.awt.Image;
 import java.awt.Toolkit;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.util.ArrayList;
 
@@ -14,7 +13,7 @@ import javax.swing.JLabel;
 /**
  * The PrivateSession class represents a private session between two users. It
  * contains the session ID, the usernames of the
- * two users involved, an ObjectOutputStream to write to the other user, a list
+ * two users involved, the writer of the connection to the server, a list
  * of voice notes received, and GUI components
  * to display the session.
  */
@@ -22,23 +21,26 @@ public class PrivateSession extends javax.swing.JFrame {
 
 	Integer sessionId;
 	String username;
-	ObjectOutputStream out;
+	ClientRpc out;
 	String invitee;
 	ArrayList<String> vnReceived;
 	boolean inCall = false;
 
+	// the conversation, a bounded window over the session history
+	ChatTranscript transcript;
+
 	/**
 	 * Creates a new PrivateSession object with the given session ID, username,
-	 * ObjectOutputStream, invitee, and list of
+	 * connection writer, invitee, and list of
 	 * received voice notes.
 	 *
 	 * @param sessionId  the session ID
 	 * @param username   the username of the user
-	 * @param out        the ObjectOutputStream to write to the other user
+	 * @param out        the writer of the connection to the server
 	 * @param invitee    the username of the user being invited to the session
 	 * @param vnReceived the list of voice notes received during the session
 	 */
-	public PrivateSession(Integer sessionId, String username, ObjectOutputStream out, String invitee,
+	public PrivateSession(Integer sessionId, String username, ClientRpc out, String invitee,
 			ArrayList<String> vnReceived) {
 		initComponents();
 		scaleImage(jLabel1, "images/private-session.png");
@@ -48,6 +50,10 @@ public class PrivateSession extends javax.swing.JFrame {
 		this.invitee = invitee;
 		this.vnReceived = vnReceived;
 		jLabel7.setText(invitee);
+
+		// show the conversation in a bounded list instead of the text area
+		transcript = new ChatTranscript(username, sessionId);
+		transcript.show(jScrollPane1, jTextArea1);
 	}
 
 	/**
@@ -480,7 +486,7 @@ public class PrivateSession extends javax.swing.JFrame {
 		Packet packet = new Packet("disconnectSession", true, sessionId, null);
 
 		try {
-			out.writeObject(packet);
+			out.send(packet);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -635,7 +641,7 @@ public class PrivateSession extends javax.swing.JFrame {
 		}
 
 		try {
-			out.writeObject(packet);
+			out.send(packet);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -1,32 +1,45 @@
 
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 
 /**
- * The Server class manages the incoming client-side connections and starts a
- * new ClientManager instance on a new Thread. It implements multithreading.
+ * The Server class is the admin window of the server. It attaches to a
+ * ServerCore as an observer, showing the event log and the connected users,
+ * while the core manages the incoming client-side connections.
  */
-public class Server extends javax.swing.JFrame {
+public class Server extends javax.swing.JFrame implements ServerObserver {
 
     static final String reset = "\u001B[0m";
     static final String green = "\u001B[32m";
     static final String red = "\u001B[31m";
     static final String yellow = "\u001B[33m";
 
-    static final int PORT = 2560;
-    static Integer callPort = 2561;
-    static Integer sessionID = 0;
+    /** Number of event log lines kept in the admin view. */
+    static final int LOG_VIEW_LINES = 2000;
+
+    /** The bounded admin view of the event log. */
+    EventLogView logView = new EventLogView(LOG_VIEW_LINES);
 
     /**
      * Creates new form Server
      */
     public Server() {
         initComponents();
+
+        // show the event log in a bounded list instead of the text area, a
+        // JList only renders the rows that are visible
+        JList<String> logLines = new JList<String>(logView);
+        logLines.setBackground(jTextArea1.getBackground());
+        logLines.setForeground(jTextArea1.getForeground());
+        logLines.setFont(jTextArea1.getFont());
+        logLines.setFixedCellHeight(jTextArea1.getFontMetrics(jTextArea1.getFont()).getHeight());
+        jScrollPane1.setViewportView(logLines);
+        logView.setList(logLines);
     }
 
     /**
@@ -55,7 +68,7 @@ public class Server extends javax.swing.JFrame {
         jPanel4 = new javax.swing.JPanel();
         jLabel3 = new javax.swing.JLabel();
 
-        setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
+        setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setBackground(new java.awt.Color(33, 36, 43));
         setResizable(false);
 
@@ -224,6 +237,20 @@ public class Server extends javax.swing.JFrame {
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
+    /**
+     * Shows the updated user list, called from the connection threads.
+     *
+     * @param users the nicknames of all connected users
+     */
+    @Override
+    public void userListChanged(String[] users) {
+        java.awt.EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                jList1.setListData(users);
+            }
+        });
+    }
+
     private void jLabel1MouseClicked(java.awt.event.MouseEvent evt) {// GEN-FIRST:event_jLabel1MouseClicked
         // TODO add your handling code here:
 
@@ -234,6 +261,13 @@ public class Server extends javax.swing.JFrame {
      * @throws Exception
      */
     public static void main(String args[]) throws Exception {
+
+        // no display, run the core on its own
+        if (GraphicsEnvironment.isHeadless()) {
+            ServerCore.main(args);
+            return;
+        }
+
         /* Set the Nimbus look and feel */
         // <editor-fold defaultstate="collapsed" desc=" Look and feel setting code
         // (optional) ">
@@ -275,29 +309,23 @@ public class Server extends javax.swing.JFrame {
         // Coding
         // ================================================================================
 
-        ServerFrame.jTextArea1.append("[+] Starting server on port " + PORT + " ... \n");
-
-        // initialise user list <nickname / <out, hostname>>
-        HashMap<String, AddressWrapper> userList = new HashMap<String, AddressWrapper>();
-
-        // initialise session list <id, (port/list_of_users) >
-        HashMap<Integer, PortWrapper> sessions = new HashMap<Integer, PortWrapper>();
-
-        // create server socket
-        ServerSocket ss = new ServerSocket(PORT);
-
-        // wait for clients to connect
-        while (true) {
-
-            // accept a client on a new thread
-            Socket socket = ss.accept();
-            ClientManager clientManager = new ClientManager(socket, userList, sessions, ServerFrame.jTextArea1,
-                    ServerFrame.jList1);
-
-            Thread thread = new Thread(clientManager);
-            thread.start();
+        // start the event log and the core, and attach the window
+        EventLog log = EventLog.create();
+        log.addSink(ServerFrame.logView);
+        ServerCore core = new ServerCore(log);
+        core.addObserver(ServerFrame);
+
+        // closing the window or a SIGTERM shuts the core down, which writes the final snapshot
+        Runtime.getRuntime().addShutdownHook(new Thread(core::shutdown, "shutdown"));
+        ServerFrame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                core.shutdown();
+                System.exit(0);
+            }
+        });
 
-        }
+        core.run();
 
     }
 
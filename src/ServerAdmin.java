@@ -0,0 +1,49 @@
+/**
+ * The ServerAdmin interface is the small administration surface of a running
+ * server. It is used by the headless console and by attached observers such as
+ * the Server window.
+ */
+public interface ServerAdmin {
+
+    /**
+     * The nicknames of all connected users.
+     *
+     * @return the connected users
+     */
+    String[] users();
+
+    /**
+     * The number of open sessions.
+     *
+     * @return the session count
+     */
+    int sessionCount();
+
+    /**
+     * The server event log.
+     *
+     * @return the event log
+     */
+    EventLog eventLog();
+
+    /**
+     * Attaches an observer to the server.
+     *
+     * @param observer the observer to attach
+     */
+    void addObserver(ServerObserver observer);
+
+    /**
+     * Detaches an observer from the server.
+     *
+     * @param observer the observer to detach
+     */
+    void removeObserver(ServerObserver observer);
+
+    /**
+     * Stops accepting connections, closes the server socket and writes a
+     * final snapshot. Only the first call does anything.
+     */
+    void shutdown();
+
+}
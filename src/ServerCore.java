@@ -0,0 +1,761 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ServerCore class is the networking core of the server. It accepts client
+ * connections and starts a new ClientManager for each of them, and holds the
+ * user and session registries. It does not depend on Swing, so it can run
+ * headless on its own or with the Server window attached as an observer.
+ */
+public class ServerCore implements ServerAdmin, Runnable {
+
+    static final int PORT = Integer.getInteger("tschat.port", 2560);
+    static final AtomicInteger sessionID = new AtomicInteger();
+
+    /** Call channels per session. */
+    static final int CALL_CHANNELS = 4;
+
+    /** How long the members of restored sessions have to register again, in seconds. */
+    static final long RESUME_SECONDS = Long.getLong("tschat.resumeSeconds", 120);
+
+    /** Member list changes per session between two full checkpoints. */
+    static final int MEMBER_CHECKPOINT = Integer.getInteger("tschat.memberCheckpoint", 32);
+
+    /** The number of call channel ids, the live channels of all sessions share them. */
+    static final int CALL_CHANNEL_IDS = Integer.getInteger("tschat.callChannels", 4096);
+
+    /** The most bytes of payloads read from all clients and not yet handled. */
+    static final long MEMORY_BUDGET_BYTES = Long.getLong("tschat.memoryBudgetBytes",
+            Runtime.getRuntime().maxMemory() / 4);
+
+    /** Maps nicknames to the connection of each user. */
+    final ConcurrentHashMap<String, AddressWrapper> userList = new ConcurrentHashMap<String, AddressWrapper>();
+
+    /** Gives every nickname a compact id, which sessions and packets name users by. */
+    final UserIds ids = new UserIds();
+
+    /** Maps session IDs to sessions. */
+    final ConcurrentHashMap<Integer, SessionRecord> sessions = new ConcurrentHashMap<Integer, SessionRecord>();
+
+    /** The sessions each user is a member of, by user id, so a user leaving visits only those. */
+    private final ConcurrentHashMap<Integer, Set<Integer>> memberships = new ConcurrentHashMap<Integer, Set<Integer>>();
+
+    /** The server event log. */
+    final EventLog log;
+
+    /** The memory budget the budgets of the connections take their bytes from. */
+    final MemoryBudget memory = new MemoryBudget(MEMORY_BUDGET_BYTES);
+
+    /** The call channel ids of the sessions, recycled when a session ends. */
+    final PortAllocator callChannels = new PortAllocator(1, CALL_CHANNEL_IDS, CALL_CHANNELS);
+
+    /** Relays the call audio of all sessions over one UDP port. */
+    final MediaRelay relay = new MediaRelay(CALL_CHANNEL_IDS + 1);
+
+    private final AtomicInteger ssrcs = new AtomicInteger();
+
+    /** Checks every connection for heartbeats, ticking every 100 ms. */
+    final TimingWheel wheel = new TimingWheel(100, 512).start("timing-wheel");
+
+    /** Runs the work on each session on the single thread of its shard. */
+    final SessionShards shards = new SessionShards();
+
+    /** Keeps the sessions on disk across restarts. */
+    final SessionStore store;
+
+    /** The restored sessions of each user who has not registered again yet, by user id. */
+    final ConcurrentHashMap<Integer, ArrayList<Integer>> resume = new ConcurrentHashMap<Integer, ArrayList<Integer>>();
+
+    /** Removes the users who did not come back from their restored sessions. */
+    private final TimingWheel.Timer resumeExpiry = new TimingWheel.Timer() {
+        @Override
+        protected void expired() {
+            expireResume();
+        }
+    };
+
+    private final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Links this server with the other nodes of its cluster, if it has any. */
+    final ClusterNode cluster = new ClusterNode(this);
+
+    /** Sends the changes to the user list to the connected users. */
+    final PresenceFeed presence = new PresenceFeed(userList, cluster.remoteUsers, ids);
+
+    /** The server metrics. */
+    final ServerMetrics metrics = new ServerMetrics(this);
+
+    private final CopyOnWriteArrayList<ServerObserver> observers = new CopyOnWriteArrayList<ServerObserver>();
+    private ServerSocket serverSocket;
+
+    /** Set by the first shutdown, the console, the window and the shutdown hook may all ask. */
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+
+    /**
+     * Creates a new ServerCore.
+     *
+     * @param log the server event log
+     */
+    public ServerCore(EventLog log) {
+        this.log = log;
+        this.store = new SessionStore(ids);
+    }
+
+    /**
+     * Creates a new ServerCore that keeps its sessions in a given directory
+     * instead of the configured one.
+     *
+     * @param log      the server event log
+     * @param stateDir the directory of the snapshot and the log, or null to
+     *                 keep no state
+     */
+    ServerCore(EventLog log, File stateDir) {
+        this.log = log;
+        this.store = new SessionStore(stateDir, ids);
+    }
+
+    /**
+     * Accepts clients until the server is shut down, each on a new thread.
+     */
+    @Override
+    public void run() {
+
+        metrics.start();
+
+        try {
+            restore();
+            if (store.enabled() && SessionStore.SNAPSHOT_SECONDS > 0) {
+                snapshots.scheduleWithFixedDelay(this::snapshot, SessionStore.SNAPSHOT_SECONDS,
+                        SessionStore.SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+            }
+            serverSocket = new ServerSocket(PORT);
+            // call audio uses the same port number, over UDP
+            relay.start(new DatagramSocket(PORT));
+            cluster.start();
+            log.log(EventLog.SERVER_START, null, null, -1, 0, PORT);
+
+            // wait for clients to connect
+            while (!serverSocket.isClosed()) {
+
+                // accept a client on a new thread
+                Socket socket = serverSocket.accept();
+                ClientManager clientManager = new ClientManager(socket, this);
+
+                Thread thread = new Thread(clientManager);
+                thread.start();
+
+            }
+
+        } catch (Exception e) {
+            if (serverSocket == null || !serverSocket.isClosed()) {
+                System.out.println("[!] Server stopped: " + e.getMessage());
+            }
+        }
+
+    }
+
+    /**
+     * Restores the sessions saved by the last run, with their call channel
+     * ids, and gives their members RESUME_SECONDS to register again.
+     *
+     * @throws IOException if the saved state cannot be read
+     */
+    void restore() throws IOException {
+
+        long start = System.nanoTime();
+        HashMap<Integer, SessionRecord> restored = store.load();
+
+        // filled locally and added in one go, so the shared maps are sized once
+        HashMap<Integer, ArrayList<Integer>> members = new HashMap<Integer, ArrayList<Integer>>();
+        int next = 0;
+        for (Map.Entry<Integer, SessionRecord> entry : restored.entrySet()) {
+            int sessionId = entry.getKey();
+            SessionRecord session = entry.getValue();
+
+            // the call channel range may have shrunk since
+            if (session.hasChannels() && !callChannels.reserve(session.channel)) {
+                session.channel = -1;
+            }
+            for (int i = 0; i < session.size(); i++) {
+                members.computeIfAbsent(session.user(i), key -> new ArrayList<Integer>()).add(sessionId);
+                joined(session.user(i), sessionId);
+            }
+            next = Math.max(next, cluster.sequence(sessionId) + 1);
+        }
+        sessions.putAll(restored);
+        resume.putAll(members);
+        sessionID.set(Math.max(sessionID.get(), next));
+
+        if (!restored.isEmpty()) {
+            log.log(EventLog.STATE_RESTORED, null, SessionStore.DIR, -1,
+                    (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), sessions.size());
+        }
+        if (!resume.isEmpty()) {
+            wheel.schedule(resumeExpiry, TimeUnit.SECONDS.toMillis(RESUME_SECONDS));
+        }
+
+    }
+
+    /**
+     * Puts a user who registered again back into its restored sessions, and
+     * has its client open their windows. The user may be connected to another
+     * node of the cluster.
+     *
+     * @param user the user id
+     */
+    void resume(int user) {
+
+        ArrayList<Integer> restored = resume.remove(user);
+        if (restored == null) {
+            return;
+        }
+        log.log(EventLog.SESSION_RESUME, ids.name(user), null, -1, 0, restored.size());
+
+        int[] recipient = { user };
+        for (int i = 0; i < restored.size(); i++) {
+            int sessionId = restored.get(i);
+            shards.execute(sessionId, () -> {
+                SessionRecord session = sessions.get(sessionId);
+                if (session == null || !session.contains(user)) {
+                    return;
+                }
+                if (session.group) {
+                    deliver(new Packet("notify", Integer.toString(sessionId), null), recipient);
+                    deliver(membersCheckpoint(sessionId, session), recipient);
+                } else {
+                    deliver(privateMembers(sessionId, session), recipient);
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Removes the users who did not register again in time from their
+     * restored sessions. Called on the timing wheel.
+     */
+    private void expireResume() {
+        for (Integer user : resume.keySet()) {
+            ArrayList<Integer> restored = resume.remove(user);
+            if (restored == null || online(ids.name(user))) {
+                continue;
+            }
+            log.log(EventLog.RESUME_EXPIRED, ids.name(user), null, -1, 0, restored.size());
+            for (int i = 0; i < restored.size(); i++) {
+                int sessionId = restored.get(i);
+                shards.execute(sessionId, () -> leaveSession(sessionId, user, 0));
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the sessions this node owns, collected on their
+     * shards, and deletes the log it replaces. The periodic snapshot and the
+     * one on shutdown take turns.
+     */
+    synchronized void snapshot() {
+
+        if (!store.enabled()) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        try {
+            int first = store.rotate();
+
+            int[] counts = new int[shards.count()];
+            ArrayList<ByteArrayOutputStream> chunks = new ArrayList<ByteArrayOutputStream>();
+            CountDownLatch collected = new CountDownLatch(shards.count());
+            for (int shard = 0; shard < shards.count(); shard++) {
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                chunks.add(chunk);
+                int current = shard;
+                shards.executeOnShard(shard, () -> {
+                    try {
+                        DataOutputStream out = new DataOutputStream(chunk);
+                        for (Map.Entry<Integer, SessionRecord> entry : sessions.entrySet()) {
+                            int sessionId = entry.getKey();
+                            if (shards.shardOf(sessionId) == current && cluster.owns(sessionId)
+                                    && !entry.getValue().isEmpty()) {
+                                store.write(out, sessionId, entry.getValue());
+                                counts[current]++;
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the chunk is in memory
+                    } finally {
+                        collected.countDown();
+                    }
+                });
+            }
+            collected.await();
+
+            int count = 0;
+            for (int shardCount : counts) {
+                count += shardCount;
+            }
+            store.writeSnapshot(first, count, chunks);
+            log.log(EventLog.SNAPSHOT, null, null, -1,
+                    (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), count);
+
+        } catch (IOException | InterruptedException e) {
+            System.out.println("[!] Could not write a snapshot: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Notifies the observers that the user list changed.
+     */
+    void userListChanged() {
+        if (observers.isEmpty()) {
+            return;
+        }
+        String[] users = users();
+        for (ServerObserver observer : observers) {
+            observer.userListChanged(users);
+        }
+    }
+
+    @Override
+    public String[] users() {
+        return userList.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Whether a user is connected to this node or to another node of the
+     * cluster.
+     *
+     * @param nickname the user
+     *
+     * @return true if the user is online
+     */
+    boolean online(String nickname) {
+        return userList.containsKey(nickname) || cluster.nodeOf(nickname) >= 0;
+    }
+
+    /**
+     * Assigns the id of a new session, unique in the cluster.
+     *
+     * @return the session id
+     */
+    int nextSessionId() {
+        return cluster.sessionId(sessionID.getAndIncrement());
+    }
+
+    /**
+     * Sends a packet to a set of users. The packet is queued on the writers
+     * of the users connected to this node, and forwarded once to each other
+     * node with the names of its users among them. Users who are not online
+     * are skipped. The packet must already name the users it refers to.
+     *
+     * @param packet the packet
+     * @param users  the ids of the recipients
+     */
+    void deliver(Packet packet, int[] users) {
+
+        HashMap<Integer, ArrayList<String>> remote = null;
+        for (int i = 0; i < users.length; i++) {
+            UserIds.Entry user = ids.entry(users[i]);
+            if (user == null) {
+                continue;
+            }
+            AddressWrapper local = user.connection;
+            if (local != null) {
+                local.out.reset();
+                local.out.send(packet);
+                continue;
+            }
+            int node = cluster.nodeOf(user.name);
+            if (node >= 0) {
+                if (remote == null) {
+                    remote = new HashMap<Integer, ArrayList<String>>();
+                }
+                remote.computeIfAbsent(node, key -> new ArrayList<String>()).add(user.name);
+            }
+        }
+        if (remote != null) {
+            cluster.forward(packet, remote);
+        }
+
+    }
+
+    /**
+     * Assigns the SSRC of a new connection, which identifies its call audio.
+     *
+     * @return the SSRC
+     */
+    int nextSsrc() {
+        return ssrcs.incrementAndGet();
+    }
+
+    /**
+     * Removes a user from a session and its calls. When the last member leaves,
+     * the session is removed and its call channels are returned to the
+     * allocator. A session created by another node of the cluster is left
+     * through that node. Runs on the shard of the session.
+     *
+     * @param sessionId the session
+     * @param user      the id of the user leaving
+     * @param ssrc      the SSRC of the user
+     *
+     * @return the session, or null if it does not exist
+     */
+    SessionRecord leaveSession(int sessionId, int user, int ssrc) {
+        SessionRecord session = sessions.get(sessionId);
+        if (session == null) {
+            return null;
+        }
+        String nickname = ids.name(user);
+        if (!cluster.owns(sessionId)) {
+            cluster.memberChange(sessionId, nickname, true, false);
+            return session;
+        }
+
+        // removing the member takes it out of the calls too
+        if (session.remove(user)) {
+            left(user, sessionId);
+            if (!session.isEmpty()) {
+                membersChanged(sessionId, session, UserIds.NONE, user);
+            } else {
+                session.version++;
+                store.membersChanged(sessionId, session.version, nickname, false);
+                cluster.sessionChanged(sessionId, session);
+            }
+        }
+        if (session.hasChannels()) {
+            for (int i = 0; i < CALL_CHANNELS; i++) {
+                relay.leave(session.channel(i), ssrc);
+            }
+        }
+        if (session.isEmpty() && sessions.remove(sessionId, session)) {
+            if (session.hasChannels()) {
+                for (int i = 0; i < CALL_CHANNELS; i++) {
+                    relay.close(session.channel(i));
+                }
+                callChannels.release(session.channel);
+            }
+            store.ended(sessionId);
+            log.log(EventLog.SESSION_END, nickname, null, sessionId, 0, session.channel);
+        }
+        return session;
+    }
+
+    /**
+     * Removes a user from every session it is a member of, each on the shard
+     * of the session. Called when the user disconnects.
+     *
+     * @param user the id of the user
+     * @param ssrc the SSRC of the user
+     */
+    void leaveAllSessions(int user, int ssrc) {
+        Set<Integer> joined = memberships.get(user);
+        if (joined == null) {
+            return;
+        }
+        for (Integer sessionId : joined.toArray(new Integer[0])) {
+            shards.execute(sessionId, () -> {
+                SessionRecord session = sessions.get(sessionId);
+                if (session != null && session.contains(user)) {
+                    leaveSession(sessionId, user, ssrc);
+                }
+            });
+        }
+    }
+
+    /**
+     * Records that a user became a member of a session. Called wherever a
+     * member is added to a session, on the shard of the session.
+     *
+     * @param user      the id of the user
+     * @param sessionId the session
+     */
+    void joined(int user, int sessionId) {
+        memberships.compute(user, (key, joined) -> {
+            if (joined == null) {
+                joined = ConcurrentHashMap.newKeySet();
+            }
+            joined.add(sessionId);
+            return joined;
+        });
+    }
+
+    /**
+     * Records that a user is no longer a member of a session.
+     *
+     * @param user      the id of the user
+     * @param sessionId the session
+     */
+    void left(int user, int sessionId) {
+        memberships.computeIfPresent(user, (key, joined) -> {
+            joined.remove(sessionId);
+            return joined.isEmpty() ? null : joined;
+        });
+    }
+
+    /**
+     * Records that none of the members of a session are members any more,
+     * before the session is dropped or its member list replaced.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     */
+    void leftAll(int sessionId, SessionRecord session) {
+        for (int i = 0; i < session.size(); i++) {
+            left(session.user(i), sessionId);
+        }
+    }
+
+    /**
+     * Adds a user to a session of this node. A group invitee is told to open
+     * its window first, and the members of a private session are told who is
+     * in it. A user who is a member already is left as it is. Runs on the
+     * shard of the session.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     * @param user      the id of the user joining
+     * @param isPrivate whether the session is private
+     */
+    void addMember(int sessionId, SessionRecord session, int user, boolean isPrivate) {
+
+        if (session.contains(user)) {
+            return;
+        }
+
+        // a group invitee opens its window before it gets the member list
+        if (!isPrivate) {
+            deliver(new Packet("notify", Integer.toString(sessionId), null), new int[] { user });
+        }
+        session.add(user);
+        joined(user, sessionId);
+
+        // send the members the change
+        membersChanged(sessionId, session, user, UserIds.NONE);
+
+        // notify users of a private session
+        if (isPrivate) {
+            deliver(privateMembers(sessionId, session), session.users());
+        }
+
+    }
+
+    /**
+     * Tells the members of a session that a user joined or left it. Members
+     * get a "members" delta, or a full "sessionUsers" checkpoint every
+     * MEMBER_CHECKPOINT versions, and a user who just joined gets a
+     * checkpoint as it has no list to apply the delta to. The other nodes of
+     * the cluster get the new list and pass it on to their members. Called on
+     * the shard of the session, after the change, so the members see the
+     * versions in order.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     * @param added     the id of the user who joined, or UserIds.NONE
+     * @param removed   the id of the user who left, or UserIds.NONE
+     */
+    void membersChanged(int sessionId, SessionRecord session, int added, int removed) {
+
+        long start = System.nanoTime();
+        session.version++;
+
+        Packet packet;
+        if (session.version % MEMBER_CHECKPOINT == 0) {
+            packet = membersCheckpoint(sessionId, session);
+        } else {
+            packet = new Packet("members", Integer.toString(sessionId), null);
+            packet.users = added != UserIds.NONE ? new int[] { added } : new int[0];
+            packet.left = removed != UserIds.NONE ? new int[] { removed } : new int[0];
+            packet.version = session.version;
+            ids.name(packet);
+        }
+
+        for (int i = 0; i < session.size(); i++) {
+            int user = session.user(i);
+            AddressWrapper member = ids.connection(user);
+            if (member == null) {
+                continue;
+            }
+            if (user == added && packet.kind == PacketType.MEMBERS) {
+                member.out.send(membersCheckpoint(sessionId, session));
+            } else {
+                member.out.send(packet);
+            }
+        }
+
+        boolean joined = added != UserIds.NONE;
+        store.membersChanged(sessionId, session.version, ids.name(joined ? added : removed), joined);
+        cluster.sessionChanged(sessionId, session);
+        metrics.fanout(session.size(), System.nanoTime() - start);
+
+    }
+
+    /**
+     * Builds the full member list of a session, called on the shard of the
+     * session.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     *
+     * @return a "sessionUsers" packet stamped with the version of the list
+     */
+    Packet membersCheckpoint(int sessionId, SessionRecord session) {
+        Packet packet = new Packet("sessionUsers", Integer.toString(sessionId), null);
+        packet.users = session.users();
+        packet.version = session.version;
+        ids.name(packet);
+        return packet;
+    }
+
+    /**
+     * Builds the packet that has the members of a private session open its
+     * window, called on the shard of the session.
+     *
+     * @param sessionId the session
+     * @param session   the session record
+     *
+     * @return a "notifyPrivate" packet naming the members
+     */
+    Packet privateMembers(int sessionId, SessionRecord session) {
+        Packet packet = new Packet("notifyPrivate", Integer.toString(sessionId), null);
+        packet.users = session.users();
+        ids.name(packet);
+        return packet;
+    }
+
+    @Override
+    public EventLog eventLog() {
+        return log;
+    }
+
+    @Override
+    public void addObserver(ServerObserver observer) {
+        observers.add(observer);
+        observer.userListChanged(users());
+    }
+
+    @Override
+    public void removeObserver(ServerObserver observer) {
+        observers.remove(observer);
+    }
+
+    @Override
+    public void shutdown() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            relay.close();
+            cluster.stop();
+            wheel.stop();
+
+            // a clean restart only has to load the snapshot
+            snapshots.shutdown();
+            snapshot();
+            store.close();
+        } catch (IOException e) {
+            System.out.println("[!] Shutting down the server failed: " + e);
+        }
+    }
+
+    /**
+     * Reads admin commands from standard input until it is closed or the
+     * server is shut down.
+     *
+     * @param admin the server to administer
+     */
+    static void console(ServerAdmin admin) {
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                switch (line.trim()) {
+                    case "users":
+                        System.out.println(Arrays.toString(admin.users()));
+                        break;
+                    case "sessions":
+                        System.out.println(admin.sessionCount() + " sessions");
+                        break;
+                    case "dropped":
+                        System.out.println(admin.eventLog().dropped() + " log events dropped");
+                        break;
+                    case "quit":
+                        admin.shutdown();
+                        return;
+                    case "":
+                        break;
+                    default:
+                        System.out.println("commands: users, sessions, dropped, quit");
+                }
+
+            }
+        } catch (IOException e) {
+            // no console attached, keep serving
+        }
+
+    }
+
+    /**
+     * Runs the server headless, with the event log echoed to standard output
+     * and admin commands read from standard input.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+
+        EventLog log = EventLog.create();
+        log.addSink(lines -> {
+            for (String line : lines) {
+                System.out.println(line);
+            }
+        });
+
+        ServerCore core = new ServerCore(log);
+
+        // a SIGTERM still writes the final snapshot
+        Runtime.getRuntime().addShutdownHook(new Thread(core::shutdown, "shutdown"));
+
+        Thread console = new Thread(() -> console(core), "console");
+        console.setDaemon(true);
+        console.start();
+
+        core.run();
+
+    }
+
+}
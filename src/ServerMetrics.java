@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * The ServerMetrics class collects counters and latency histograms for the hot
+ * paths of the server: the packets handled by ClientManager, the fan-out in
+ * broadcastSet and the bytes moved per connection. Recording only touches
+ * LongAdders and Histograms, so it takes no locks and allocates nothing and can
+ * stay on in production. The metrics are exposed as a JMX MBean and optionally
+ * dumped as text at a fixed interval.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final LongAdder[] packetCounts = new LongAdder[PacketType.COUNT];
+    private final Histogram[] packetNanos = new Histogram[PacketType.COUNT];
+
+    private final Histogram fanoutSize = new Histogram();
+    private final Histogram fanoutNanos = new Histogram();
+
+    private final LongAdder voiceNoteBytes = new LongAdder();
+    private final LongAdder closedBytesIn = new LongAdder();
+    private final LongAdder closedBytesOut = new LongAdder();
+    private final LongAdder packetsRejected = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+
+    /** The open connections, by remote address. */
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+
+    private final ServerCore server;
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param server the server whose registries are reported as gauges
+     */
+    public ServerMetrics(ServerCore server) {
+        this.server = server;
+        for (int i = 0; i < PacketType.COUNT; i++) {
+            packetCounts[i] = new LongAdder();
+            packetNanos[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Registers the metrics MBean and starts the periodic dump, configured by
+     * the tschat.metricsDumpSeconds system property (0 disables it).
+     */
+    public void start() {
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("tschat:type=ServerMetrics"));
+        } catch (Exception e) {
+            System.out.println("[!] Could not register the metrics MBean: " + e.getMessage());
+        }
+
+        long period = Long.getLong("tschat.metricsDumpSeconds", 60);
+        if (period > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> System.out.println(dump()), period, period, TimeUnit.SECONDS);
+        }
+
+    }
+
+    /**
+     * Records a handled packet, timing its handler.
+     *
+     * @param kind  the packet kind, one of the PacketType constants
+     * @param nanos the time spent handling it
+     */
+    public void packetHandled(int kind, long nanos) {
+        packetCounts[kind].increment();
+        packetNanos[kind].record(nanos);
+    }
+
+    /**
+     * Records a fan-out of a packet to a set of users.
+     *
+     * @param recipients the number of recipients
+     * @param nanos      the time spent queueing the packet for all of them
+     */
+    public void fanout(int recipients, long nanos) {
+        fanoutSize.record(recipients);
+        fanoutNanos.record(nanos);
+    }
+
+    /**
+     * Records the bytes of a relayed voice note.
+     *
+     * @param bytes the size of the voice note
+     */
+    public void voiceNoteRelayed(long bytes) {
+        voiceNoteBytes.add(bytes);
+    }
+
+    /**
+     * Records a packet rejected for breaking a limit or the memory budget.
+     */
+    public void packetRejected() {
+        packetsRejected.increment();
+    }
+
+    /**
+     * Records a connection closed because it did not read what it was sent.
+     */
+    public void slowConsumer() {
+        slowConsumers.increment();
+    }
+
+    /**
+     * Starts tracking a connection.
+     *
+     * @param name   the name of the connection
+     * @param in     the counted input stream of the connection
+     * @param writer the writer of the connection
+     *
+     * @return the connection statistics
+     */
+    public Connection open(String name, CountingInputStream in, PacketWriter writer) {
+        Connection connection = new Connection(name, in, writer);
+        connections.put(name, connection);
+        return connection;
+    }
+
+    /**
+     * Stops tracking a connection, keeping its bytes in the totals.
+     *
+     * @param connection the connection that closed
+     */
+    public void close(Connection connection) {
+        if (connections.remove(connection.name) != null) {
+            closedBytesIn.add(connection.in.count);
+            closedBytesOut.add(connection.writer.bytesWritten());
+        }
+    }
+
+    @Override
+    public int getActiveUsers() {
+        return server.userList.size();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return server.sessions.size();
+    }
+
+    @Override
+    public int getActiveCalls() {
+        int calls = 0;
+        for (SessionRecord session : server.sessions.values()) {
+            calls += session.callCount();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getBytesIn() {
+        long bytes = closedBytesIn.sum();
+        for (Connection connection : connections.values()) {
+            bytes += connection.in.count;
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long bytes = closedBytesOut.sum();
+        for (Connection connection : connections.values()) {
+            bytes += connection.writer.bytesWritten();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getVoiceNoteBytes() {
+        return voiceNoteBytes.sum();
+    }
+
+    @Override
+    public long getInFlightBytes() {
+        return server.memory.used();
+    }
+
+    @Override
+    public long getPacketsRejected() {
+        return packetsRejected.sum();
+    }
+
+    @Override
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getFanouts() {
+        return fanoutSize.count();
+    }
+
+    @Override
+    public double getFanoutMeanSize() {
+        return fanoutSize.mean();
+    }
+
+    @Override
+    public long getFanoutP99Micros() {
+        return fanoutNanos.percentile(99) / 1000;
+    }
+
+    @Override
+    public int getCallChannelBlocks() {
+        return server.callChannels.capacity();
+    }
+
+    @Override
+    public int getCallChannelBlocksInUse() {
+        return server.callChannels.inUse();
+    }
+
+    @Override
+    public double getCallChannelUtilisation() {
+        return server.callChannels.utilisation();
+    }
+
+    @Override
+    public long getMediaDatagramsIn() {
+        return server.relay.datagramsIn.sum();
+    }
+
+    @Override
+    public long getMediaDatagramsOut() {
+        return server.relay.datagramsOut.sum();
+    }
+
+    @Override
+    public long getMediaDatagramsDropped() {
+        return server.relay.datagramsDropped.sum();
+    }
+
+    @Override
+    public String[] getPacketStats() {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (int i = 0; i < PacketType.COUNT; i++) {
+            if (packetCounts[i].sum() > 0) {
+                lines.add(PacketType.NAMES[i] + " count=" + packetCounts[i].sum() + " us " + packetNanos[i].summary(1000));
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getConnectionStats() {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Connection connection : connections.values()) {
+            lines.add(connection.name + " in=" + connection.in.count + " out=" + connection.writer.bytesWritten());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder report = new StringBuilder("[metrics] users=").append(getActiveUsers())
+                .append(" sessions=").append(getActiveSessions())
+                .append(" calls=").append(getActiveCalls())
+                .append(" bytesIn=").append(getBytesIn())
+                .append(" bytesOut=").append(getBytesOut())
+                .append(" voiceNoteBytes=").append(getVoiceNoteBytes()).append('\n');
+        report.append("  memory inFlight=").append(getInFlightBytes()).append(" of ").append(server.memory.limit())
+                .append(" rejected=").append(getPacketsRejected()).append(" slowConsumers=").append(getSlowConsumers())
+                .append('\n');
+        report.append("  call channels ").append(server.callChannels.summary()).append('\n');
+        report.append("  shards ").append(server.shards.summary()).append('\n');
+        if (server.store.enabled()) {
+            report.append("  store ").append(server.store.summary()).append('\n');
+        }
+        report.append("  presence ").append(server.presence.summary()).append('\n');
+        if (server.cluster.enabled()) {
+            report.append("  cluster ").append(server.cluster.summary()).append('\n');
+        }
+        report.append("  media datagrams in=").append(getMediaDatagramsIn()).append(" out=")
+                .append(getMediaDatagramsOut()).append(" dropped=").append(getMediaDatagramsDropped()).append('\n');
+        report.append("  fanout size ").append(fanoutSize.summary(1)).append('\n');
+        report.append("  fanout us   ").append(fanoutNanos.summary(1000)).append('\n');
+        for (String line : getPacketStats()) {
+            report.append("  ").append(line).append('\n');
+        }
+        for (String line : getConnectionStats()) {
+            report.append("  ").append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void resetHistograms() {
+        for (Histogram histogram : packetNanos) {
+            histogram.reset();
+        }
+        fanoutSize.reset();
+        fanoutNanos.reset();
+    }
+
+    /**
+     * The byte counters of one open connection.
+     */
+    static class Connection {
+
+        final String name;
+        final CountingInputStream in;
+        final PacketWriter writer;
+
+        Connection(String name, CountingInputStream in, PacketWriter writer) {
+            this.name = name;
+            this.in = in;
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * An input stream that counts the bytes read through it. Only the
+     * connection thread reads, so a volatile field is enough.
+     */
+    static class CountingInputStream extends InputStream {
+
+        private final InputStream in;
+        volatile long count;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * The JMX management interface of ServerMetrics, registered under
+ * tschat:type=ServerMetrics.
+ */
+public interface ServerMetricsMBean {
+
+    int getActiveUsers();
+
+    int getActiveSessions();
+
+    int getActiveCalls();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getVoiceNoteBytes();
+
+    long getInFlightBytes();
+
+    long getPacketsRejected();
+
+    long getSlowConsumers();
+
+    long getFanouts();
+
+    double getFanoutMeanSize();
+
+    long getFanoutP99Micros();
+
+    int getCallChannelBlocks();
+
+    int getCallChannelBlocksInUse();
+
+    double getCallChannelUtilisation();
+
+    long getMediaDatagramsIn();
+
+    long getMediaDatagramsOut();
+
+    long getMediaDatagramsDropped();
+
+    /**
+     * One line per packet type with its count and handling latency.
+     *
+     * @return the packet statistics
+     */
+    String[] getPacketStats();
+
+    /**
+     * One line per open connection with its bytes in and out.
+     *
+     * @return the connection statistics
+     */
+    String[] getConnectionStats();
+
+    /**
+     * The full text report, as written by the periodic dump.
+     *
+     * @return the report
+     */
+    String dump();
+
+    /**
+     * Clears the histograms.
+     */
+    void resetHistograms();
+
+}
@@ -0,0 +1,15 @@
+/**
+ * The ServerObserver interface is implemented by anything that wants to follow
+ * the state of a running server, such as the Server window. Observers are
+ * called from the connection threads and must hand work to their own thread.
+ */
+public interface ServerObserver {
+
+    /**
+     * Called whenever a user connects or disconnects.
+     *
+     * @param users the nicknames of all connected users
+     */
+    void userListChanged(String[] users);
+
+}
@@ -0,0 +1,339 @@
+import java.util.Arrays;
+
+/**
+ * The SessionRecord class holds a session on the server: its call channels,
+ * its members in the order they joined and the call channel each member is
+ * in. It is built from primitive arrays only, a private session takes about
+ * 70 bytes, so a server can hold hundreds of thousands of them.
+ *
+ * Each member is one long, the user id in the low half and its flags in the
+ * high half, one bit per call channel the member is in. Membership tests scan
+ * the members while there are few of them, and use an open addressing table
+ * from user id to position once there are more than SCAN_MEMBERS.
+ *
+ * A record is changed on the shard of its session only.
+ */
+public class SessionRecord {
+
+    /** The number of members up to which lookups scan the members. */
+    static final int SCAN_MEMBERS = 16;
+
+    private static final long ID_MASK = 0xFFFFFFFFL;
+    private static final int FLAGS_SHIFT = 32;
+
+    /** The first of the call channel ids of the session, or -1 if it has none. */
+    int channel;
+
+    /** The version of the member list, raised on every change. */
+    int version;
+
+    /** Whether it is a group session, a private session opens a private window. */
+    boolean group;
+
+    /** The members, id and flags, the first size of them are used. */
+    private long[] members = new long[2];
+    private int size;
+
+    /** The position of each member plus one, by user id, 0 for a free slot, null while there are few members. */
+    private int[] index;
+
+    /**
+     * Creates a session record without members.
+     *
+     * @param channel the first of the CALL_CHANNELS call channel ids, or -1
+     *                if the session has no call channels
+     * @param group   whether it is a group session
+     */
+    public SessionRecord(int channel, boolean group) {
+        this.channel = channel;
+        this.group = group;
+    }
+
+    /**
+     * Whether the session has call channels.
+     *
+     * @return true if it has
+     */
+    boolean hasChannels() {
+        return channel >= 0;
+    }
+
+    /**
+     * The id of a call channel of the session.
+     *
+     * @param number the channel number, 0 to CALL_CHANNELS - 1
+     *
+     * @return the call channel id the relay routes by
+     *
+     * @throws IllegalArgumentException if there is no such channel number
+     */
+    int channel(int number) {
+        checkChannel(number);
+        return channel + number;
+    }
+
+    /**
+     * The number of members.
+     *
+     * @return the number of members
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Whether the session has no members left.
+     *
+     * @return true if it has none
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The user id of a member.
+     *
+     * @param position the position of the member, in joining order
+     *
+     * @return the user id
+     */
+    int user(int position) {
+        return (int) (members[position] & ID_MASK);
+    }
+
+    /**
+     * Whether a user is a member.
+     *
+     * @param user the user id
+     *
+     * @return true if it is
+     */
+    boolean contains(int user) {
+        return position(user) >= 0;
+    }
+
+    /**
+     * Adds a member, after the others.
+     *
+     * @param user the user id
+     *
+     * @return false if the user was a member already
+     */
+    boolean add(int user) {
+        if (position(user) >= 0) {
+            return false;
+        }
+        if (size == members.length) {
+            members = Arrays.copyOf(members, size * 2);
+        }
+        members[size] = user & ID_MASK;
+        size++;
+        if (index != null) {
+            put(user, size - 1);
+        } else if (size > SCAN_MEMBERS) {
+            rebuildIndex();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a member and takes it out of the calls of the session. The
+     * others keep their order.
+     *
+     * @param user the user id
+     *
+     * @return false if the user was not a member
+     */
+    boolean remove(int user) {
+        int position = position(user);
+        if (position < 0) {
+            return false;
+        }
+        size--;
+        System.arraycopy(members, position + 1, members, position, size - position);
+        members[size] = 0;
+        if (index != null) {
+            if (size > SCAN_MEMBERS) {
+                rebuildIndex();
+            } else {
+                index = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every member.
+     */
+    void clear() {
+        Arrays.fill(members, 0, size, 0);
+        size = 0;
+        index = null;
+    }
+
+    /**
+     * The user ids of the members, in joining order.
+     *
+     * @return a new array of the ids
+     */
+    int[] users() {
+        return users(UserIds.NONE);
+    }
+
+    /**
+     * The user ids of the members but one.
+     *
+     * @param except the user to leave out
+     *
+     * @return a new array of the ids
+     */
+    int[] users(int except) {
+        int[] users = new int[position(except) >= 0 ? size - 1 : size];
+        int at = 0;
+        for (int i = 0; i < size; i++) {
+            int user = user(i);
+            if (user != except) {
+                users[at++] = user;
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Puts a member in a call channel, or takes it out.
+     *
+     * @param user   the user id
+     * @param number the channel number
+     * @param inCall whether the member joins or leaves the call
+     *
+     * @return false if the user is not a member
+     *
+     * @throws IllegalArgumentException if there is no such channel number
+     */
+    boolean setCall(int user, int number, boolean inCall) {
+        checkChannel(number);
+        int position = position(user);
+        if (position < 0) {
+            return false;
+        }
+        long bit = 1L << (FLAGS_SHIFT + number);
+        members[position] = inCall ? members[position] | bit : members[position] & ~bit;
+        return true;
+    }
+
+    /**
+     * The members in a call channel.
+     *
+     * @param number the channel number
+     *
+     * @return a new array of their user ids, in joining order
+     *
+     * @throws IllegalArgumentException if there is no such channel number
+     */
+    int[] calls(int number) {
+        checkChannel(number);
+        long bit = 1L << (FLAGS_SHIFT + number);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if ((members[i] & bit) != 0) {
+                count++;
+            }
+        }
+        int[] users = new int[count];
+        int at = 0;
+        for (int i = 0; i < size; i++) {
+            if ((members[i] & bit) != 0) {
+                users[at++] = user(i);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * The number of members in the calls of the session, summed over the
+     * channels. Read by the metrics off the shard, so it only reads what it
+     * can see.
+     *
+     * @return the number of members in calls
+     */
+    int callCount() {
+        long[] entries = members;
+        int count = Math.min(size, entries.length);
+        int calls = 0;
+        for (int i = 0; i < count; i++) {
+            calls += Long.bitCount(entries[i] >>> FLAGS_SHIFT);
+        }
+        return calls;
+    }
+
+    /**
+     * Finds a member.
+     *
+     * @param user the user id
+     *
+     * @return its position, or -1 if it is not a member
+     */
+    private int position(int user) {
+        if (user == UserIds.NONE) {
+            return -1;
+        }
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if ((int) members[i] == user) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = hash(user) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int position = index[slot] - 1;
+            if ((int) members[position] == user) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuilds the lookup table for the current members, at most half full.
+     */
+    private void rebuildIndex() {
+        index = new int[Integer.highestOneBit(size * 2 - 1) << 1];
+        for (int i = 0; i < size; i++) {
+            put(user(i), i);
+        }
+    }
+
+    /**
+     * Adds a member to the lookup table, which is rebuilt larger when three
+     * quarters full.
+     *
+     * @param user     the user id
+     * @param position its position
+     */
+    private void put(int user, int position) {
+        if (size * 4 > index.length * 3) {
+            rebuildIndex();
+            return;
+        }
+        int mask = index.length - 1;
+        int slot = hash(user) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = position + 1;
+    }
+
+    private static int hash(int user) {
+        int hash = user * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void checkChannel(int number) {
+        if (number < 0 || number >= ServerCore.CALL_CHANNELS) {
+            throw new IllegalArgumentException("No call channel " + number);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The SessionShards class runs the work on sessions, such as member changes,
+ * calls and message fan-out, on a fixed set of single-threaded shards. A
+ * session always runs on the shard its id hashes to, so its state is only
+ * touched by one thread and needs no lock, its tasks run in the order they
+ * were submitted, and different sessions run in parallel on different cores.
+ *
+ * Each session has a mailbox on its shard, and the shard takes turns between
+ * the mailboxes with work, running at most BATCH tasks of one before moving
+ * to the next, so a busy group delays the other sessions of its shard by one
+ * batch at most instead of making them wait behind its whole backlog.
+ */
+public class SessionShards {
+
+    /** The number of shards, one thread each. */
+    static final int SHARDS = Integer.getInteger("tschat.sessionShards", Runtime.getRuntime().availableProcessors());
+
+    /** The most tasks a mailbox runs before the next mailbox of its shard gets a turn. */
+    static final int BATCH = 64;
+
+    /** The tasks of one session, or of a shard as a whole. */
+    private static final class Mailbox {
+
+        final Shard shard;
+        final int key;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /** Whether the mailbox is waiting in its shard's ready queue or running. */
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Mailbox(Shard shard, int key) {
+            this.shard = shard;
+            this.key = key;
+        }
+
+        /**
+         * Queues a task, and the mailbox on its shard unless it is already.
+         *
+         * @param task the task
+         */
+        void submit(Runnable task) {
+            tasks.add(task);
+            shard.queued.incrementAndGet();
+            if (scheduled.compareAndSet(false, true)) {
+                shard.ready.add(this);
+            }
+        }
+
+        /**
+         * Runs a batch of tasks on the shard thread, then queues the mailbox
+         * again if it has more, or drops it if it ran dry.
+         */
+        void run() {
+
+            Runnable task;
+            int ran = 0;
+            while (ran < BATCH && (task = tasks.poll()) != null) {
+                ran++;
+                shard.queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("[!] A task" + (key < 0 ? "" : " of session " + key) + " failed on "
+                            + Thread.currentThread().getName() + ": " + e);
+                }
+            }
+            shard.tasks += ran;
+
+            if (!tasks.isEmpty()) {
+                shard.ready.add(this);
+                return;
+            }
+
+            // a task submitted after the check above schedules the mailbox again
+            scheduled.set(false);
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                shard.ready.add(this);
+                return;
+            }
+            if (this != shard.own) {
+                shard.mailboxes.remove(key, this);
+            }
+
+        }
+
+    }
+
+    /** A shard thread and the mailboxes of its sessions. */
+    private static final class Shard implements Runnable {
+
+        final ConcurrentHashMap<Integer, Mailbox> mailboxes = new ConcurrentHashMap<Integer, Mailbox>();
+
+        /** The mailboxes with work, in turn. */
+        final LinkedBlockingQueue<Mailbox> ready = new LinkedBlockingQueue<Mailbox>();
+
+        /** The mailbox of the tasks for the shard as a whole. */
+        final Mailbox own = new Mailbox(this, -1);
+
+        final AtomicLong queued = new AtomicLong();
+
+        /** Tasks run so far, written by the shard thread only. */
+        volatile long tasks;
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    ready.take().run();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+    }
+
+    private final Shard[] shards;
+
+    /**
+     * Creates a new SessionShards with SHARDS shards.
+     */
+    public SessionShards() {
+        this(SHARDS);
+    }
+
+    /**
+     * Creates a new SessionShards and starts its threads.
+     *
+     * @param count the number of shards
+     */
+    public SessionShards(int count) {
+        shards = new Shard[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            Thread thread = new Thread(shards[i], "session-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * The number of shards.
+     *
+     * @return the number of shards
+     */
+    public int count() {
+        return shards.length;
+    }
+
+    /**
+     * The shard a session runs on.
+     *
+     * @param sessionId the session
+     *
+     * @return the index of its shard
+     */
+    public int shardOf(int sessionId) {
+        return Math.floorMod(sessionId, shards.length);
+    }
+
+    /**
+     * Runs a task on the shard of a session, after the tasks submitted for the
+     * session before it.
+     *
+     * @param sessionId the session
+     * @param task      the task
+     */
+    public void execute(int sessionId, Runnable task) {
+        Shard shard = shards[shardOf(sessionId)];
+        shard.mailboxes.computeIfAbsent(sessionId, key -> new Mailbox(shard, key)).submit(task);
+    }
+
+    /**
+     * Runs a task on a shard, between the batches of its sessions, for work
+     * over every session of the shard.
+     *
+     * @param shard the index of the shard
+     * @param task  the task
+     */
+    public void executeOnShard(int shard, Runnable task) {
+        shards[shard].own.submit(task);
+    }
+
+    /**
+     * Summarises the shards for the metrics report.
+     *
+     * @return a one line summary
+     */
+    public String summary() {
+        StringBuilder queued = new StringBuilder();
+        long tasks = 0;
+        for (int i = 0; i < shards.length; i++) {
+            queued.append(i == 0 ? "" : ",").append(shards[i].queued.get());
+            tasks += shards[i].tasks;
+        }
+        return String.format("shards=%d tasks=%d queued=[%s]", shards.length, tasks, queued);
+    }
+
+}
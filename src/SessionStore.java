@@ -0,0 +1,443 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * The SessionStore class keeps the sessions of the server on disk, so a
+ * restarted server carries on with the same sessions, members and call
+ * channel ids. Every change to a session is appended to a write-ahead log as
+ * a small binary record, and a snapshot of all sessions is written every
+ * SNAPSHOT_SECONDS, after which the log segments it covers are deleted. On
+ * start the snapshot is loaded and the later segments are replayed.
+ *
+ * The log is cut into numbered segments, and a snapshot starts a new one
+ * before it collects the sessions, so every change it may have missed is in
+ * a segment it does not cover. A change may be in both, which is harmless as
+ * replaying a record is idempotent. A record cut short by a crash ends the
+ * replay of its segment.
+ */
+public class SessionStore {
+
+    /** The directory of the snapshot and the log, empty keeps no state. */
+    static final String DIR = System.getProperty("tschat.stateDir", "state");
+
+    /** How often a snapshot is written, in seconds. */
+    static final long SNAPSHOT_SECONDS = Long.getLong("tschat.snapshotSeconds", 60);
+
+    /** Starts a snapshot file, "TSS1". */
+    private static final int MAGIC = 0x54535331;
+
+    // log record types
+    private static final byte CREATE = 1;
+    private static final byte JOIN = 2;
+    private static final byte LEAVE = 3;
+    private static final byte END = 4;
+
+    private final File dir;
+
+    /** Maps the nicknames in the files to the ids of the sessions in memory. */
+    private final UserIds ids;
+
+    /** The open log segment, null if the store is disabled or failed. */
+    private DataOutputStream log;
+    private int segment;
+    private long records;
+
+    /** The record being built, written to the log in one piece once it is whole. */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    /**
+     * Creates a new SessionStore in the configured directory.
+     *
+     * @param ids the user ids of the server
+     */
+    public SessionStore(UserIds ids) {
+        this(DIR.isEmpty() ? null : new File(DIR), ids);
+    }
+
+    /**
+     * Creates a new SessionStore. The files name users by nickname, as ids
+     * only last as long as the server.
+     *
+     * @param dir the directory of the snapshot and the log, or null to keep no
+     *            state
+     * @param ids the user ids of the server
+     */
+    public SessionStore(File dir, UserIds ids) {
+        this.dir = dir;
+        this.ids = ids;
+    }
+
+    /**
+     * Whether the store keeps state.
+     *
+     * @return true if it has a directory
+     */
+    boolean enabled() {
+        return dir != null;
+    }
+
+    /**
+     * Loads the snapshot, replays the log after it and opens a new log
+     * segment. Sessions restored this way have no call members, as calls do
+     * not survive the relay.
+     *
+     * @return the sessions that still have members by id, empty if there is no state
+     *
+     * @throws IOException if the directory cannot be used
+     */
+    HashMap<Integer, SessionRecord> load() throws IOException {
+
+        HashMap<Integer, SessionRecord> sessions = new HashMap<Integer, SessionRecord>();
+        if (dir == null) {
+            return sessions;
+        }
+        dir.mkdirs();
+
+        int first = 0;
+        File snapshot = new File(dir, "sessions.snap");
+        if (snapshot.exists()) {
+            try (DataInputStream in = open(snapshot)) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a session snapshot: " + snapshot);
+                }
+                first = in.readInt();
+                int count = in.readInt();
+                sessions = new HashMap<Integer, SessionRecord>(count * 4 / 3 + 16);
+                for (int i = 0; i < count; i++) {
+                    int sessionId = in.readInt();
+                    boolean group = in.readBoolean();
+                    int port = in.readInt();
+                    int version = in.readInt();
+                    SessionRecord session = new SessionRecord(port, group);
+                    session.version = version;
+                    int users = in.readInt();
+                    for (int j = 0; j < users; j++) {
+                        session.add(ids.id(in.readUTF()));
+                    }
+                    sessions.put(sessionId, session);
+                }
+            }
+        }
+
+        // replay the segments the snapshot does not cover, oldest first
+        TreeMap<Integer, File> segments = segments();
+        for (File file : segments.tailMap(first).values()) {
+            replay(file, sessions);
+        }
+        sessions.values().removeIf(session -> session.isEmpty());
+        segment = segments.isEmpty() ? first : Math.max(first, segments.lastKey() + 1);
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile(segment))));
+        return sessions;
+    }
+
+    /**
+     * Appends the records of a log segment to the sessions.
+     *
+     * @param file     the segment
+     * @param sessions the sessions
+     *
+     * @throws IOException if the segment cannot be read
+     */
+    private void replay(File file, HashMap<Integer, SessionRecord> sessions) throws IOException {
+        try (DataInputStream in = open(file)) {
+            while (true) {
+                byte type = in.readByte();
+                int sessionId = in.readInt();
+                int version = in.readInt();
+                SessionRecord session = sessions.get(sessionId);
+                switch (type) {
+                    case CREATE:
+                        boolean group = in.readBoolean();
+                        int port = in.readInt();
+                        int creator = ids.id(in.readUTF());
+                        session = new SessionRecord(port, group);
+                        session.add(creator);
+                        sessions.put(sessionId, session);
+                        break;
+                    case JOIN:
+                        int joined = ids.id(in.readUTF());
+                        if (session != null) {
+                            session.add(joined);
+                        }
+                        break;
+                    case LEAVE:
+                        int left = ids.id(in.readUTF());
+                        if (session != null) {
+                            session.remove(left);
+                        }
+                        break;
+                    case END:
+                        sessions.remove(sessionId);
+                        session = null;
+                        break;
+                    default:
+                        System.out.println("[!] Corrupt record in " + file + ", skipping the rest");
+                        return;
+                }
+                if (session != null) {
+                    session.version = Math.max(session.version, version);
+                }
+            }
+        } catch (EOFException e) {
+            // the end of the segment, or a record cut short by a crash
+        }
+    }
+
+    /**
+     * Logs a new session.
+     *
+     * @param sessionId the session
+     * @param session   the session record, with its creator as the only member
+     */
+    synchronized void created(int sessionId, SessionRecord session) {
+        if (begin(CREATE, sessionId, session.version)) {
+            try {
+                recordOut.writeBoolean(session.group);
+                recordOut.writeInt(session.channel);
+                recordOut.writeUTF(ids.name(session.user(0)));
+                end();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Logs a member joining or leaving a session.
+     *
+     * @param sessionId the session
+     * @param version   the version of the member list after the change
+     * @param nickname  the member
+     * @param joined    true if the member joined, false if it left
+     */
+    synchronized void membersChanged(int sessionId, int version, String nickname, boolean joined) {
+        if (begin(joined ? JOIN : LEAVE, sessionId, version)) {
+            try {
+                recordOut.writeUTF(nickname);
+                end();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Logs the end of a session.
+     *
+     * @param sessionId the session
+     */
+    synchronized void ended(int sessionId) {
+        if (begin(END, sessionId, 0)) {
+            end();
+        }
+    }
+
+    /**
+     * Starts a record with its header. A record that fails before end is
+     * dropped with it, so the log only ever holds whole records.
+     *
+     * @param type      the record type
+     * @param sessionId the session
+     * @param version   the version of the member list
+     *
+     * @return false if there is no log
+     */
+    private boolean begin(byte type, int sessionId, int version) {
+        if (log == null) {
+            return false;
+        }
+        try {
+            record.reset();
+            recordOut.writeByte(type);
+            recordOut.writeInt(sessionId);
+            recordOut.writeInt(version);
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes a complete record to the log and hands it to the operating
+     * system, so it survives the server process.
+     */
+    private void end() {
+        try {
+            record.writeTo(log);
+            log.flush();
+            records++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops logging after a write failed.
+     *
+     * @param e the failure
+     */
+    private void fail(IOException e) {
+        System.out.println("[!] Could not write the session log: " + e.getMessage());
+        try {
+            log.close();
+        } catch (IOException closing) {
+            // already failed
+        }
+        log = null;
+    }
+
+    /**
+     * Starts a new log segment, the segments before it are covered by the
+     * snapshot about to be taken.
+     *
+     * @return the number of the new segment
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    synchronized int rotate() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        segment++;
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile(segment))));
+        return segment;
+    }
+
+    /**
+     * Serializes a session into a snapshot chunk. Called on the shard of each
+     * session.
+     *
+     * @param out       the chunk
+     * @param sessionId the session
+     * @param session   the session record
+     *
+     * @throws IOException if the chunk cannot be written
+     */
+    void write(DataOutputStream out, int sessionId, SessionRecord session) throws IOException {
+        out.writeInt(sessionId);
+        out.writeBoolean(session.group);
+        out.writeInt(session.channel);
+        out.writeInt(session.version);
+        out.writeInt(session.size());
+        for (int i = 0; i < session.size(); i++) {
+            out.writeUTF(ids.name(session.user(i)));
+        }
+    }
+
+    /**
+     * Writes a snapshot and deletes the log segments it covers. The snapshot
+     * is written to a new file and renamed over the old one, so a crash
+     * leaves one or the other.
+     *
+     * @param first  the first segment the snapshot does not cover
+     * @param count  the number of sessions in the chunks
+     * @param chunks the serialized sessions
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    void writeSnapshot(int first, int count, ArrayList<ByteArrayOutputStream> chunks) throws IOException {
+
+        File temp = new File(dir, "sessions.snap.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(first);
+            out.writeInt(count);
+            for (ByteArrayOutputStream chunk : chunks) {
+                chunk.writeTo(out);
+            }
+        }
+        Files.move(temp.toPath(), new File(dir, "sessions.snap").toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (File file : segments().headMap(first).values()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Summarises the store for the metrics report.
+     *
+     * @return a one line summary
+     */
+    synchronized String summary() {
+        return String.format("segment=%d records=%d", segment, records);
+    }
+
+    /**
+     * Closes the log.
+     */
+    synchronized void close() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Finds the log segments on disk.
+     *
+     * @return the segments by number
+     */
+    private TreeMap<Integer, File> segments() {
+        TreeMap<Integer, File> segments = new TreeMap<Integer, File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("sessions.log.")) {
+                    try {
+                        segments.put(Integer.parseInt(name.substring("sessions.log.".length())), file);
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * The file of a log segment.
+     *
+     * @param number the segment
+     *
+     * @return the file
+     */
+    private File segmentFile(int number) {
+        return new File(dir, "sessions.log." + number);
+    }
+
+    /**
+     * Opens a file for buffered reading.
+     *
+     * @param file the file
+     *
+     * @return the stream
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+
+}
@@ -0,0 +1,366 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * The SyntheticAudioDevice class is an audio device that needs no sound card.
+ * Its captures generate a tone, silence or the contents of an audio file, and
+ * its playbacks discard or record what is written to them. Captures and
+ * playbacks can be paced in real time like a sound card, or run as fast as
+ * possible for throughput tests.
+ */
+public class SyntheticAudioDevice implements AudioDevice {
+
+    private final Function<AudioFormat, AudioCapture> captures;
+    private final Function<AudioFormat, AudioPlayback> playbacks;
+
+    /**
+     * Creates a new SyntheticAudioDevice.
+     *
+     * @param captures  creates a capture for a format
+     * @param playbacks creates a playback for a format
+     */
+    public SyntheticAudioDevice(Function<AudioFormat, AudioCapture> captures,
+            Function<AudioFormat, AudioPlayback> playbacks) {
+        this.captures = captures;
+        this.playbacks = playbacks;
+    }
+
+    @Override
+    public AudioCapture openCapture(AudioFormat format) {
+        return captures.apply(format);
+    }
+
+    @Override
+    public AudioPlayback openPlayback(AudioFormat format) {
+        return playbacks.apply(format);
+    }
+
+    /**
+     * Keeps a stream of audio bytes in step with the wall clock, the way a
+     * sound card produces and consumes data.
+     */
+    static class Pacer {
+
+        private final double bytesPerNano;
+        private long start = -1;
+        private long bytes;
+
+        Pacer(AudioFormat format) {
+            this.bytesPerNano = format.getFrameRate() * format.getFrameSize() / 1e9;
+        }
+
+        /**
+         * Accounts for a number of bytes and sleeps until the clock reaches
+         * the time at which they would have been captured or played.
+         *
+         * @param count the number of bytes
+         */
+        void pace(int count) {
+            long now = System.nanoTime();
+            if (start < 0) {
+                start = now;
+            }
+            bytes += count;
+            long due = start + (long) (bytes / bytesPerNano);
+            while (due - now > 0) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * A capture that generates a sine tone, or silence with amplitude 0.
+     */
+    static class ToneCapture implements AudioCapture {
+
+        private final AudioFormat format;
+        private final double step;
+        private final double amplitude;
+        private final Pacer pacer;
+        private double phase;
+        volatile boolean stopped;
+
+        /**
+         * Creates a new ToneCapture.
+         *
+         * @param format    the audio format, 8 or 16 bit signed PCM
+         * @param frequency the frequency of the tone in Hz
+         * @param amplitude the amplitude, between 0 and 1
+         * @param paced     whether reads are paced in real time
+         */
+        ToneCapture(AudioFormat format, double frequency, double amplitude, boolean paced) {
+            this.format = format;
+            this.step = 2 * Math.PI * frequency / format.getSampleRate();
+            this.amplitude = amplitude;
+            this.pacer = paced ? new Pacer(format) : null;
+        }
+
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        public void start() {
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (stopped) {
+                return -1;
+            }
+            int frameSize = format.getFrameSize();
+            int frames = len / frameSize;
+            for (int f = 0; f < frames; f++) {
+                double sample = next();
+                for (int c = 0; c < format.getChannels(); c++) {
+                    int at = off + f * frameSize + c * (frameSize / format.getChannels());
+                    writeSample(format, b, at, sample);
+                }
+            }
+            int n = frames * frameSize;
+            if (pacer != null) {
+                pacer.pace(n);
+            }
+            return stopped ? -1 : n;
+        }
+
+        /**
+         * The next sample of the tone, between -1 and 1. Subclasses can
+         * override it to shape the signal.
+         *
+         * @return the sample
+         */
+        double next() {
+            double sample = amplitude * Math.sin(phase);
+            phase += step;
+            if (phase > 2 * Math.PI) {
+                phase -= 2 * Math.PI;
+            }
+            return sample;
+        }
+
+        public void stop() {
+            stopped = true;
+        }
+
+        public void close() {
+            stopped = true;
+        }
+    }
+
+    /**
+     * A capture that plays an audio file, converted to the requested format
+     * and looped at its end.
+     */
+    static class FileCapture implements AudioCapture {
+
+        private final AudioFormat format;
+        private final File file;
+        private final Pacer pacer;
+        private AudioInputStream in;
+        volatile boolean stopped;
+
+        /**
+         * Creates a new FileCapture.
+         *
+         * @param format the audio format to capture in
+         * @param file   the audio file
+         * @param paced  whether reads are paced in real time
+         */
+        FileCapture(AudioFormat format, File file, boolean paced) {
+            this.format = format;
+            this.file = file;
+            this.pacer = paced ? new Pacer(format) : null;
+        }
+
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        public void start() {
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (stopped) {
+                return -1;
+            }
+            len -= len % format.getFrameSize();
+            try {
+                int n = -1;
+                for (int attempt = 0; attempt < 2 && n <= 0; attempt++) {
+                    if (in == null) {
+                        in = AudioSystem.getAudioInputStream(format, AudioSystem.getAudioInputStream(file));
+                    }
+                    n = in.read(b, off, len);
+                    if (n <= 0) {
+                        // loop the file
+                        in.close();
+                        in = null;
+                    }
+                }
+                if (n > 0 && pacer != null) {
+                    pacer.pace(n);
+                }
+                return stopped ? -1 : n;
+            } catch (Exception e) {
+                System.out.println("[!] Could not read audio from " + file + ": " + e);
+                return -1;
+            }
+        }
+
+        public void stop() {
+            stopped = true;
+        }
+
+        public void close() {
+            stopped = true;
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                // nothing to release
+            }
+        }
+    }
+
+    /**
+     * A playback that discards everything written to it, only counting the
+     * bytes.
+     */
+    static class NullPlayback implements AudioPlayback {
+
+        private final AudioFormat format;
+        private final Pacer pacer;
+        volatile long bytesWritten;
+
+        /**
+         * Creates a new NullPlayback.
+         *
+         * @param format the audio format
+         * @param paced  whether writes are paced in real time
+         */
+        NullPlayback(AudioFormat format, boolean paced) {
+            this.format = format;
+            this.pacer = paced ? new Pacer(format) : null;
+        }
+
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        public void start() {
+        }
+
+        public int write(byte[] b, int off, int len) {
+            consume(b, off, len);
+            bytesWritten += len;
+            if (pacer != null) {
+                pacer.pace(len);
+            }
+            return len;
+        }
+
+        /**
+         * Called with every block written, subclasses can keep or analyse it.
+         *
+         * @param b   the data
+         * @param off the offset in the data
+         * @param len the number of bytes
+         */
+        void consume(byte[] b, int off, int len) {
+        }
+
+        public void drain() {
+        }
+
+        public void stop() {
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * A playback that records what is written to it, up to a limit, so tests
+     * can check what arrived.
+     */
+    static class RecordingPlayback extends NullPlayback {
+
+        private final ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        private final int limit;
+
+        /**
+         * Creates a new RecordingPlayback.
+         *
+         * @param format the audio format
+         * @param paced  whether writes are paced in real time
+         * @param limit  the most bytes kept
+         */
+        RecordingPlayback(AudioFormat format, boolean paced, int limit) {
+            super(format, paced);
+            this.limit = limit;
+        }
+
+        @Override
+        synchronized void consume(byte[] b, int off, int len) {
+            recorded.write(b, off, Math.max(0, Math.min(len, limit - recorded.size())));
+        }
+
+        /**
+         * The data recorded so far.
+         *
+         * @return a copy of the recorded data
+         */
+        synchronized byte[] recorded() {
+            return recorded.toByteArray();
+        }
+    }
+
+    /**
+     * Writes one sample at a position, in the sample size and byte order of
+     * the format.
+     *
+     * @param format the audio format
+     * @param b      the buffer
+     * @param at     the offset of the sample
+     * @param sample the sample, between -1 and 1
+     */
+    static void writeSample(AudioFormat format, byte[] b, int at, double sample) {
+        if (format.getSampleSizeInBits() == 8) {
+            b[at] = (byte) Math.round(sample * 127);
+            return;
+        }
+        int value = (int) Math.round(sample * 32767);
+        if (format.isBigEndian()) {
+            b[at] = (byte) (value >> 8);
+            b[at + 1] = (byte) value;
+        } else {
+            b[at] = (byte) value;
+            b[at + 1] = (byte) (value >> 8);
+        }
+    }
+
+    /**
+     * Reads one 16 bit sample at a position, in the byte order of the format.
+     *
+     * @param format the audio format
+     * @param b      the buffer
+     * @param at     the offset of the sample
+     *
+     * @return the sample, between -1 and 1
+     */
+    static double readSample(AudioFormat format, byte[] b, int at) {
+        if (format.getSampleSizeInBits() == 8) {
+            return b[at] / 127.0;
+        }
+        int value = format.isBigEndian() ? (b[at] << 8) | (b[at + 1] & 0xff) : (b[at + 1] << 8) | (b[at] & 0xff);
+        return value / 32767.0;
+    }
+
+}
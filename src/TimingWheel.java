@@ -0,0 +1,185 @@
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TimingWheel class runs timeouts for a large number of connections on one
+ * thread. Timers hash into a ring of slots by the tick they are due, so
+ * scheduling and cancelling a timer take constant time whatever the number of
+ * timers, and each tick only visits the timers of one slot. A timer due more
+ * than one turn of the wheel ahead stays in its slot until its tick comes
+ * round. Timers fire on the wheel thread, so they should only do a little
+ * work, such as closing a socket or queueing a packet.
+ */
+public class TimingWheel implements Runnable {
+
+    /**
+     * A timeout, scheduled on one wheel at a time.
+     */
+    public abstract static class Timer {
+
+        private long dueTick;
+        private int slot = -1;
+        private Timer prev;
+        private Timer next;
+
+        /** Called on the wheel thread when the timer is due. */
+        protected abstract void expired();
+    }
+
+    private final Timer[] slots;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+
+    /** The ticks processed so far. */
+    private long tick;
+    private int scheduled;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a new TimingWheel.
+     *
+     * @param tickMillis the resolution of the timers, in milliseconds
+     * @param size       the number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int size) {
+        int slotCount = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    }
+
+    /**
+     * Starts the wheel thread.
+     *
+     * @param name the name of the wheel thread
+     *
+     * @return this wheel
+     */
+    public TimingWheel start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Schedules a timer, replacing its previous deadline if it was scheduled.
+     *
+     * @param timer       the timer
+     * @param delayMillis how long from now it is due, rounded up to a tick
+     */
+    public synchronized void schedule(Timer timer, long delayMillis) {
+        unlink(timer);
+        long ticks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) + tickNanos - 1) / tickNanos;
+        timer.dueTick = tick + Math.max(1, ticks);
+        timer.slot = (int) (timer.dueTick & mask);
+        timer.next = slots[timer.slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[timer.slot] = timer;
+        scheduled++;
+    }
+
+    /**
+     * Cancels a timer.
+     *
+     * @param timer the timer
+     *
+     * @return whether it was scheduled
+     */
+    public synchronized boolean cancel(Timer timer) {
+        return unlink(timer);
+    }
+
+    /**
+     * Number of timers scheduled.
+     *
+     * @return the number of timers
+     */
+    public synchronized int size() {
+        return scheduled;
+    }
+
+    /**
+     * Stops the wheel thread, the timers still scheduled never fire.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Removes a timer from its slot, called holding the lock.
+     *
+     * @param timer the timer
+     *
+     * @return whether it was scheduled
+     */
+    private boolean unlink(Timer timer) {
+        if (timer.slot < 0) {
+            return false;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        scheduled--;
+        return true;
+    }
+
+    /**
+     * The wheel loop. Sleeps until the next tick, takes the due timers of its
+     * slot and fires them outside the lock.
+     */
+    @Override
+    public void run() {
+
+        ArrayList<Timer> due = new ArrayList<Timer>();
+
+        while (!stopped) {
+
+            long wait = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            synchronized (this) {
+                tick++;
+                Timer timer = slots[(int) (tick & mask)];
+                while (timer != null) {
+                    Timer next = timer.next;
+                    if (timer.dueTick <= tick) {
+                        unlink(timer);
+                        due.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+
+            for (int i = 0; i < due.size(); i++) {
+                try {
+                    due.get(i).expired();
+                } catch (RuntimeException e) {
+                    System.out.println("[!] The timer " + due.get(i).getClass().getName() + " failed on "
+                            + Thread.currentThread().getName() + ": " + e);
+                }
+            }
+            due.clear();
+
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+import java.awt.EventQueue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * The UiUpdateQueue class moves UI updates from the network thread to the
+ * event dispatch thread in batches. Updates are queued without blocking, and
+ * at most one invokeLater per frame tick applies everything queued so far, in
+ * order. Lines appended to the same transcript within a tick are joined into
+ * one append, so a burst of messages causes one change event and one repaint
+ * per chat window instead of one per line.
+ */
+public class UiUpdateQueue {
+
+    /** The shortest time between two batches, in milliseconds. */
+    static final long TICK_MILLIS = Long.getLong("tschat.uiTickMillis", 16);
+
+    /** The most updates applied in one batch, the rest wait for the next tick. */
+    static final int MAX_BATCH = 4096;
+
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ui-tick");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** A line of text for a transcript, found when the batch is applied. */
+    private static final class Append {
+        final Supplier<ChatTranscript> area;
+        final String text;
+
+        Append(Supplier<ChatTranscript> area, String text) {
+            this.area = area;
+            this.text = text;
+        }
+    }
+
+    /** Runnables and Appends, in the order they were queued. */
+    private final ConcurrentLinkedQueue<Object> updates = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long lastBatch;
+
+    /**
+     * Queues an update to run on the event dispatch thread.
+     *
+     * @param update the update
+     */
+    public void post(Runnable update) {
+        updates.add(update);
+        schedule();
+    }
+
+    /**
+     * Queues text to append to a transcript on the event dispatch thread. The
+     * transcript is looked up on the event dispatch thread, so it may belong
+     * to a window that an earlier update creates.
+     *
+     * @param area finds the transcript, text for a missing one is dropped
+     * @param text the text
+     */
+    public void append(Supplier<ChatTranscript> area, String text) {
+        updates.add(new Append(area, text));
+        schedule();
+    }
+
+    /**
+     * Schedules a batch unless one is already pending, no sooner than one tick
+     * after the last batch.
+     */
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long wait = lastBatch + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS) - System.nanoTime();
+        if (wait <= 0) {
+            EventQueue.invokeLater(this::apply);
+        } else {
+            TICKER.schedule(() -> EventQueue.invokeLater(this::apply), wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Applies the queued updates, on the event dispatch thread.
+     */
+    private void apply() {
+
+        lastBatch = System.nanoTime();
+
+        // appends are held back until an update that is not an append, to keep the order
+        LinkedHashMap<ChatTranscript, StringBuilder> appends = new LinkedHashMap<ChatTranscript, StringBuilder>();
+        Object update;
+        int applied = 0;
+        while (applied++ < MAX_BATCH && (update = updates.poll()) != null) {
+            if (update instanceof Append) {
+                Append append = (Append) update;
+                ChatTranscript area = append.area.get();
+                if (area != null) {
+                    appends.computeIfAbsent(area, key -> new StringBuilder()).append(append.text);
+                }
+            } else {
+                flush(appends);
+                try {
+                    ((Runnable) update).run();
+                } catch (RuntimeException e) {
+                    // one failed update must not stop the rest of the batch
+                    System.out.println("[!] UI update failed: " + e);
+                }
+            }
+        }
+        flush(appends);
+
+        // updates queued after the last poll were not scheduled, as this batch was pending
+        scheduled.set(false);
+        if (!updates.isEmpty()) {
+            schedule();
+        }
+
+    }
+
+    /**
+     * Appends the held back text, once per transcript.
+     *
+     * @param appends the text for each transcript
+     */
+    private static void flush(LinkedHashMap<ChatTranscript, StringBuilder> appends) {
+        for (Map.Entry<ChatTranscript, StringBuilder> entry : appends.entrySet()) {
+            entry.getKey().append(entry.getValue().toString());
+        }
+        appends.clear();
+    }
+
+}
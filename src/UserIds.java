@@ -0,0 +1,325 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The UserIds class is the symbol table of the nicknames the server knows. A
+ * nickname is given a compact integer id the first time it is seen, when the
+ * user registers, another node names it or the session store restores it,
+ * and keeps it for the life of the server. Session members, call lists and
+ * packets carry these ids instead of nicknames, so membership checks compare
+ * ints and a client caches each name once.
+ *
+ * Clients learn the names of the users online from the presence feed. A
+ * packet that refers to a user the feed has not announced yet, because it is
+ * offline or has only just registered, carries the name along with it.
+ *
+ * Ids are local to a node. A packet forwarded to another node of a cluster
+ * carries the names of all the users it refers to, and the receiving node
+ * maps them to its own ids.
+ */
+public class UserIds {
+
+    /** The id of no user, which is what an id field of a packet holds by default. */
+    static final int NONE = 0;
+
+    /** A user known by id. */
+    static final class Entry {
+
+        final String name;
+
+        /** The connection of the user while it is connected to this node. */
+        volatile AddressWrapper connection;
+
+        /** Whether every client has been sent the name by the presence feed. */
+        volatile boolean announced;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+    }
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /** The users by id, replaced by a larger copy when full, id 0 is never used. */
+    private volatile Entry[] entries = new Entry[1024];
+    private int next = 1;
+
+    /**
+     * The id of a nickname, given one if it has none yet.
+     *
+     * @param nickname the user
+     *
+     * @return the id
+     */
+    int id(String nickname) {
+        Integer id = ids.get(nickname);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(nickname);
+            if (id != null) {
+                return id;
+            }
+            int assigned = next++;
+            Entry[] table = entries;
+            if (assigned == table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            table[assigned] = new Entry(nickname);
+
+            // published before the id, so whoever has the id finds the entry
+            entries = table;
+            ids.put(nickname, assigned);
+            return assigned;
+        }
+    }
+
+    /**
+     * The entry of an id.
+     *
+     * @param id the user
+     *
+     * @return the entry, or null if the id was never given
+     */
+    Entry entry(int id) {
+        Entry[] table = entries;
+        return id > 0 && id < table.length ? table[id] : null;
+    }
+
+    /**
+     * The nickname of an id.
+     *
+     * @param id the user
+     *
+     * @return the nickname, or null if the id was never given
+     */
+    String name(int id) {
+        Entry entry = entry(id);
+        return entry == null ? null : entry.name;
+    }
+
+    /**
+     * The connection of a user connected to this node.
+     *
+     * @param id the user
+     *
+     * @return the connection, or null if the user is not connected here
+     */
+    AddressWrapper connection(int id) {
+        Entry entry = entry(id);
+        return entry == null ? null : entry.connection;
+    }
+
+    /**
+     * Records the connection of a user who registered on this node.
+     *
+     * @param id         the user
+     * @param connection its connection
+     */
+    void connect(int id, AddressWrapper connection) {
+        Entry entry = entry(id);
+        synchronized (entry) {
+            entry.connection = connection;
+        }
+    }
+
+    /**
+     * Forgets the connection of a user who left this node, unless it has
+     * connected again since.
+     *
+     * @param id         the user
+     * @param connection the connection that closed
+     */
+    void disconnect(int id, AddressWrapper connection) {
+        Entry entry = entry(id);
+        synchronized (entry) {
+            if (entry.connection == connection) {
+                entry.connection = null;
+            }
+        }
+    }
+
+    /**
+     * Records whether every client has been sent the name of a user by the
+     * presence feed.
+     *
+     * @param id        the user
+     * @param announced true once the feed sent it, false when the user left
+     */
+    void announce(int id, boolean announced) {
+        entry(id).announced = announced;
+    }
+
+    /**
+     * The number of ids given so far.
+     *
+     * @return the number of ids
+     */
+    synchronized int size() {
+        return next - 1;
+    }
+
+    /**
+     * Adds the names of the users a packet refers to that the presence feed
+     * has not announced, for the clients that may not know them. Called once
+     * a packet is complete, before it is sent.
+     *
+     * @param packet the packet
+     */
+    void name(Packet packet) {
+        int[] ids = referenced(packet);
+        int count = 0;
+        for (int id : ids) {
+            Entry entry = entry(id);
+            if (entry != null && !entry.announced) {
+                ids[count++] = id;
+            }
+        }
+        setNames(packet, count == 0 ? null : distinct(ids, count));
+    }
+
+    /**
+     * Names every user a packet refers to on the packet that forwards it to
+     * another node, which has its own ids.
+     *
+     * @param forwarded the "clusterForward" packet
+     * @param payload   the packet it forwards
+     */
+    void nameAll(Packet forwarded, Packet payload) {
+        int[] ids = referenced(payload);
+        setNames(forwarded, ids.length == 0 ? null : distinct(ids, ids.length));
+    }
+
+    /**
+     * Maps the users a forwarded packet refers to from the ids of the node
+     * that sent it to the ids of this node, and names the users a client here
+     * may not know.
+     *
+     * @param forwarded the "clusterForward" packet
+     */
+    void localize(Packet forwarded) {
+
+        Packet payload = forwarded.payload;
+        HashMap<Integer, Integer> local = new HashMap<Integer, Integer>();
+        if (forwarded.named != null) {
+            for (int i = 0; i < forwarded.named.length; i++) {
+                local.put(forwarded.named[i], id(forwarded.names[i]));
+            }
+        }
+        IntUnaryOperator map = id -> id == NONE ? NONE : local.getOrDefault(id, NONE);
+
+        payload.user = map.applyAsInt(payload.user);
+        payload.users = map(payload.users, map);
+        payload.left = map(payload.left, map);
+        if (payload.calls != null) {
+            int[][] calls = new int[payload.calls.length][];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = map(payload.calls[i], map);
+            }
+            payload.calls = calls;
+        }
+        name(payload);
+
+    }
+
+    /**
+     * Maps a list of ids into a new array.
+     *
+     * @param ids the ids, or null
+     * @param map the mapping
+     *
+     * @return the mapped ids, or null
+     */
+    private static int[] map(int[] ids, IntUnaryOperator map) {
+        if (ids == null) {
+            return null;
+        }
+        int[] mapped = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            mapped[i] = map.applyAsInt(ids[i]);
+        }
+        return mapped;
+    }
+
+    /**
+     * Collects the ids a packet refers to, with repeats.
+     *
+     * @param packet the packet
+     *
+     * @return the ids
+     */
+    private static int[] referenced(Packet packet) {
+        int count = packet.user == NONE ? 0 : 1;
+        count += packet.users == null ? 0 : packet.users.length;
+        count += packet.left == null ? 0 : packet.left.length;
+        if (packet.calls != null) {
+            for (int[] channel : packet.calls) {
+                count += channel.length;
+            }
+        }
+
+        int[] ids = new int[count];
+        int at = 0;
+        if (packet.user != NONE) {
+            ids[at++] = packet.user;
+        }
+        at = append(ids, at, packet.users);
+        at = append(ids, at, packet.left);
+        if (packet.calls != null) {
+            for (int[] channel : packet.calls) {
+                at = append(ids, at, channel);
+            }
+        }
+        return ids;
+    }
+
+    private static int append(int[] ids, int at, int[] more) {
+        if (more != null) {
+            System.arraycopy(more, 0, ids, at, more.length);
+            at += more.length;
+        }
+        return at;
+    }
+
+    /**
+     * Sorts the first ids of an array and drops the repeats.
+     *
+     * @param ids   the ids
+     * @param count how many of them to keep
+     *
+     * @return the distinct ids
+     */
+    private static int[] distinct(int[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || ids[unique - 1] != ids[i]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, unique);
+    }
+
+    /**
+     * Sets the names a packet carries.
+     *
+     * @param packet the packet
+     * @param named  the users to name, or null for none
+     */
+    private void setNames(Packet packet, int[] named) {
+        packet.named = named;
+        if (named == null) {
+            packet.names = null;
+            return;
+        }
+        packet.names = new String[named.length];
+        for (int i = 0; i < named.length; i++) {
+            packet.names[i] = name(named[i]);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The UserNames class is the client's cache of the user ids the server names
+ * users by. Names are learned from the user list, the presence deltas and the
+ * names any other packet carries, and are kept for the whole connection, as
+ * the server never gives an id to another nickname.
+ */
+public class UserNames {
+
+    private final ConcurrentHashMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Learns the names a packet carries. Called on the listener thread for
+     * every packet, before it is handled.
+     *
+     * @param packet the packet
+     */
+    public void learn(Packet packet) {
+        if (packet.named == null) {
+            return;
+        }
+        for (int i = 0; i < packet.named.length; i++) {
+            names.put(packet.named[i], packet.names[i]);
+            ids.put(packet.names[i], packet.named[i]);
+        }
+    }
+
+    /**
+     * The name of a user.
+     *
+     * @param id the id of the user
+     *
+     * @return its name, or the id if the name was never sent
+     */
+    public String name(int id) {
+        String name = names.get(id);
+        return name != null ? name : "#" + id;
+    }
+
+    /**
+     * The names of a list of users.
+     *
+     * @param users the ids of the users, or null
+     *
+     * @return their names, empty for null
+     */
+    public ArrayList<String> names(int[] users) {
+        ArrayList<String> list = new ArrayList<String>();
+        if (users != null) {
+            for (int user : users) {
+                list.add(name(user));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The id of a user, to name it in a request.
+     *
+     * @param name the name of the user
+     *
+     * @return its id, or 0 if it is not known
+     */
+    public int id(String name) {
+        Integer id = ids.get(name);
+        return id == null ? 0 : id;
+    }
+
+}
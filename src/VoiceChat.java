@@ -1,44 +1,104 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.SourceDataLine;
-import javax.sound.sampled.TargetDataLine;
 
 /**
  * The voice chat class handles the UDP calling feature of the application. It
- * can start and stop a call on a given port
+ * can join and leave one call channel of a session. The audio is captured from
+ * and played back to an AudioDevice, so calls also run without a sound card,
+ * and is sent and received over the client's MediaSocket, which all calls of
+ * a client share.
  */
 public class VoiceChat {
 
+    /**
+     * Observes the frames of a call at each stage of the audio path, used to
+     * measure latency. All times are System.nanoTime values.
+     */
+    public interface Probe {
+
+        /** A frame was read from the capture. */
+        void captured(byte[] frame, int offset, int length, long nanos);
+
+        /** A frame was sent to the relay. */
+        void sent(byte[] frame, int offset, int length, long nanos);
+
+        /** A frame was received from the network. */
+        void received(byte[] frame, int offset, int length, long nanos);
+
+        /** A frame is about to be written to the playback. */
+        void played(byte[] frame, int offset, int length, long nanos);
+    }
+
     // audio configuration
-    private static final int PACKET_SIZE = 1000;
-    private static DatagramSocket socket;
-    private static TargetDataLine inputLine;
-    private static SourceDataLine outputLine;
+    static final int PACKET_SIZE = 1000;
+    static final AudioFormat FORMAT = new AudioFormat(8000.0f, 16, 1, true, true);
+
+    /** Frames queued for playback, the oldest is dropped when it is full. */
+    static final int PLAYBACK_FRAMES = 8;
+
+    private final AudioDevice device;
+    private final MediaSocket media;
+    private final Probe probe;
+    private final ArrayBlockingQueue<byte[]> received = new ArrayBlockingQueue<byte[]>(PLAYBACK_FRAMES);
+    private int session;
+    private int channel;
+    private int ssrc;
+    private volatile boolean joined;
+    private volatile boolean muted;
+    private Thread outputThread;
+    private volatile AudioCapture inputLine;
+    private volatile AudioPlayback outputLine;
+
+    /**
+     * Creates a voice chat on the configured audio device.
+     *
+     * @param media the socket the client sends and receives call audio on
+     */
+    public VoiceChat(MediaSocket media) {
+        this(AudioDevices.get(), media, null);
+    }
+
+    /**
+     * Creates a voice chat on the given audio device, observed by a probe.
+     *
+     * @param device the device to capture from and play back to
+     * @param media  the socket the client sends and receives call audio on
+     * @param probe  the probe observing the frames, or null
+     */
+    public VoiceChat(AudioDevice device, MediaSocket media, Probe probe) {
+        this.device = device;
+        this.media = media;
+        this.probe = probe;
+    }
 
     /**
-     * Join a call on the specified port with the users with adresses
-     * 
-     * @param port      The port on which the call is taking place
-     * @param addresses The adresses of all the users in the session.
+     * Join a call channel of a session.
+     *
+     * @param session the session of the call
+     * @param channel the call channel id assigned by the server
+     * @param ssrc    the SSRC assigned to this client by the server
      * @throws Exception Any errors relating to the call
      */
-    public static void join(Integer port, ArrayList<InetAddress> addresses) throws Exception {
+    public void join(int session, int channel, int ssrc) throws Exception {
+
+        this.session = session;
+        this.channel = channel;
+        this.ssrc = ssrc;
+        joined = true;
+        media.register(channel, this);
 
-        // create socket
-        socket = new DatagramSocket(port);
+        // announce our endpoint to the relay before any audio arrives
+        byte[] hello = new byte[MediaSocket.HEADER];
+        MediaSocket.writeHeader(hello, 0, session, channel, ssrc);
+        media.send(hello, hello.length);
 
         // create 2 threads for input and output
         Thread inputThread = new Thread(() -> {
-            listen(port, addresses);
+            listen();
         });
-        Thread outputThread = new Thread(() -> {
-            playback(port);
+        outputThread = new Thread(() -> {
+            playback();
         });
 
         // start threads
@@ -50,93 +110,124 @@ public class VoiceChat {
     /**
      * Leave the call and close the datalines
      */
-    public static void leave() {
-        // close the lines and socket
-        inputLine.stop();
-        outputLine.stop();
-        socket.close();
+    public void leave() {
+        joined = false;
+        media.unregister(channel, this);
+        // close the lines and stop the playback
+        if (inputLine != null) {
+            inputLine.stop();
+            inputLine.close();
+        }
+        if (outputLine != null) {
+            outputLine.stop();
+            outputLine.close();
+        }
+        if (outputThread != null) {
+            outputThread.interrupt();
+        }
+    }
+
+    /**
+     * Stops or resumes sending audio. A muted call still sends empty datagrams,
+     * so the relay keeps its endpoint.
+     *
+     * @param muted whether to stop sending audio
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * Hands a received frame to the playback, called by the MediaSocket.
+     *
+     * @param data   the datagram
+     * @param offset the offset of the audio in the datagram
+     * @param length the length of the audio
+     */
+    void deliver(byte[] data, int offset, int length) {
+        byte[] frame = new byte[length];
+        System.arraycopy(data, offset, frame, 0, length);
+        if (probe != null) {
+            probe.received(frame, 0, length, System.nanoTime());
+        }
+        // drop the oldest frame rather than fall further behind
+        while (!received.offer(frame)) {
+            received.poll();
+        }
     }
 
     /**
-     * 
-     * Listen to voice data on microphone and send to the other users over UDP
-     * 
-     * @param port      Port over which to send data
-     * @param addresses The addresses of the other users
+     *
+     * Listen to voice data on microphone and send it to the relay
      */
     // listen for user input and send over UDP
-    public static void listen(Integer port, ArrayList<InetAddress> addresses) {
+    public void listen() {
 
         try {
-            // set format
-            AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, true);
-
             // listen for voice input
-            DataLine.Info inputInfo = new DataLine.Info(TargetDataLine.class, format);
-            inputLine = (TargetDataLine) AudioSystem.getLine(inputInfo);
-            inputLine.open(format);
+            inputLine = device.openCapture(FORMAT);
             inputLine.start();
 
-            // create and read data into buffer
-            byte[] voiceBuffer = new byte[PACKET_SIZE];
+            // create and read data into buffer, after the header
+            byte[] datagram = new byte[MediaSocket.HEADER + PACKET_SIZE];
+            int sequence = 0;
 
-            while (true) {
+            while (joined) {
 
-                int bytes = inputLine.read(voiceBuffer, 0, voiceBuffer.length);
+                int bytes = inputLine.read(datagram, MediaSocket.HEADER, PACKET_SIZE);
+                if (bytes < 0) {
+                    break;
+                }
+                if (probe != null) {
+                    probe.captured(datagram, MediaSocket.HEADER, bytes, System.nanoTime());
+                }
 
-                // send packets to all users in session (except self)
-                for (int i = 0; i < addresses.size(); i++) {
-                    // create UDP packet from buffer
-                    DatagramPacket packet = new DatagramPacket(voiceBuffer, bytes, addresses.get(i), port);
-                    // send packet
-                    socket.send(packet);
+                // send one datagram to the relay, which forwards it to the channel
+                MediaSocket.writeHeader(datagram, sequence++, session, channel, ssrc);
+                media.send(datagram, MediaSocket.HEADER + (muted ? 0 : bytes));
+                if (probe != null) {
+                    probe.sent(datagram, MediaSocket.HEADER, bytes, System.nanoTime());
                 }
 
             }
 
         } catch (Exception e) {
-            // e.printStackTrace();
+            // leaving the call closes the line under the read
+            if (joined) {
+                System.out.println("[!] Call audio capture failed: " + e);
+            }
         }
 
     }
 
     /**
-     * 
-     * Listen for incoming UDP packets on the current call and play it back to the
-     * user
-     * 
-     * @param port The port on which to listen for traffic
+     *
+     * Play the frames received on the current call back to the user
      */
-    public static void playback(Integer port) {
+    public void playback() {
 
         try {
-            // set format
-            AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, true);
-
             // setup line to play received audio
-            DataLine.Info outputInfo = new DataLine.Info(SourceDataLine.class, format);
-            outputLine = (SourceDataLine) AudioSystem.getLine(outputInfo);
-            outputLine.open(format);
+            outputLine = device.openPlayback(FORMAT);
             outputLine.start();
 
-            // create and read received data into buffer
-            byte[] voiceBuffer = new byte[PACKET_SIZE];
+            while (joined) {
 
-            while (true) {
-
-                // receive a UDP packet
-                DatagramPacket packet = new DatagramPacket(voiceBuffer, voiceBuffer.length);
-                socket.receive(packet);
+                byte[] frame = received.take();
+                if (probe != null) {
+                    probe.played(frame, 0, frame.length, System.nanoTime());
+                }
 
                 // write to outputline
-                outputLine.write(voiceBuffer, 0, packet.getLength());
+                outputLine.write(frame, 0, frame.length);
 
             }
 
         } catch (Exception e) {
-
-            // e.printStackTrace();
-
+            // leaving the call interrupts the wait and closes the line
+            if (joined) {
+                System.out.println("[!] Call audio playback failed: " + e);
+            }
         }
 
     }
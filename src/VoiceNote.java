@@ -7,7 +7,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
@@ -16,12 +15,8 @@ import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineEvent;
 import javax.sound.sampled.LineListener;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.TargetDataLine;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 
@@ -29,18 +24,18 @@ public class VoiceNote extends javax.swing.JFrame {
 
 	Integer sessionId;
 	String from;
-	ObjectOutputStream outSocket;
+	ClientRpc outSocket;
 	boolean isPrivate;
 
 	String selectedVn;
-	TargetDataLine tDataLine;
+	AudioCapture tDataLine;
 
 	Thread recordingThread = new Thread();
 
 	/**
 	 * Creates new form VoiceNote
 	 */
-	public VoiceNote(Integer sessionId, String from, ObjectOutputStream outSocket, boolean isPrivate,
+	public VoiceNote(Integer sessionId, String from, ClientRpc outSocket, boolean isPrivate,
 			ArrayList<String> vnReceived) {
 		this.sessionId = sessionId;
 		this.from = from;
@@ -52,17 +47,6 @@ public class VoiceNote extends javax.swing.JFrame {
 		// set received voice notes
 		jList1.setListData(Arrays.copyOf(vnReceived.toArray(), vnReceived.size(), String[].class));
 
-		try {
-			// Create audio format and line for overwrite errors
-			AudioFormat audioFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, 16, 2, 4, 44100,
-					false);
-			DataLine.Info dInfo = new DataLine.Info(TargetDataLine.class, audioFormat);
-
-			tDataLine = (TargetDataLine) AudioSystem.getLine(dInfo);
-
-		} catch (Exception err) {
-			err.printStackTrace();
-		}
 	}
 
 	/**
@@ -466,10 +450,7 @@ public class VoiceNote extends javax.swing.JFrame {
 
 			File vnFile = new File("voicenotes_receive/" + selectedVn);
 			AudioInputStream audioIn = AudioSystem.getAudioInputStream(vnFile);
-			Clip clip = AudioSystem.getClip();
-
-			clip.open(audioIn);
-			clip.start();
+			AudioDevices.get().play(audioIn);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -502,26 +483,24 @@ public class VoiceNote extends javax.swing.JFrame {
 		// Create audio format
 		AudioFormat audioFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, 16, 2, 4, 44100,
 				false);
-		DataLine.Info dInfo = new DataLine.Info(TargetDataLine.class, audioFormat);
 
 		// Setup target to record
 		try {
 
 			if (jLabel8.getText().equals("Start recording")) {
 
-				tDataLine = (TargetDataLine) AudioSystem.getLine(dInfo);
+				tDataLine = AudioDevices.get().openCapture(audioFormat);
 
 				// Start recording voice note
 				scaleImage(jLabel1, "images/voicenoteActive.png");
 				jLabel8.setText("Stop recording");
 
 				// Start recording
-				tDataLine.open();
 				tDataLine.start();
 
 				// Thread for continuously recording mic
 				recordingThread = new Thread(() -> {
-					AudioInputStream in = new AudioInputStream(tDataLine);
+					AudioInputStream in = tDataLine.stream();
 					File out = new File("voicenotes_send/voicenote.wav");
 					// Keep on listing to in and save audio
 					try {
@@ -558,7 +537,7 @@ public class VoiceNote extends javax.swing.JFrame {
 					FileInputStream vnFile = new FileInputStream("voicenotes_send/voicenote.wav");
 					Packet packet = new Packet("voicenote", from, sessionId, vnFile.readAllBytes(),
 							isPrivate);
-					outSocket.writeObject(packet);
+					outSocket.send(packet);
 					vnFile.close();
 				} catch (Exception err) {
 					err.printStackTrace();
@@ -568,7 +547,7 @@ public class VoiceNote extends javax.swing.JFrame {
 				jLabel8.setText("Start recording");
 				scaleImage(jLabel1, "images/voicenoteIdle.png");
 			}
-		} catch (LineUnavailableException e) {
+		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}// GEN-LAST:event_jLabel8MouseClicked